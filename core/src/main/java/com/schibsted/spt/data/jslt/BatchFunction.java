@@ -0,0 +1,42 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A function that can also be called for many sets of arguments at
+ * once, for example to do one bulk lookup instead of many single
+ * ones. JSLT uses this when the function is called for each element
+ * in a for loop or object comprehension, as in [for (.ids) lookup(.)],
+ * and when the whole expression is a call to the function and is
+ * applied to many inputs with {@link Expression#applyAll}. Elsewhere
+ * the ordinary call() is used.
+ *
+ * <p>When batching, the arguments for every element are evaluated
+ * before the function is called, so the calls must not depend on
+ * other parts of the expression being evaluated in between.
+ */
+public interface BatchFunction extends Function {
+
+  /**
+   * Perform the function once for each set of arguments. The result
+   * must have the same length as the arguments, and result[ix] must
+   * be what call(inputs[ix], arguments[ix]) would have returned.
+   */
+  public JsonNode[] callBatch(JsonNode[] inputs, JsonNode[][] arguments);
+
+}
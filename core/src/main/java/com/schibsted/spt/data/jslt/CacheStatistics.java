@@ -0,0 +1,45 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.schibsted.spt.data.jslt;
+
+/**
+ * Counters that show how well a cache is working. The counts start
+ * at zero when the cache is made, and are updated as it's used, so
+ * they can be read at any time from any thread.
+ */
+public interface CacheStatistics {
+
+  /**
+   * The number of lookups that found the value in the cache.
+   */
+  public long getHits();
+
+  /**
+   * The number of lookups that didn't, so that the value had to be
+   * computed.
+   */
+  public long getMisses();
+
+  /**
+   * The number of values that were removed to make room for others.
+   */
+  public long getEvictions();
+
+  /**
+   * The number of values in the cache now.
+   */
+  public int getSize();
+
+}
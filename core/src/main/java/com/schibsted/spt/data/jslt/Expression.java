@@ -16,6 +16,15 @@
 package com.schibsted.spt.data.jslt;
 
 import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.function.Consumer;
+import java.io.IOException;
+import java.io.InputStream;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 
 /**
@@ -31,6 +40,10 @@ public interface Expression {
   // have convenience methods without having to have those on every
   // kind of expression node internally (and vice versa)
 
+  // the methods after the two apply() methods have default
+  // implementations built on apply(), so that classes implementing
+  // this interface outside JSLT keep working as it grows
+
   /**
    * Evaluate the expression on the given JSON input.
    * @param input The JSON input to evaluate the expression on.
@@ -45,4 +58,154 @@ public interface Expression {
    */
   public JsonNode apply(Map<String, JsonNode> variables, JsonNode input);
 
+  /**
+   * Evaluate the expression on each of the inputs, returning the
+   * outputs in the same order. This is faster than calling apply()
+   * for each input, because work that is the same for every input
+   * is only done once.
+   * @param inputs The JSON inputs to evaluate the expression on.
+   */
+  public default List<JsonNode> applyAll(List<JsonNode> inputs) {
+    return applyAll(Collections.EMPTY_MAP, inputs);
+  }
+
+  /**
+   * Evaluate the expression on each of the inputs, with the given
+   * predefined variables set, returning the outputs in order.
+   * @param variables Variable bindings visible inside the expression.
+   * @param inputs The JSON inputs to evaluate the expression on.
+   */
+  public default List<JsonNode> applyAll(Map<String, JsonNode> variables,
+                                         List<JsonNode> inputs) {
+    List<JsonNode> outputs = new ArrayList(inputs.size());
+    applyAll(variables, inputs.iterator(), outputs::add);
+    return outputs;
+  }
+
+  /**
+   * Evaluate the expression on each of the inputs, passing each
+   * output to the consumer before moving on to the next input.
+   * @param inputs The JSON inputs to evaluate the expression on.
+   * @param output Receives the outputs, in order.
+   */
+  public default void applyAll(Iterator<JsonNode> inputs,
+                               Consumer<JsonNode> output) {
+    applyAll(Collections.EMPTY_MAP, inputs, output);
+  }
+
+  /**
+   * Evaluate the expression on each of the inputs, with the given
+   * predefined variables set, passing each output to the consumer.
+   * @param variables Variable bindings visible inside the expression.
+   * @param inputs The JSON inputs to evaluate the expression on.
+   * @param output Receives the outputs, in order.
+   */
+  public default void applyAll(Map<String, JsonNode> variables,
+                               Iterator<JsonNode> inputs,
+                               Consumer<JsonNode> output) {
+    while (inputs.hasNext())
+      output.accept(apply(variables, inputs.next()));
+  }
+
+  /**
+   * Evaluate the expression on the given JSON input, writing the
+   * output directly to the generator instead of building it in
+   * memory. The output is the same as from apply(), except that
+   * numbers may be written with a different Java type.
+   * @param input The JSON input to evaluate the expression on.
+   * @param output The generator to write the output to.
+   */
+  public default void apply(JsonNode input, JsonGenerator output) {
+    apply(Collections.EMPTY_MAP, input, output);
+  }
+
+  /**
+   * Evaluate the expression on the given JSON input, with the given
+   * predefined variables set, writing the output to the generator.
+   * @param variables Variable bindings visible inside the expression.
+   * @param input The JSON input to evaluate the expression on.
+   * @param output The generator to write the output to.
+   */
+  public default void apply(Map<String, JsonNode> variables, JsonNode input,
+                            JsonGenerator output) {
+    try {
+      output.writeTree(apply(variables, input));
+    } catch (IOException e) {
+      throw new JsltException("Couldn't write output: " + e, e);
+    }
+  }
+
+  /**
+   * Returns a binder that applies the expression with values for the
+   * given variables, passed in an array instead of a map. This is
+   * faster when the same variables are set on every call. Names the
+   * expression doesn't use are accepted, and ignored.
+   * @param names The names of the variables, without the '$'.
+   */
+  public default ParameterBinder getParameterBinder(final String... names) {
+    return new ParameterBinder() {
+      public int size() {
+        return names.length;
+      }
+
+      public JsonNode apply(JsonNode[] values, JsonNode input) {
+        Map<String, JsonNode> variables = new HashMap();
+        for (int ix = 0; ix < names.length; ix++)
+          if (values[ix] != null)
+            variables.put(names[ix], values[ix]);
+        return Expression.this.apply(variables, input);
+      }
+    };
+  }
+
+  /**
+   * Returns the parts of the input that the expression can read.
+   * Anything else can be removed from the input before the
+   * expression is applied, without changing the output. Unless
+   * overridden, this says the entire input may be read.
+   */
+  public default InputPaths getInputPaths() {
+    return new InputPaths(true, Collections.EMPTY_MAP, null);
+  }
+
+  /**
+   * Parses JSON input for this expression, skipping the parts of the
+   * input the expression doesn't read. Applying the expression to
+   * the result gives the same output as for the full input.
+   */
+  public default JsonNode readInput(byte[] input) {
+    return getInputPaths().read(input);
+  }
+
+  /**
+   * Parses JSON input for this expression, skipping the parts of the
+   * input the expression doesn't read. The stream is not closed.
+   */
+  public default JsonNode readInput(InputStream input) {
+    return getInputPaths().read(input);
+  }
+
+  /**
+   * Returns a new expression that works like this one, except that
+   * the given external parameters have the given values. The new
+   * expression is optimized with the values known, so everything that
+   * depends only on them is worked out once, instead of every time
+   * the expression is applied. Values passed for these parameters
+   * when applying the new expression are ignored.
+   * @param knownParameters Values of variables set from outside.
+   */
+  public default Expression specialize(Map<String, JsonNode> knownParameters) {
+    throw new JsltException("This expression can't be specialized");
+  }
+
+  /**
+   * Returns the caches of the functions whose results are cached,
+   * keyed on the function name. Functions in imported modules have
+   * the module prefix, as in "prefix:name". The map is empty unless
+   * the expression was compiled with memoization.
+   */
+  public default Map<String, CacheStatistics> getMemoizationStatistics() {
+    return Collections.EMPTY_MAP;
+  }
+
 }
@@ -46,4 +46,14 @@ public interface Function extends Callable {
    */
   public JsonNode call(JsonNode input, JsonNode[] arguments);
 
+  /**
+   * What the function promises about its behaviour. JSLT uses this
+   * to decide which optimizations are safe, for example evaluating
+   * calls to pure functions at compile time. By default nothing is
+   * promised.
+   */
+  public default FunctionTraits getTraits() {
+    return FunctionTraits.UNKNOWN;
+  }
+
 }
@@ -0,0 +1,147 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt;
+
+/**
+ * What a function promises about its behaviour, so that JSLT can
+ * optimize calls to it. For example, calls to pure functions with
+ * constant arguments are evaluated when the expression is compiled.
+ * Functions that promise nothing are called exactly as written.
+ * Only purity is used for now; thread safety and cost are advisory.
+ *
+ * <p>Objects of this class are immutable. Use the with methods to
+ * make new ones, starting from {@link #UNKNOWN} or {@link #PURE}.
+ */
+public class FunctionTraits {
+
+  /**
+   * Rough indication of how expensive it is to call a function.
+   */
+  public enum Cost {
+    /** Not much more than looking at the arguments. */
+    CHEAP,
+    /** Parsing, regular expressions, hashing, and so on. */
+    MODERATE,
+    /** Network or disk access, large computations. */
+    EXPENSIVE
+  }
+
+  /**
+   * Nothing is known about the function. This is what functions that
+   * don't say anything have.
+   */
+  public static final FunctionTraits UNKNOWN =
+    new FunctionTraits(false, false, false, Cost.MODERATE);
+
+  /**
+   * The function is deterministic, has no side effects, is thread
+   * safe, and cheap.
+   */
+  public static final FunctionTraits PURE =
+    new FunctionTraits(true, true, true, Cost.CHEAP);
+
+  private boolean deterministic;
+  private boolean sideEffectFree;
+  private boolean threadSafe;
+  private Cost cost;
+
+  private FunctionTraits(boolean deterministic, boolean sideEffectFree,
+                         boolean threadSafe, Cost cost) {
+    this.deterministic = deterministic;
+    this.sideEffectFree = sideEffectFree;
+    this.threadSafe = threadSafe;
+    this.cost = cost;
+  }
+
+  /**
+   * Does the function always return the same value for the same
+   * arguments? The value must depend only on the arguments, and not
+   * on the input passed to the function, the time, or anything else.
+   */
+  public boolean isDeterministic() {
+    return deterministic;
+  }
+
+  /**
+   * Does calling the function have no effect other than returning a
+   * value? Functions that log, write, or throw exceptions on purpose
+   * have side effects.
+   */
+  public boolean isSideEffectFree() {
+    return sideEffectFree;
+  }
+
+  /**
+   * Can the function be called from several threads at once?
+   */
+  public boolean isThreadSafe() {
+    return threadSafe;
+  }
+
+  public Cost getCost() {
+    return cost;
+  }
+
+  /**
+   * True if the function is deterministic and has no side effects,
+   * so that calls to it can be evaluated early, removed if the
+   * result isn't used, or their results reused.
+   */
+  public boolean isPure() {
+    return deterministic && sideEffectFree;
+  }
+
+  /**
+   * Create new traits that are the same except for being
+   * deterministic or not.
+   */
+  public FunctionTraits withDeterministic(boolean isDeterministic) {
+    return new FunctionTraits(isDeterministic, sideEffectFree, threadSafe,
+                              cost);
+  }
+
+  /**
+   * Create new traits that are the same except for being side effect
+   * free or not.
+   */
+  public FunctionTraits withSideEffectFree(boolean isSideEffectFree) {
+    return new FunctionTraits(deterministic, isSideEffectFree, threadSafe,
+                              cost);
+  }
+
+  /**
+   * Create new traits that are the same except for being thread safe
+   * or not.
+   */
+  public FunctionTraits withThreadSafe(boolean isThreadSafe) {
+    return new FunctionTraits(deterministic, sideEffectFree, isThreadSafe,
+                              cost);
+  }
+
+  /**
+   * Create new traits that are the same except for the cost.
+   */
+  public FunctionTraits withCost(Cost thisCost) {
+    return new FunctionTraits(deterministic, sideEffectFree, threadSafe,
+                              thisCost);
+  }
+
+  public String toString() {
+    return "FunctionTraits[deterministic=" + deterministic +
+      ", sideEffectFree=" + sideEffectFree + ", threadSafe=" + threadSafe +
+      ", cost=" + cost + "]";
+  }
+}
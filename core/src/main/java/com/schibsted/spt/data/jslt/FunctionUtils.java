@@ -25,27 +25,30 @@ public class FunctionUtils {
 
   /**
    * Create a JSLT function from a static Java method. This will fail
-   * if the method is overloaded.
+   * if the method is overloaded. Parameters and return values can be
+   * String, int, long, boolean, double, float, JsonNode, List, Map, or
+   * arrays.
    */
   static public Function wrapStaticMethod(String functionName,
                                           String className,
                                           String methodName)
     throws LinkageError, ExceptionInInitializerError, ClassNotFoundException {
-    Class klass = Class.forName(className);
-    Method[] methods = klass.getMethods();
-    Method method = null;
-    for (int ix = 0; ix < methods.length; ix++) {
-      if (methods[ix].getName().equals(methodName)) {
-        if (method == null)
-          method = methods[ix];
-        else
-          throw new JsltException("More than one method named '" + methodName + "'");
-      }
-    }
-    if (method == null)
-      throw new JsltException("No such method: '" + methodName + "'");
+    return wrapStaticMethod(functionName, className, methodName,
+                            FunctionTraits.UNKNOWN);
+  }
 
-    return new FunctionWrapper(functionName, method);
+  /**
+   * Create a JSLT function from a static Java method, with the given
+   * traits. This will fail if the method is overloaded.
+   */
+  static public Function wrapStaticMethod(String functionName,
+                                          String className,
+                                          String methodName,
+                                          FunctionTraits traits)
+    throws LinkageError, ExceptionInInitializerError, ClassNotFoundException {
+    Class klass = Class.forName(className);
+    return new FunctionWrapper(functionName, findMethod(klass, methodName),
+                               traits);
   }
 
   /**
@@ -58,8 +61,74 @@ public class FunctionUtils {
                                           Class[] paramTypes)
     throws LinkageError, ExceptionInInitializerError, ClassNotFoundException,
            NoSuchMethodException {
+    return wrapStaticMethod(functionName, className, methodName, paramTypes,
+                            FunctionTraits.UNKNOWN);
+  }
+
+  /**
+   * Create a JSLT function from a static Java method, with the given
+   * traits.
+   * @param paramTypes Array of types used to match overloaded methods.
+   */
+  static public Function wrapStaticMethod(String functionName,
+                                          String className,
+                                          String methodName,
+                                          Class[] paramTypes,
+                                          FunctionTraits traits)
+    throws LinkageError, ExceptionInInitializerError, ClassNotFoundException,
+           NoSuchMethodException {
     Class klass = Class.forName(className);
     Method method = klass.getMethod(methodName, paramTypes);
-    return new FunctionWrapper(functionName, method);
+    return new FunctionWrapper(functionName, method, traits);
+  }
+
+  /**
+   * Create a JSLT function that calls a method on the given object.
+   * This will fail if the method is overloaded.
+   */
+  static public Function wrapMethod(String functionName, Object receiver,
+                                    String methodName) {
+    return wrapMethod(functionName, receiver, methodName,
+                      FunctionTraits.UNKNOWN);
+  }
+
+  /**
+   * Create a JSLT function that calls a method on the given object,
+   * with the given traits. This will fail if the method is overloaded.
+   */
+  static public Function wrapMethod(String functionName, Object receiver,
+                                    String methodName,
+                                    FunctionTraits traits) {
+    Method method = findMethod(receiver.getClass(), methodName);
+    return new FunctionWrapper(functionName, method, receiver, traits);
+  }
+
+  /**
+   * Create a JSLT function that calls a method on the given object,
+   * with the given traits.
+   * @param paramTypes Array of types used to match overloaded methods.
+   */
+  static public Function wrapMethod(String functionName, Object receiver,
+                                    String methodName, Class[] paramTypes,
+                                    FunctionTraits traits)
+    throws NoSuchMethodException {
+    Method method = receiver.getClass().getMethod(methodName, paramTypes);
+    return new FunctionWrapper(functionName, method, receiver, traits);
+  }
+
+  private static Method findMethod(Class klass, String methodName) {
+    Method[] methods = klass.getMethods();
+    Method method = null;
+    for (int ix = 0; ix < methods.length; ix++) {
+      if (methods[ix].getName().equals(methodName)) {
+        if (method == null)
+          method = methods[ix];
+        else
+          throw new JsltException("More than one method named '" + methodName + "'");
+      }
+    }
+    if (method == null)
+      throw new JsltException("No such method: '" + methodName + "'");
+    return method;
   }
 }
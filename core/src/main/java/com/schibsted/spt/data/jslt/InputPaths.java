@@ -0,0 +1,209 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt;
+
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.io.IOException;
+import java.io.InputStream;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.schibsted.spt.data.jslt.impl.NodeUtils;
+
+/**
+ * The parts of the input an expression can read, as a tree that
+ * mirrors the structure of the input. Each InputPaths describes one
+ * value in the input, starting with the input itself. Anything that
+ * isn't in the tree is never read by the expression, and can be
+ * removed from the input without changing the output.
+ *
+ * <p>Note that arrays must keep all their elements even if they are
+ * pruned, since the expression may use indexes or the size.
+ *
+ * <p>The read() methods parse JSON input, but only build JsonNode
+ * objects for the parts of the input that are read. Everything else
+ * is skipped over by the parser.
+ */
+public class InputPaths {
+  private boolean entire;
+  private Map<String, InputPaths> fields;
+  private InputPaths elements; // can be null
+
+  public InputPaths(boolean entire, Map<String, InputPaths> fields,
+                    InputPaths elements) {
+    this.entire = entire;
+    this.fields = Collections.unmodifiableMap(new TreeMap(fields));
+    this.elements = elements;
+  }
+
+  /**
+   * True if the expression may need everything in this value, for
+   * example because it's output as it is, or passed to a function.
+   */
+  public boolean isEntire() {
+    return entire;
+  }
+
+  /**
+   * The keys read from this value if it's an object.
+   */
+  public Set<String> getFields() {
+    return fields.keySet();
+  }
+
+  /**
+   * What is read from the value of the given key. Returns null if
+   * the key is never read.
+   */
+  public InputPaths getField(String key) {
+    return fields.get(key);
+  }
+
+  /**
+   * What is read from the elements of this value if it's an array.
+   * If the value turns out to be an object it may be iterated over
+   * as key/value pairs, so in that case the entire object is needed.
+   * Returns null if no elements are read.
+   */
+  public InputPaths getElements() {
+    return elements;
+  }
+
+  /**
+   * Returns the paths to all the values that are read, in a JSLT-like
+   * syntax where [*] means all array elements. Paths to values whose
+   * entire subtree is needed are included, but nothing below them.
+   * If nothing is read the list is empty.
+   */
+  public List<String> getPaths() {
+    List<String> paths = new ArrayList();
+    if (entire || !fields.isEmpty() || elements != null)
+      collectPaths("", paths);
+    return paths;
+  }
+
+  private void collectPaths(String path, List<String> paths) {
+    if (entire || (fields.isEmpty() && elements == null)) {
+      paths.add(path.isEmpty() ? "." : path);
+      return;
+    }
+
+    for (String key : fields.keySet())
+      fields.get(key).collectPaths(path + "." + quote(key), paths);
+    if (elements != null)
+      elements.collectPaths(path + "[*]", paths);
+  }
+
+  private static String quote(String key) {
+    if (key.isEmpty())
+      return "\"\"";
+    for (int ix = 0; ix < key.length(); ix++) {
+      char ch = key.charAt(ix);
+      if (!(Character.isLetter(ch) || ch == '_' ||
+            (ix > 0 && (Character.isDigit(ch) || ch == '-'))))
+        return '"' + key.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+    return key;
+  }
+
+  // ===== PARSING
+
+  /**
+   * Parses the JSON input, leaving out the parts that are not read.
+   */
+  public JsonNode read(byte[] input) {
+    try (JsonParser parser = NodeUtils.mapper.getFactory().createParser(input)) {
+      return read(parser);
+    } catch (IOException e) {
+      throw new JsltException("Couldn't parse input: " + e, e);
+    }
+  }
+
+  /**
+   * Parses the JSON input, leaving out the parts that are not read.
+   * The stream is not closed.
+   */
+  public JsonNode read(InputStream input) {
+    try (JsonParser parser = NodeUtils.mapper.getFactory().createParser(input)) {
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      return read(parser);
+    } catch (IOException e) {
+      throw new JsltException("Couldn't parse input: " + e, e);
+    }
+  }
+
+  /**
+   * Reads the next JSON value from the parser, leaving out the parts
+   * that are not read. Returns a JSON null if there is no input.
+   */
+  public JsonNode read(JsonParser parser) throws IOException {
+    if (parser.nextToken() == null)
+      return NullNode.instance;
+    return readValue(parser);
+  }
+
+  // the parser is positioned on the first token of the value, and is
+  // left on the last token of the value
+  private JsonNode readValue(JsonParser parser) throws IOException {
+    JsonToken token = parser.currentToken();
+    if (entire || (token != JsonToken.START_OBJECT &&
+                   token != JsonToken.START_ARRAY))
+      return NodeUtils.mapper.readTree(parser);
+
+    if (token == JsonToken.START_OBJECT) {
+      if (elements != null)
+        return NodeUtils.mapper.readTree(parser); // may be iterated over
+
+      ObjectNode object = NodeUtils.mapper.createObjectNode();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String key = parser.getCurrentName();
+        InputPaths field = fields.get(key);
+        parser.nextToken();
+        if (field != null)
+          object.set(key, field.readValue(parser));
+        else
+          parser.skipChildren();
+      }
+      return object;
+
+    } else {
+      // the elements are kept as nulls, so that the size and indexes
+      // are the same
+      ArrayNode array = NodeUtils.mapper.createArrayNode();
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        if (elements != null)
+          array.add(elements.readValue(parser));
+        else {
+          parser.skipChildren();
+          array.addNull();
+        }
+      }
+      return array;
+    }
+  }
+
+  public String toString() {
+    return getPaths().toString();
+  }
+}
@@ -0,0 +1,64 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt;
+
+import java.nio.ByteBuffer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.schibsted.spt.data.jslt.impl.LazyJsonNodes;
+
+/**
+ * Turns raw JSON into JsonNodes that are only parsed as they are
+ * used. Objects and arrays are not parsed until something asks for
+ * their members, so an expression that only looks at a few fields in
+ * a large document only pays for parsing those parts. The nodes can
+ * be used as input to expressions just like any other JsonNode.
+ *
+ * <p>The bytes must not be modified while the nodes are in use.
+ * Malformed JSON is reported as a JsltException when the broken part
+ * is first accessed.
+ */
+public class LazyJson {
+
+  /**
+   * Returns a lazily parsed node for the JSON in the given bytes.
+   */
+  public static JsonNode parse(byte[] json) {
+    return LazyJsonNodes.create(json, 0, json.length);
+  }
+
+  /**
+   * Returns a lazily parsed node for the JSON in the given range.
+   */
+  public static JsonNode parse(byte[] json, int offset, int length) {
+    return LazyJsonNodes.create(json, offset, length);
+  }
+
+  /**
+   * Returns a lazily parsed node for the remaining bytes in the
+   * buffer. If the buffer isn't backed by an array the bytes are
+   * copied. The position of the buffer is not changed.
+   */
+  public static JsonNode parse(ByteBuffer json) {
+    if (json.hasArray())
+      return LazyJsonNodes.create(json.array(),
+                                  json.arrayOffset() + json.position(),
+                                  json.remaining());
+
+    byte[] bytes = new byte[json.remaining()];
+    json.duplicate().get(bytes);
+    return LazyJsonNodes.create(bytes, 0, bytes.length);
+  }
+}
@@ -0,0 +1,48 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Applies an expression with values for a fixed list of variables
+ * set from outside. The variable names are looked up once, when the
+ * binder is made, so each call only copies the values into place,
+ * instead of hashing the names and building a map.
+ *
+ * <p>Binders are thread safe. Get one from
+ * {@link Expression#getParameterBinder(String...)}.
+ */
+public interface ParameterBinder {
+
+  /**
+   * The number of variables, which is the length the array of values
+   * must have.
+   */
+  public int size();
+
+  /**
+   * Evaluate the expression on the given JSON input, with the
+   * variables set to the values. values[ix] is the value of the
+   * variable that was number ix in the list given to the expression,
+   * and null means the variable isn't set. The array is not kept, so
+   * it can be reused for the next call.
+   * @param values Values of the variables, in order.
+   * @param input The JSON input to evaluate the expression on.
+   */
+  public JsonNode apply(JsonNode[] values, JsonNode input);
+
+}
@@ -134,16 +134,26 @@ public class Parser {
   private ResourceResolver resolver;
   private Map<String, Module> modules;
   private JsonFilter objectFilter;
+  private int compilationThreshold; // -1 means never compile
+  private int maxRecursionDepth;
+  private int memoizationSize; // 0 means no memoization
+  private RegexpCache regexpCache;
 
   private Parser(String source, Reader reader, Collection<Function> functions,
                  ResourceResolver resolver, Map<String, Module> modules,
-                 JsonFilter filter) {
+                 JsonFilter filter, int compilationThreshold,
+                 int maxRecursionDepth, int memoizationSize,
+                 RegexpCache regexpCache) {
     this.functions = functions;
     this.source = source;
     this.reader = reader;
     this.resolver = resolver;
     this.modules = modules;
     this.objectFilter = filter;
+    this.compilationThreshold = compilationThreshold;
+    this.maxRecursionDepth = maxRecursionDepth;
+    this.memoizationSize = memoizationSize;
+    this.regexpCache = regexpCache;
   }
 
   /**
@@ -153,7 +163,8 @@ public class Parser {
   public Parser(Reader reader) {
     this("<unknown>", reader, Collections.EMPTY_SET,
          new ClasspathResourceResolver(), new HashMap(),
-         new DefaultJsonFilter());
+         new DefaultJsonFilter(), -1, Integer.MAX_VALUE, 0,
+         RegexpCache.SHARED);
   }
 
   /**
@@ -162,7 +173,8 @@ public class Parser {
    */
   public Parser withSource(String thisSource) {
     return new Parser(thisSource, reader, functions, resolver, modules,
-                      objectFilter);
+                      objectFilter, compilationThreshold, maxRecursionDepth,
+                      memoizationSize, regexpCache);
   }
 
   /**
@@ -170,7 +182,8 @@ public class Parser {
    */
   public Parser withFunctions(Collection<Function> theseFunctions) {
     return new Parser(source, reader, theseFunctions, resolver, modules,
-                      objectFilter);
+                      objectFilter, compilationThreshold, maxRecursionDepth,
+                      memoizationSize, regexpCache);
   }
 
   /**
@@ -178,7 +191,8 @@ public class Parser {
    */
   public Parser withResourceResolver(ResourceResolver thisResolver) {
     return new Parser(source, reader, functions, thisResolver, modules,
-                      objectFilter);
+                      objectFilter, compilationThreshold, maxRecursionDepth,
+                      memoizationSize, regexpCache);
   }
 
   /**
@@ -189,7 +203,8 @@ public class Parser {
    */
   public Parser withNamedModules(Map<String, Module> thisModules) {
     return new Parser(source, reader, functions, resolver, thisModules,
-                      objectFilter);
+                      objectFilter, compilationThreshold, maxRecursionDepth,
+                      memoizationSize, regexpCache);
   }
 
   /**
@@ -201,7 +216,8 @@ public class Parser {
   public Parser withObjectFilter(String filter) {
     Expression parsedFilter = Parser.compileString(filter);
     return new Parser(source, reader, functions, resolver, modules,
-                      new JsltJsonFilter(parsedFilter));
+                      new JsltJsonFilter(parsedFilter), compilationThreshold,
+                      maxRecursionDepth, memoizationSize, regexpCache);
   }
 
   /**
@@ -212,7 +228,86 @@ public class Parser {
    */
   public Parser withObjectFilter(JsonFilter filter) {
     return new Parser(source, reader, functions, resolver, modules,
-                      filter);
+                      filter, compilationThreshold, maxRecursionDepth,
+                      memoizationSize, regexpCache);
+  }
+
+  /**
+   * Create a new Parser that compiles expressions to JVM bytecode
+   * instead of evaluating them by walking the expression tree. The
+   * results are the same, but evaluation is faster, at the cost of
+   * slower compilation. Defaults to false.
+   */
+  public Parser withCompilation(boolean compile) {
+    return new Parser(source, reader, functions, resolver, modules,
+                      objectFilter, compile ? 0 : -1, maxRecursionDepth,
+                      memoizationSize, regexpCache);
+  }
+
+  /**
+   * Create a new Parser where expressions start out being
+   * interpreted, and are compiled to JVM bytecode in the background
+   * once they have been applied the given number of times. That way
+   * expressions that are rarely used don't pay the cost of
+   * compilation. A threshold of 0 means compile at once, just like
+   * withCompilation(true).
+   */
+  public Parser withCompilationThreshold(int invocations) {
+    if (invocations < 0)
+      throw new JsltException("Compilation threshold cannot be negative: " +
+                              invocations);
+    return new Parser(source, reader, functions, resolver, modules,
+                      objectFilter, invocations, maxRecursionDepth,
+                      memoizationSize, regexpCache);
+  }
+
+  /**
+   * Create a new Parser where declared functions can only call
+   * themselves and each other this many levels deep. Going deeper
+   * fails the evaluation with a JsltException. Calls a function makes
+   * to itself as its very last step don't count, since they are
+   * turned into loops. Defaults to no limit, but evaluation that
+   * runs out of Java stack fails with a JsltException all the same.
+   */
+  public Parser withMaxRecursionDepth(int depth) {
+    if (depth < 1)
+      throw new JsltException("Max recursion depth must be at least 1: " +
+                              depth);
+    return new Parser(source, reader, functions, resolver, modules,
+                      objectFilter, compilationThreshold, depth,
+                      memoizationSize, regexpCache);
+  }
+
+  /**
+   * Create a new Parser that caches the results of declared functions
+   * whose value depends only on their arguments, remembering up to
+   * the given number of results per function. Functions that read the
+   * input, variables that depend on the input or are passed in from
+   * outside, or that call functions which aren't pure, are never
+   * cached. Defaults to 0, which means no caching.
+   */
+  public Parser withMemoization(int cacheSize) {
+    if (cacheSize < 0)
+      throw new JsltException("Memoization cache size cannot be negative: " +
+                              cacheSize);
+    return new Parser(source, reader, functions, resolver, modules,
+                      objectFilter, compilationThreshold, maxRecursionDepth,
+                      cacheSize, regexpCache);
+  }
+
+  /**
+   * Create a new Parser where the regexp functions, like test() and
+   * capture(), keep their compiled regexps in the given cache. A
+   * cache can be shared between parsers, and its counters show how
+   * well it works. By default all parsers share one cache of 1000
+   * regexps.
+   */
+  public Parser withRegexpCache(RegexpCache cache) {
+    if (cache == null)
+      throw new JsltException("Regexp cache cannot be null");
+    return new Parser(source, reader, functions, resolver, modules,
+                      objectFilter, compilationThreshold, maxRecursionDepth,
+                      memoizationSize, cache);
   }
 
   /**
@@ -222,7 +317,9 @@ public class Parser {
     ParseContext ctx = new ParseContext(functions, source, resolver, modules,
                                         new ArrayList(),
                                         new PreparationContext(),
-                                        objectFilter);
+                                        objectFilter, compilationThreshold,
+                                        maxRecursionDepth, memoizationSize,
+                                        regexpCache);
     return ParserImpl.compileExpression(ctx, new JsltParser(reader));
   }
 }
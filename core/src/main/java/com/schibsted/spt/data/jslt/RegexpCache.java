@@ -0,0 +1,50 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.schibsted.spt.data.jslt;
+
+import java.util.regex.Pattern;
+import com.schibsted.spt.data.jslt.impl.StripedRegexpCache;
+
+/**
+ * A cache of compiled regular expressions, used by the regexp
+ * functions like test() and capture(). Caches are thread safe, and
+ * can be shared between parsers with
+ * {@link Parser#withRegexpCache(RegexpCache)}.
+ *
+ * <p>Unless a parser is given a cache of its own, all expressions
+ * use {@link #SHARED}.
+ */
+public interface RegexpCache extends CacheStatistics {
+
+  /**
+   * The cache used by default, which holds 1000 regexps.
+   */
+  public static final RegexpCache SHARED = create(1000);
+
+  /**
+   * Returns the compiled regexp, compiling it if it isn't in the
+   * cache. Throws JsltException if the regexp has a syntax error.
+   */
+  public Pattern getPattern(String regexp);
+
+  /**
+   * Makes a new cache that keeps the given number of regexps,
+   * removing the least recently used ones to make room for more.
+   */
+  public static RegexpCache create(int maxSize) {
+    return new StripedRegexpCache(maxSize);
+  }
+
+}
@@ -16,10 +16,25 @@
 package com.schibsted.spt.data.jslt.impl;
 
 import com.schibsted.spt.data.jslt.Function;
+import com.schibsted.spt.data.jslt.FunctionTraits;
 
 public abstract class AbstractFunction extends AbstractCallable implements Function {
+  private FunctionTraits traits;
 
+  /**
+   * Creates a function JSLT assumes nothing about.
+   */
   public AbstractFunction(String name, int min, int max) {
+    this(name, min, max, FunctionTraits.UNKNOWN);
+  }
+
+  public AbstractFunction(String name, int min, int max,
+                          FunctionTraits traits) {
     super(name, min, max);
+    this.traits = traits;
+  }
+
+  public FunctionTraits getTraits() {
+    return traits;
   }
 }
@@ -42,6 +42,10 @@ public abstract class AbstractInvocationExpression extends AbstractNode {
   }
 
   // invoked when we know which callable it's going to be
+  public ExpressionNode[] getArguments() {
+    return arguments;
+  }
+
   public void resolve(Callable callable) {
     this.callable = callable;
     if (arguments.length < callable.getMinArguments() ||
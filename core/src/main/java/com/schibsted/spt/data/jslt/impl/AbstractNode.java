@@ -17,6 +17,9 @@ package com.schibsted.spt.data.jslt.impl;
 
 import java.util.List;
 import java.util.Collections;
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 
 public abstract class AbstractNode implements ExpressionNode {
   protected Location location;
@@ -29,6 +32,21 @@ public abstract class AbstractNode implements ExpressionNode {
     return location;
   }
 
+  public boolean test(Scope scope, JsonNode input) {
+    return NodeUtils.isTrue(apply(scope, input));
+  }
+
+  public void write(Scope scope, JsonNode input, JsonGenerator out,
+                    PendingOutput pending) throws IOException {
+    JsonNode value = apply(scope, input);
+    if (pending != null) {
+      if (!NodeUtils.isValue(value))
+        return;
+      pending.flush(out);
+    }
+    NodeUtils.mapper.writeTree(out, value);
+  }
+
   public void dump(int level) {
     System.out.println(NodeUtils.indent(level) + this);
   }
@@ -18,6 +18,7 @@ package com.schibsted.spt.data.jslt.impl;
 import java.util.List;
 import java.util.ArrayList;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.schibsted.spt.data.jslt.JsltException;
 
 /**
  * Shared abstract superclass for comparison operators and others.
@@ -53,10 +54,15 @@ public abstract class AbstractOperator extends AbstractNode {
 
     // if the two operands are literals we can just evaluate the
     // result right now and be done with it
-    if (left instanceof LiteralExpression && right instanceof LiteralExpression)
-      return new LiteralExpression(apply(null, null), location);
-    else
-      return this;
+    if (left instanceof LiteralExpression && right instanceof LiteralExpression) {
+      try {
+        return new LiteralExpression(apply(null, null), location);
+      } catch (JsltException e) {
+        // the operands may be folded function calls in code that is
+        // never evaluated, so leave it to fail at runtime
+      }
+    }
+    return this;
   }
 
   public void computeMatchContexts(DotExpression parent) {
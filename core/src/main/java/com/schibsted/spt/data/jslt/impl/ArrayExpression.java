@@ -17,6 +17,8 @@ package com.schibsted.spt.data.jslt.impl;
 
 import java.util.List;
 import java.util.Arrays;
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 
@@ -35,6 +37,18 @@ public class ArrayExpression extends AbstractNode {
     return array;
   }
 
+  public void write(Scope scope, JsonNode input, JsonGenerator out,
+                    PendingOutput pending) throws IOException {
+    // there is at least one element, so the array is never empty
+    if (pending != null)
+      pending.flush(out);
+
+    out.writeStartArray();
+    for (int ix = 0; ix < children.length; ix++)
+      children[ix].write(scope, input, out, null);
+    out.writeEndArray();
+  }
+
   public void computeMatchContexts(DotExpression parent) {
     FailDotExpression fail = new FailDotExpression(location, "array");
     for (int ix = 0; ix < children.length; ix++)
@@ -113,9 +113,59 @@ public class ArraySlicer extends AbstractNode {
       this.right = right.optimize();
 
     this.parent = parent.optimize();
+
+    // indexing a literal with literals always gives the same value
+    if (parent instanceof LiteralExpression && isLiteral(left) &&
+        isLiteral(right)) {
+      try {
+        return new LiteralExpression(apply(null, NullNode.instance), location);
+      } catch (JsltException e) {
+        // leave it to fail when the expression is applied
+      }
+    }
+
+    // constant indexes can be folded into a path with the parent
+    if (isConstantIndex()) {
+      PathExpression path = PathExpression.extend(
+        parent, null, getConstantIndex(), location
+      );
+      if (path != null)
+        return path;
+    }
     return this;
   }
 
+  public ExpressionNode getLeft() {
+    return left;
+  }
+
+  public ExpressionNode getRight() {
+    return right;
+  }
+
+  public boolean isSlice() {
+    return colon;
+  }
+
+  public ExpressionNode getParent() {
+    return parent;
+  }
+
+  // true if this is [n], where n is a literal number
+  private static boolean isLiteral(ExpressionNode node) {
+    return node == null || node instanceof LiteralExpression;
+  }
+
+  public boolean isConstantIndex() {
+    return !colon && right == null &&
+      left instanceof LiteralExpression &&
+      ((LiteralExpression) left).getValue().isNumber();
+  }
+
+  public int getConstantIndex() {
+    return ((LiteralExpression) left).getValue().intValue();
+  }
+
   public void dump(int level) {
     if (parent != null)
       parent.dump(level);
@@ -19,33 +19,15 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
-import java.util.SimpleTimeZone;
-import java.util.TimeZone;
-import java.util.TreeSet;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.MapperFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.BooleanNode;
 import com.fasterxml.jackson.databind.node.DoubleNode;
@@ -56,6 +38,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.schibsted.spt.data.jslt.Function;
 import com.schibsted.spt.data.jslt.JsltException;
+import com.schibsted.spt.data.jslt.RegexpCache;
+import com.schibsted.spt.data.jslt.FunctionTraits;
 
 
 /**
@@ -64,6 +48,12 @@ import com.schibsted.spt.data.jslt.JsltException;
  * capture a lot of this information instead.
  */
 public class BuiltinFunctions {
+  // traits of the builtins
+  private static final FunctionTraits PURE = FunctionTraits.PURE;
+  private static final FunctionTraits NOT_DETERMINISTIC =
+    FunctionTraits.PURE.withDeterministic(false);
+  private static final FunctionTraits MODERATE =
+    FunctionTraits.PURE.withCost(FunctionTraits.Cost.MODERATE);
 
   // this will be replaced with a proper Context. need to figure out
   // relationship between compile-time and run-time context first.
@@ -152,7 +142,7 @@ public class BuiltinFunctions {
   public static class Number extends AbstractFunction {
 
     public Number() {
-      super("number", 1, 2);
+      super("number", 1, 2, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -168,7 +158,7 @@ public class BuiltinFunctions {
   public static class Round extends AbstractFunction {
 
     public Round() {
-      super("round", 1, 1);
+      super("round", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -187,7 +177,7 @@ public class BuiltinFunctions {
   public static class Floor extends AbstractFunction {
 
     public Floor() {
-      super("floor", 1, 1);
+      super("floor", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -206,7 +196,7 @@ public class BuiltinFunctions {
   public static class Ceiling extends AbstractFunction {
 
     public Ceiling() {
-      super("ceiling", 1, 1);
+      super("ceiling", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -226,7 +216,7 @@ public class BuiltinFunctions {
     private static java.util.Random random = new java.util.Random();
 
     public Random() {
-      super("random", 0, 0);
+      super("random", 0, 0, NOT_DETERMINISTIC);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -239,7 +229,7 @@ public class BuiltinFunctions {
   public static class Sum extends AbstractFunction {
 
     public Sum() {
-      super("sum", 1, 1);
+      super("sum", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -271,7 +261,7 @@ public class BuiltinFunctions {
   public static class Modulo extends AbstractFunction {
 
     public Modulo() {
-      super("modulo", 2, 2);
+      super("modulo", 2, 2, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -312,29 +302,20 @@ public class BuiltinFunctions {
 
   public static class HashInt extends AbstractFunction {
 
-    private static ObjectMapper mapper = JsonMapper.builder()
-            .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
-            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
-            .build()
-            ;
-    private static ObjectWriter writer = mapper.writer();
-
     public HashInt() {
-      super("hash-int", 1, 1);
+      super("hash-int", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
       JsonNode node = arguments[0];
       if (node.isNull())
         return NullNode.instance;
-      try {
-        // https://stackoverflow.com/a/18993481/90580
-        final Object obj = mapper.treeToValue(node, Object.class);
-        String jsonString = writer.writeValueAsString(obj);
-        return new IntNode(jsonString.hashCode());
-      } catch (JsonProcessingException e) {
-        throw new JsltException("hash-int: can't process json" + e);
-      }
+
+      // same as the hash code of the JSON text with sorted keys, but
+      // without making the text
+      JsonHasher.StringHash hash = new JsonHasher.StringHash();
+      hash.writeValue(node);
+      return new IntNode(hash.getHash());
     }
   }
 
@@ -355,7 +336,7 @@ public class BuiltinFunctions {
       if (regexp == null)
         throw new JsltException("test() can't test null regexp");
 
-      Pattern p = getRegexp(regexp);
+      Pattern p = getRegexpCache().getPattern(regexp);
       java.util.regex.Matcher m = p.matcher(string);
       return NodeUtils.toJson(m.find(0));
     }
@@ -369,8 +350,6 @@ public class BuiltinFunctions {
   // parse the regexps. (lots of swearing omitted.)
 
   public static class Capture extends AbstractRegexpFunction {
-    static Map<String, JstlPattern> cache = new BoundedCache(1000);
-
     public Capture() {
       super("capture", 2, 2);
     }
@@ -385,11 +364,7 @@ public class BuiltinFunctions {
       if (regexps == null)
         throw new JsltException("capture() can't match against null regexp");
 
-      JstlPattern regex = cache.get(regexps);
-      if (regex == null) {
-        regex = new JstlPattern(regexps);
-        cache.put(regexps, regex);
-      }
+      JstlPattern regex = JstlPattern.lookup(getRegexpCache(), regexps);
 
       ObjectNode node = NodeUtils.mapper.createObjectNode();
       Matcher m = regex.matcher(string);
@@ -407,49 +382,35 @@ public class BuiltinFunctions {
     }
   }
 
-  // from https://stackoverflow.com/a/15588989/5974641
-  private static class JstlPattern {
-    private Pattern pattern;
-    private Set<String> groups;
-
-    public JstlPattern(String regexp) {
-      this.pattern = Pattern.compile(regexp);
-      this.groups = getNamedGroups(regexp);
-    }
-
-    public Matcher matcher(String input) {
-      return pattern.matcher(input);
-    }
-
-    public Set<String> getGroups() {
-      return groups;
-    }
-
-    private static Pattern extractor =
-      Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
-
-    private static Set<String> getNamedGroups(String regex) {
-      Set<String> groups = new TreeSet<String>();
-
-      Matcher m = extractor.matcher(regex);
-      while (m.find())
-        groups.add(m.group(1));
-
-      return groups;
-    }
-  }
-
   // ===== SPLIT
 
   private static abstract class AbstractRegexpFunction extends AbstractFunction
-      implements RegexpFunction {
+      implements RegexpFunction, Cloneable {
+      private RegexpCache cache = RegexpCache.SHARED;
+
       AbstractRegexpFunction(String name, int min, int max) {
-          super(name, min, max);
+          super(name, min, max, MODERATE);
       }
 
       public int regexpArgumentNumber() {
           return 1;
       }
+
+      public RegexpCache getRegexpCache() {
+          return cache;
+      }
+
+      public RegexpFunction withRegexpCache(RegexpCache cache) {
+          if (cache == this.cache)
+              return this;
+          try {
+              AbstractRegexpFunction copy = (AbstractRegexpFunction) clone();
+              copy.cache = cache;
+              return copy;
+          } catch (CloneNotSupportedException e) {
+              throw new JsltException("INTERNAL ERROR: Can't copy " + getName(), e);
+          }
+      }
   }
 
   public static class Split extends AbstractRegexpFunction {
@@ -468,7 +429,7 @@ public class BuiltinFunctions {
       if (split == null)
         throw new JsltException("split() can't split on null");
 
-      return NodeUtils.toJson(string.split(split));
+      return NodeUtils.toJson(getRegexpCache().getPattern(split).split(string));
     }
   }
 
@@ -477,7 +438,7 @@ public class BuiltinFunctions {
   public static class Lowercase extends AbstractFunction {
 
     public Lowercase() {
-      super("lowercase", 1, 1);
+      super("lowercase", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -495,7 +456,7 @@ public class BuiltinFunctions {
   public static class Uppercase extends AbstractFunction {
 
     public Uppercase() {
-      super("uppercase", 1, 1);
+      super("uppercase", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -513,7 +474,7 @@ public class BuiltinFunctions {
   public static class Sha256 extends AbstractFunction {
 
     public Sha256() {
-      super("sha256-hex", 1, 1);
+      super("sha256-hex", 1, 1, MODERATE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -521,16 +482,13 @@ public class BuiltinFunctions {
       if (arguments[0].isNull())
         return arguments[0]; // null
 
-      String message = NodeUtils.toString(arguments[0], false);
-
-      MessageDigest messageDigest;
-      try {
-        messageDigest = MessageDigest.getInstance("SHA-256");
-      } catch (NoSuchAlgorithmException e) {
-        throw new JsltException("sha256-hex: could not find sha256 algorithm " + e);
-      }
-
-      byte[] bytes = messageDigest.digest(message.getBytes(UTF_8));
+      // strings are hashed as they are, anything else as JSON
+      JsonHasher.Sha256 digest = JsonHasher.Sha256.get();
+      byte[] bytes;
+      if (arguments[0].isTextual())
+        bytes = digest.digestText(arguments[0].textValue());
+      else
+        bytes = digest.digestValue(arguments[0]);
       String string = Utils.printHexBinary(bytes);
 
       return new TextNode(string);
@@ -542,7 +500,7 @@ public class BuiltinFunctions {
   public static class Not extends AbstractFunction {
 
     public Not() {
-      super("not", 1, 1);
+      super("not", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -555,7 +513,7 @@ public class BuiltinFunctions {
   public static class Boolean extends AbstractFunction {
 
     public Boolean() {
-      super("boolean", 1, 1);
+      super("boolean", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -568,7 +526,7 @@ public class BuiltinFunctions {
   public static class IsBoolean extends AbstractFunction {
 
     public IsBoolean() {
-      super("is-boolean", 1, 1);
+      super("is-boolean", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -604,7 +562,7 @@ public class BuiltinFunctions {
   public static class IsObject extends AbstractFunction {
 
     public IsObject() {
-      super("is-object", 1, 1);
+      super("is-object", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -617,7 +575,7 @@ public class BuiltinFunctions {
   public static class GetKey extends AbstractFunction {
 
     public GetKey() {
-      super("get-key", 2, 3);
+      super("get-key", 2, 3, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -647,7 +605,7 @@ public class BuiltinFunctions {
   public static class IsArray extends AbstractFunction {
 
     public IsArray() {
-      super("is-array", 1, 1);
+      super("is-array", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -660,7 +618,7 @@ public class BuiltinFunctions {
   public static class Array extends AbstractFunction {
 
     public Array() {
-      super("array", 1, 1);
+      super("array", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -679,7 +637,7 @@ public class BuiltinFunctions {
   public static class Flatten extends AbstractFunction {
 
     public Flatten() {
-      super("flatten", 1, 1);
+      super("flatten", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -710,7 +668,7 @@ public class BuiltinFunctions {
   public static class All extends AbstractFunction {
 
     public All() {
-      super("all", 1, 1);
+      super("all", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -735,7 +693,7 @@ public class BuiltinFunctions {
   public static class Any extends AbstractFunction {
 
     public Any() {
-      super("any", 1, 1);
+      super("any", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -760,7 +718,7 @@ public class BuiltinFunctions {
   public static class Zip extends AbstractFunction {
 
     public Zip() {
-      super("zip", 2, 2);
+      super("zip", 2, 2, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -790,7 +748,7 @@ public class BuiltinFunctions {
   public static class ZipWithIndex extends AbstractFunction {
 
     public ZipWithIndex() {
-      super("zip-with-index", 1, 1);
+      super("zip-with-index", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -817,7 +775,7 @@ public class BuiltinFunctions {
   public static class IndexOf extends AbstractFunction {
 
     public IndexOf() {
-      super("index-of", 2, 2);
+      super("index-of", 2, 2, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -842,7 +800,7 @@ public class BuiltinFunctions {
   public static class StartsWith extends AbstractFunction {
 
     public StartsWith() {
-      super("starts-with", 2, 2);
+      super("starts-with", 2, 2, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -857,7 +815,7 @@ public class BuiltinFunctions {
   public static class EndsWith extends AbstractFunction {
 
     public EndsWith() {
-      super("ends-with", 2, 2);
+      super("ends-with", 2, 2, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -872,7 +830,7 @@ public class BuiltinFunctions {
   public static class FromJson extends AbstractFunction {
 
     public FromJson() {
-      super("from-json", 1, 2);
+      super("from-json", 1, 2, MODERATE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -899,7 +857,7 @@ public class BuiltinFunctions {
   public static class ToJson extends AbstractFunction {
 
     public ToJson() {
-      super("to-json", 1, 1);
+      super("to-json", 1, 1, MODERATE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -928,7 +886,7 @@ public class BuiltinFunctions {
       String regexp = NodeUtils.toString(arguments[1], false);
       String sep = NodeUtils.toString(arguments[2], false);
 
-      Pattern p = getRegexp(regexp);
+      Pattern p = getRegexpCache().getPattern(regexp);
       Matcher m = p.matcher(string);
       char[] buf = new char[string.length() * Math.max(sep.length(), 1)];
       int pos = 0; // next untouched character in input
@@ -966,7 +924,7 @@ public class BuiltinFunctions {
   public static class Trim extends AbstractFunction {
 
     public Trim() {
-      super("trim", 1, 1);
+      super("trim", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -983,7 +941,7 @@ public class BuiltinFunctions {
   public static class Uuid extends AbstractFunction {
 
     public Uuid() {
-      super("uuid", 0, 2);
+      super("uuid", 0, 2, NOT_DETERMINISTIC);
     }
 
     private long maskMSB(long number) {
@@ -1025,7 +983,7 @@ public class BuiltinFunctions {
   public static class Join extends AbstractFunction {
 
     public Join() {
-      super("join", 2, 2);
+      super("join", 2, 2, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1050,7 +1008,7 @@ public class BuiltinFunctions {
   public static class Contains extends AbstractFunction {
 
     public Contains() {
-      super("contains", 2, 2);
+      super("contains", 2, 2, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1089,7 +1047,7 @@ public class BuiltinFunctions {
   public static class Size extends AbstractFunction {
 
     public Size() {
-      super("size", 1, 1);
+      super("size", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1112,7 +1070,7 @@ public class BuiltinFunctions {
   public static class Error extends AbstractFunction {
 
     public Error() {
-      super("error", 1, 1);
+      super("error", 1, 1, FunctionTraits.PURE.withSideEffectFree(false));
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1126,7 +1084,7 @@ public class BuiltinFunctions {
   public static class ToString extends AbstractFunction {
 
     public ToString() {
-      super("string", 1, 1);
+      super("string", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1142,7 +1100,7 @@ public class BuiltinFunctions {
   public static class IsString extends AbstractFunction {
 
     public IsString() {
-      super("is-string", 1, 1);
+      super("is-string", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1155,7 +1113,7 @@ public class BuiltinFunctions {
   public static class IsNumber extends AbstractFunction {
 
     public IsNumber() {
-      super("is-number", 1, 1);
+      super("is-number", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1168,7 +1126,7 @@ public class BuiltinFunctions {
   public static class IsInteger extends AbstractFunction {
 
     public IsInteger() {
-      super("is-integer", 1, 1);
+      super("is-integer", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1181,7 +1139,7 @@ public class BuiltinFunctions {
   public static class IsDecimal extends AbstractFunction {
 
     public IsDecimal() {
-      super("is-decimal", 1, 1);
+      super("is-decimal", 1, 1, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1194,7 +1152,7 @@ public class BuiltinFunctions {
   public static class Now extends AbstractFunction {
 
     public Now() {
-      super("now", 0, 0);
+      super("now", 0, 0, NOT_DETERMINISTIC);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1206,9 +1164,15 @@ public class BuiltinFunctions {
   // ===== PARSE-TIME
 
   public static class ParseTime extends AbstractFunction {
+    private TimeFormat format; // null unless the format is a literal
 
     public ParseTime() {
-      super("parse-time", 2, 3);
+      this(null);
+    }
+
+    public ParseTime(TimeFormat format) {
+      super("parse-time", 2, 3, MODERATE);
+      this.format = format;
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1216,23 +1180,18 @@ public class BuiltinFunctions {
       if (text == null)
         return NullNode.instance;
 
-      String formatstr = NodeUtils.toString(arguments[1], false);
+      TimeFormat format = this.format;
+      if (format == null) {
+        String formatstr = NodeUtils.toString(arguments[1], false);
+        format = TimeFormat.get("parse-time", formatstr, null);
+      }
       JsonNode fallback = null;
       if (arguments.length > 2)
         fallback = arguments[2];
 
-      // the performance of this could be better, but it's not so easy
-      // to fix that when SimpleDateFormat isn't thread-safe, so we
-      // can't safely share it between threads
-
       try {
-        SimpleDateFormat format = new SimpleDateFormat(formatstr);
-        format.setTimeZone(new SimpleTimeZone(0, "UTC"));
         Date time = format.parse(text);
         return NodeUtils.toJson((double) (time.getTime() / 1000.0));
-      } catch (IllegalArgumentException e) {
-        // thrown if format is bad
-        throw new JsltException("parse-time: Couldn't parse format '" + formatstr + "': " + e.getMessage());
       } catch (ParseException e) {
         if (fallback == null)
           throw new JsltException("parse-time: " + e.getMessage());
@@ -1245,13 +1204,15 @@ public class BuiltinFunctions {
   // ===== FORMAT-TIME
 
   public static class FormatTime extends AbstractFunction {
-    static Set<String> zonenames = new HashSet();
-    static {
-      zonenames.addAll(Arrays.asList(TimeZone.getAvailableIDs()));
-    }
+    private TimeFormat format; // null unless format and zone are literals
 
     public FormatTime() {
-      super("format-time", 2, 3);
+      this(null);
+    }
+
+    public FormatTime(TimeFormat format) {
+      super("format-time", 2, 3, MODERATE);
+      this.format = format;
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1261,29 +1222,16 @@ public class BuiltinFunctions {
 
       double timestamp = number.asDouble();
 
-      String formatstr = NodeUtils.toString(arguments[1], false);
-
-      TimeZone zone = new SimpleTimeZone(0, "UTC");
-      if (arguments.length == 3) {
-        String zonename = NodeUtils.toString(arguments[2], false);
-        if (!zonenames.contains(zonename))
-          throw new JsltException("format-time: Unknown timezone " + zonename);
-        zone = TimeZone.getTimeZone(zonename);
+      TimeFormat format = this.format;
+      if (format == null) {
+        String formatstr = NodeUtils.toString(arguments[1], false);
+        String zonename = null;
+        if (arguments.length == 3)
+          zonename = NodeUtils.toString(arguments[2], false);
+        format = TimeFormat.get("format-time", formatstr, zonename);
       }
 
-      // the performance of this could be better, but it's not so easy
-      // to fix that when SimpleDateFormat isn't thread-safe, so we
-      // can't safely share it between threads
-
-      try {
-        SimpleDateFormat format = new SimpleDateFormat(formatstr);
-        format.setTimeZone(zone);
-        String formatted = format.format(Math.round(timestamp * 1000));
-        return new TextNode(formatted);
-      } catch (IllegalArgumentException e) {
-        // thrown if format is bad
-        throw new JsltException("format-time: Couldn't parse format '" + formatstr + "': " + e.getMessage());
-      }
+      return new TextNode(format.format(Math.round(timestamp * 1000)));
     }
   }
 
@@ -1291,7 +1239,7 @@ public class BuiltinFunctions {
 
   public static class Min extends AbstractFunction {
     public Min() {
-      super("min", 2, 2);
+      super("min", 2, 2, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1307,7 +1255,7 @@ public class BuiltinFunctions {
 
   public static class Max extends AbstractFunction {
     public Max() {
-      super("max", 2, 2);
+      super("max", 2, 2, PURE);
     }
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
@@ -1323,7 +1271,7 @@ public class BuiltinFunctions {
   // ===== PARSE-URL
 
   public static class ParseUrl extends AbstractFunction {
-    public ParseUrl() { super("parse-url", 1,1);}
+    public ParseUrl() { super("parse-url", 1,1, MODERATE);}
 
     public JsonNode call(JsonNode input, JsonNode[] arguments) {
       if (arguments[0].isNull())
@@ -1369,22 +1317,6 @@ public class BuiltinFunctions {
 
   // ===== HELPER METHODS
 
-  // shared regexp cache
-  static Map<String, Pattern> cache = new BoundedCache(1000);
-
-  synchronized static Pattern getRegexp(String regexp) {
-    Pattern p = cache.get(regexp);
-    if (p == null) {
-      try {
-        p = Pattern.compile(regexp);
-      } catch (PatternSyntaxException e) {
-        throw new JsltException("Syntax error in regular expression '" + regexp + "'", e);
-      }
-      cache.put(regexp, p);
-    }
-    return p;
-  }
-
   private static int copy(String input, char[] buf, int bufix,
                           int from, int to) {
     for (int ix = from; ix < to; ix++)
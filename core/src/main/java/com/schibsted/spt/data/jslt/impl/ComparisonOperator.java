@@ -25,7 +25,45 @@ public abstract class ComparisonOperator extends AbstractOperator {
     super(left, right, operator, location);
   }
 
-  public abstract JsonNode perform(JsonNode v1, JsonNode v2);
+  // true if one operand is arithmetic that can be evaluated without
+  // creating JsonNode objects, and the other is cheap to evaluate
+  private boolean primitive;
+
+  public JsonNode perform(JsonNode v1, JsonNode v2) {
+    return NodeUtils.toJson(holds(compare(v1, v2)));
+  }
+
+  public boolean test(Scope scope, JsonNode input) {
+    if (primitive) {
+      double v1 = NumericOperator.applyDouble(left, scope, input);
+      if (!Double.isNaN(v1)) {
+        double v2 = NumericOperator.applyDouble(right, scope, input);
+        if (!Double.isNaN(v2))
+          return holds(v1 - v2);
+      }
+      // not plain numbers, so start over. that's OK, because the
+      // operands are cheap and have no side effects
+    }
+    return holds(compare(left.apply(scope, input), right.apply(scope, input)));
+  }
+
+  /**
+   * Is the comparison true, given the result of compare()?
+   */
+  protected abstract boolean holds(double comparison);
+
+  public ExpressionNode optimize() {
+    ExpressionNode optimized = super.optimize();
+    primitive = (left instanceof NumericOperator ||
+                 right instanceof NumericOperator) &&
+      NumericOperator.isPrimitive(left) &&
+      NumericOperator.isPrimitive(right);
+    return optimized;
+  }
+
+  public boolean isPrimitive() {
+    return primitive;
+  }
 
   public double compare(JsonNode v1, JsonNode v2) {
     return compare(v1, v2, location);
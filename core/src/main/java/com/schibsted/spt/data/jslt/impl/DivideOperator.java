@@ -54,6 +54,12 @@ public class DivideOperator extends NumericOperator {
     return v1 / v2;
   }
 
+  protected long performLong(long v1, long v2) {
+    if (v1 % v2 != 0)
+      return NO_LONG; // result is not an integer
+    return v1 / v2;
+  }
+
   // can't use this, because the integers are not closed under division
   protected long perform(long v1, long v2) {
     return v1 / v2; // uhh ... ?
@@ -34,6 +34,14 @@ public class DotExpression extends AbstractNode {
     this.parent = parent;
   }
 
+  public String getKey() {
+    return key;
+  }
+
+  public ExpressionNode getParent() {
+    return parent;
+  }
+
   public JsonNode apply(Scope scope, JsonNode input) {
     // if there is no key we just return the input
     if (key == null)
@@ -79,8 +87,23 @@ public class DotExpression extends AbstractNode {
   }
 
   public ExpressionNode optimize() {
-    if (parent != null)
-      parent = parent.optimize();
+    if (parent == null)
+      return this;
+
+    parent = parent.optimize();
+    // FailDotExpression must stay, to produce its error
+    if (getClass() != DotExpression.class)
+      return this;
+
+    // looking up a key in a literal always gives the same value
+    if (parent instanceof LiteralExpression)
+      return new LiteralExpression(apply(null, NullNode.instance), location);
+
+    if (key != null) {
+      PathExpression path = PathExpression.extend(parent, key, 0, location);
+      if (path != null)
+        return path;
+    }
     return this;
   }
 }
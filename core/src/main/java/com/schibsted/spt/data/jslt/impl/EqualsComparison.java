@@ -28,6 +28,10 @@ public class EqualsComparison extends AbstractOperator {
     return NodeUtils.toJson(equals(v1, v2));
   }
 
+  public boolean test(Scope scope, JsonNode input) {
+    return equals(left.apply(scope, input), right.apply(scope, input));
+  }
+
   public static boolean equals(JsonNode v1, JsonNode v2) {
     boolean result;
     if (v1.isNumber() && v2.isNumber()) {
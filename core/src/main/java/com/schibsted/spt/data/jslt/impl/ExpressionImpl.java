@@ -16,15 +16,31 @@
 package com.schibsted.spt.data.jslt.impl;
 
 import java.util.Map;
+import java.util.Set;
 import java.util.List;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.function.Consumer;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.BooleanNode;
 import com.schibsted.spt.data.jslt.Function;
 import com.schibsted.spt.data.jslt.Expression;
+import com.schibsted.spt.data.jslt.InputPaths;
+import com.schibsted.spt.data.jslt.CacheStatistics;
+import com.schibsted.spt.data.jslt.JsltException;
+import com.schibsted.spt.data.jslt.ParameterBinder;
+import com.schibsted.spt.data.jslt.impl.compiler.ExpressionCompiler;
+import com.schibsted.spt.data.jslt.impl.compiler.BackgroundCompiler;
 
 /**
  * Wrapper class that translates an external Expression to an
@@ -36,11 +52,28 @@ public class ExpressionImpl implements Expression {
   private ExpressionNode actual;
   private int stackFrameSize;
   private JstlFile[] fileModules;
+  private volatile ExpressionNode compiled; // lets and actual as bytecode
+
+  // tiered compilation: the expression is interpreted until it has
+  // been applied this many times, then compiled in the background.
+  // -1 means no (more) compilation
+  private int compilationThreshold = -1;
+  private AtomicInteger invocations;
+  private volatile InputPaths inputPaths; // computed when first needed
+  // the lets that can't be hoisted out of a batch. computed when needed
+  private volatile LetExpression[] variantLets;
 
   // contains the mapping from external parameters (variables set from
   // outside at query-time) to slots, so that we can put the
   // parameters into the scope when evaluating the query
   private Map<String, Integer> parameterSlots;
+  // values of external parameters known when compiling
+  private Map<String, JsonNode> knownParameters;
+  private Specializer specializer; // null for modules
+  // the body, if it's a call to a BatchFunction. see applyAll
+  private FunctionExpression batchCall;
+  // how many inputs applyAll collects for each batch call
+  private static final int BATCH_SIZE = 1000;
 
   public ExpressionImpl(LetExpression[] lets, Map<String, Function> functions,
                         ExpressionNode actual) {
@@ -64,13 +97,57 @@ public class ExpressionImpl implements Expression {
     return actual != null;
   }
 
+  public LetExpression[] getLets() {
+    return lets;
+  }
+
+  public ExpressionNode getBody() {
+    return actual;
+  }
+
   public JsonNode apply(Map<String, JsonNode> variables, JsonNode input) {
     Scope scope = Scope.makeScope(variables, stackFrameSize, parameterSlots);
-    return apply(scope, input);
+    try {
+      return apply(scope, input);
+    } finally {
+      scope.release();
+    }
+  }
+
+  public ParameterBinder getParameterBinder(String... names) {
+    final int[] slots = new int[names.length];
+    for (int ix = 0; ix < names.length; ix++) {
+      Integer slot = parameterSlots.get(names[ix]);
+      slots[ix] = slot == null ? -1 : slot;
+    }
+
+    return new ParameterBinder() {
+      public int size() {
+        return slots.length;
+      }
+
+      public JsonNode apply(JsonNode[] values, JsonNode input) {
+        if (values.length != slots.length)
+          throw new JsltException("Expected " + slots.length + " values, " +
+                                  "but got " + values.length);
+
+        Scope scope = Scope.makeScope(slots, values, stackFrameSize);
+        try {
+          return ExpressionImpl.this.apply(scope, input);
+        } finally {
+          scope.release();
+        }
+      }
+    };
   }
 
   public JsonNode apply(JsonNode input) {
-    return apply(Scope.getRoot(stackFrameSize), input);
+    Scope scope = Scope.getRoot(stackFrameSize);
+    try {
+      return apply(scope, input);
+    } finally {
+      scope.release();
+    }
   }
 
   public JsonNode apply(Scope scope, JsonNode input) {
@@ -85,12 +162,164 @@ public class ExpressionImpl implements Expression {
         fileModules[ix].evaluateLetsOnly(scope, input);
     }
 
+    return applyBody(scope, input, lets);
+  }
+
+  public List<JsonNode> applyAll(List<JsonNode> inputs) {
+    return applyAll(Collections.EMPTY_MAP, inputs);
+  }
+
+  public List<JsonNode> applyAll(Map<String, JsonNode> variables,
+                                 List<JsonNode> inputs) {
+    final List<JsonNode> outputs = new ArrayList(inputs.size());
+    applyAll(variables, inputs.iterator(), new Consumer<JsonNode>() {
+        public void accept(JsonNode output) {
+          outputs.add(output);
+        }
+      });
+    return outputs;
+  }
+
+  public void applyAll(Iterator<JsonNode> inputs, Consumer<JsonNode> output) {
+    applyAll(Collections.EMPTY_MAP, inputs, output);
+  }
+
+  public void applyAll(Map<String, JsonNode> variables,
+                       Iterator<JsonNode> inputs, Consumer<JsonNode> output) {
+    // the whole batch shares one scope. the first input evaluates all
+    // the lets, and after that the invariant ones keep their values
+    // in the scope, so only the others need to be evaluated again.
+    // every let has its own slot, so nothing needs to be cleared
+    Scope scope = Scope.makeScope(variables, stackFrameSize, parameterSlots);
+    JsonNode[] batchInputs = null;
+    JsonNode[][] batchArguments = null;
+    int count = 0;
+    if (batchCall != null) {
+      batchInputs = new JsonNode[BATCH_SIZE];
+      batchArguments = new JsonNode[BATCH_SIZE][];
+    }
+
+    try {
+      boolean first = true;
+      while (inputs.hasNext()) {
+        JsonNode input = inputs.next();
+        if (input == null)
+          input = NullNode.instance;
+
+        if (fileModules != null) {
+          for (int ix = 0; ix < fileModules.length; ix++) {
+            if (first)
+              fileModules[ix].evaluateLetsOnly(scope, input);
+            else
+              fileModules[ix].evaluateVariantLetsOnly(scope, input);
+          }
+        }
+
+        LetExpression[] theseLets = first ? lets : getVariantLets();
+        first = false;
+        if (batchCall == null) {
+          output.accept(applyBody(scope, input, theseLets));
+          continue;
+        }
+
+        // collect the arguments, and call the function once per batch
+        NodeUtils.evalLets(scope, input, theseLets);
+        batchInputs[count] = input;
+        batchArguments[count++] = batchCall.evaluateArguments(scope, input);
+        if (count == BATCH_SIZE) {
+          applyBatch(batchInputs, batchArguments, count, output);
+          count = 0;
+        }
+      }
+      if (count > 0)
+        applyBatch(batchInputs, batchArguments, count, output);
+    } finally {
+      scope.release();
+    }
+  }
+
+  private void applyBatch(JsonNode[] inputs, JsonNode[][] arguments,
+                          int count, Consumer<JsonNode> output) {
+    if (count < inputs.length) {
+      inputs = Arrays.copyOf(inputs, count);
+      arguments = Arrays.copyOf(arguments, count);
+    }
+    JsonNode[] values = batchCall.callBatch(inputs, arguments);
+    for (int ix = 0; ix < values.length; ix++)
+      output.accept(values[ix]);
+  }
+
+  private JsonNode applyBody(Scope scope, JsonNode input, LetExpression[] lets) {
+    ExpressionNode code = compiled;
+    if (code != null)
+      return code.apply(scope, input);
+
+    if (compilationThreshold > 0 &&
+        invocations.incrementAndGet() == compilationThreshold)
+      compileInBackground();
+
     // evaluate own lets
     NodeUtils.evalLets(scope, input, lets);
 
     return actual.apply(scope, input);
   }
 
+  public void apply(Map<String, JsonNode> variables, JsonNode input,
+                    JsonGenerator output) {
+    Scope scope = Scope.makeScope(variables, stackFrameSize, parameterSlots);
+    try {
+      write(scope, input, output);
+    } finally {
+      scope.release();
+    }
+  }
+
+  public void apply(JsonNode input, JsonGenerator output) {
+    Scope scope = Scope.getRoot(stackFrameSize);
+    try {
+      write(scope, input, output);
+    } finally {
+      scope.release();
+    }
+  }
+
+  // streaming always goes through the interpreted tree, since the
+  // compiled code only knows how to build JsonNode values
+  private void write(Scope scope, JsonNode input, JsonGenerator output) {
+    if (input == null)
+      input = NullNode.instance;
+
+    if (fileModules != null) {
+      for (int ix = 0; ix < fileModules.length; ix++)
+        fileModules[ix].evaluateLetsOnly(scope, input);
+    }
+
+    NodeUtils.evalLets(scope, input, lets);
+
+    try {
+      actual.write(scope, input, output, null);
+    } catch (IOException e) {
+      throw new JsltException("Couldn't write output: " + e, e);
+    }
+  }
+
+  public InputPaths getInputPaths() {
+    InputPaths paths = inputPaths;
+    if (paths == null) {
+      paths = new InputPathAnalyzer().analyze(this);
+      inputPaths = paths;
+    }
+    return paths;
+  }
+
+  public JsonNode readInput(byte[] input) {
+    return getInputPaths().read(input);
+  }
+
+  public JsonNode readInput(InputStream input) {
+    return getInputPaths().read(input);
+  }
+
   public void dump() {
     for (int ix = 0; ix < lets.length; ix++)
       lets[ix].dump(0);
@@ -107,20 +336,41 @@ public class ExpressionImpl implements Expression {
 
     stackFrameSize = ctx.scope.getStackFrameSize();
     parameterSlots = ctx.scope.getParameterSlots();
+    knownParameters = ctx.scope.getKnownParameters();
     ctx.scope.leaveScope();
   }
 
   /**
    * This is used to initialize global variables when the
-   * ExpressionImpl is a module. Called once during compilation.
-   * The values are then remembered forever.
+   * ExpressionImpl is a module. Called on every evaluation, but the
+   * variables that don't depend on the input were already turned
+   * into literals by optimize(), so only the others are evaluated.
    */
   public void evaluateLetsOnly(Scope scope, JsonNode input) {
     NodeUtils.evalLets(scope, input, lets);
   }
 
+  /**
+   * Evaluates only the lets whose values can change from one input
+   * to the next, when the external parameters are the same.
+   */
+  public void evaluateVariantLetsOnly(Scope scope, JsonNode input) {
+    NodeUtils.evalLets(scope, input, getVariantLets());
+  }
+
+  private LetExpression[] getVariantLets() {
+    LetExpression[] variant = variantLets;
+    if (variant == null) {
+      variant = new InvariantAnalyzer(true).getVariantLets(lets);
+      variantLets = variant;
+    }
+    return variant;
+  }
+
   public void optimize() {
+    evaluateInvariantLets();
     lets = OptimizeUtils.optimizeLets(lets);
+    lets = OptimizeUtils.eliminateLets(lets, actual);
 
     for (Function f : functions.values())
       if ((f instanceof FunctionDeclaration))
@@ -128,6 +378,128 @@ public class ExpressionImpl implements Expression {
 
     if (actual != null)
       actual = actual.optimize();
+
+    batchCall = null;
+    if (actual instanceof FunctionExpression &&
+        ((FunctionExpression) actual).isBatchCall())
+      batchCall = (FunctionExpression) actual;
+  }
+
+  public void setSpecializer(Specializer specializer) {
+    this.specializer = specializer;
+  }
+
+  public Expression specialize(Map<String, JsonNode> knownParameters) {
+    if (specializer == null)
+      throw new JsltException("Only the main expression can be specialized");
+    return specializer.specialize(knownParameters);
+  }
+
+  /**
+   * Makes the declared functions whose value depends only on their
+   * arguments cache their results.
+   */
+  public void memoizeFunctions(int cacheSize) {
+    for (Function f : functions.values())
+      if (f instanceof FunctionDeclaration)
+        ((FunctionDeclaration) f).memoize(cacheSize);
+  }
+
+  public Map<String, CacheStatistics> getMemoizationStatistics() {
+    Map<String, CacheStatistics> statistics = new TreeMap();
+    collectMemoizationStatistics("", statistics);
+    return statistics;
+  }
+
+  private void collectMemoizationStatistics(String prefix,
+                                            Map<String, CacheStatistics> statistics) {
+    for (Map.Entry<String, Function> entry : functions.entrySet()) {
+      Function f = entry.getValue();
+      if (f instanceof FunctionDeclaration) {
+        MemoizationCache cache = ((FunctionDeclaration) f).getMemoizationCache();
+        if (cache != null)
+          statistics.put(prefix + entry.getKey(), cache);
+      } else if (f instanceof JstlFile)
+        ((JstlFile) f).getBody().collectMemoizationStatistics(
+          prefix + entry.getKey() + ":", statistics
+        );
+    }
+  }
+
+  // lets that don't depend on the input or on external parameters
+  // have the same value every time, so we evaluate them once and
+  // make them literals. optimizeLets() then removes them, and the
+  // variables that refer to them inline the values
+  private void evaluateInvariantLets() {
+    InvariantAnalyzer analyzer = new InvariantAnalyzer(false);
+    Scope scope = Scope.makeScope(knownParameters, stackFrameSize,
+                                  parameterSlots);
+    try {
+      for (int ix = 0; ix < lets.length; ix++) {
+        if (lets[ix].getDeclaration() instanceof LiteralExpression ||
+            !analyzer.isInvariant(lets[ix]))
+          continue;
+
+        try {
+          // later lets and functions may need the value
+          JsonNode value = lets[ix].apply(scope, NullNode.instance);
+          scope.setValue(lets[ix].getSlot(), value);
+          lets[ix].setDeclaration(
+            new LiteralExpression(value, lets[ix].getLocation())
+          );
+        } catch (JsltException e) {
+          // leave it to fail when it's evaluated, like before
+        }
+      }
+    } finally {
+      scope.release();
+    }
+  }
+
+  /**
+   * Compiles the expression and the declared functions to bytecode.
+   * Must be called after optimize(). Anything too big to compile is
+   * left to the interpreter.
+   */
+  public void compile() {
+    compilationThreshold = -1;
+    for (Function f : functions.values())
+      if ((f instanceof FunctionDeclaration))
+        ((FunctionDeclaration) f).compile();
+
+    if (actual != null)
+      compiled = ExpressionCompiler.compile(lets, actual);
+  }
+
+  /**
+   * Makes the expression compile itself in the background once it
+   * has been applied the given number of times.
+   */
+  public void setCompilationThreshold(int threshold) {
+    this.compilationThreshold = threshold;
+    this.invocations = new AtomicInteger();
+  }
+
+  /**
+   * True if the expression has been compiled to bytecode, and the
+   * compiled version is what gets applied.
+   */
+  public boolean isCompiled() {
+    return compiled != null;
+  }
+
+  private void compileInBackground() {
+    BackgroundCompiler.submit(new Runnable() {
+        public void run() {
+          // the functions in imported modules are called from this
+          // expression, so they are hot, too
+          if (fileModules != null) {
+            for (int ix = 0; ix < fileModules.length; ix++)
+              fileModules[ix].compile();
+          }
+          compile();
+        }
+      });
   }
 
   public List<ExpressionNode> getChildren() {
@@ -154,4 +526,66 @@ public class ExpressionImpl implements Expression {
     this.fileModules = new JstlFile[fileModules.size()];
     this.fileModules = fileModules.toArray(this.fileModules);
   }
+
+  /**
+   * Removes the declared functions that can never be called, both
+   * here and in the imported modules. Must only be called on the main
+   * expression, after setGlobalModules(), since only then do we know
+   * which functions the modules are used for.
+   */
+  public void removeUnusedFunctions() {
+    Set<FunctionDeclaration> used = new HashSet();
+    Set<ExpressionImpl> bodies = new HashSet();
+    findCalls(this, used, bodies);
+    // module globals are evaluated even if the module isn't called
+    if (fileModules != null) {
+      for (int ix = 0; ix < fileModules.length; ix++)
+        for (LetExpression let : fileModules[ix].getBody().getLets())
+          findCalls(let, used, bodies);
+    }
+
+    removeUnusedFunctions(used);
+    if (fileModules != null) {
+      for (int ix = 0; ix < fileModules.length; ix++)
+        fileModules[ix].getBody().removeUnusedFunctions(used);
+    }
+  }
+
+  private void removeUnusedFunctions(Set<FunctionDeclaration> used) {
+    Iterator<Function> it = functions.values().iterator();
+    while (it.hasNext()) {
+      Function f = it.next();
+      if (f instanceof FunctionDeclaration && !used.contains(f))
+        it.remove();
+    }
+  }
+
+  private static void findCalls(ExpressionImpl expr,
+                                Set<FunctionDeclaration> used,
+                                Set<ExpressionImpl> bodies) {
+    if (!bodies.add(expr))
+      return;
+    for (int ix = 0; ix < expr.lets.length; ix++)
+      findCalls(expr.lets[ix], used, bodies);
+    if (expr.actual != null)
+      findCalls(expr.actual, used, bodies);
+  }
+
+  private static void findCalls(ExpressionNode node,
+                                Set<FunctionDeclaration> used,
+                                Set<ExpressionImpl> bodies) {
+    if (node instanceof FunctionExpression) {
+      FunctionExpression call = (FunctionExpression) node;
+      FunctionDeclaration declared = call.getDeclaredFunction();
+      if (declared != null && used.add(declared)) {
+        for (int ix = 0; ix < declared.getLets().length; ix++)
+          findCalls(declared.getLets()[ix], used, bodies);
+        findCalls(declared.getBody(), used, bodies);
+      } else if (call.getFunction() instanceof JstlFile)
+        findCalls(((JstlFile) call.getFunction()).getBody(), used, bodies);
+    }
+
+    for (ExpressionNode child : node.getChildren())
+      findCalls(child, used, bodies);
+  }
 }
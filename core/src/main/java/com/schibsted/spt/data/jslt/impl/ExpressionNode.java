@@ -16,6 +16,8 @@
 package com.schibsted.spt.data.jslt.impl;
 
 import java.util.List;
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 
 /**
@@ -29,6 +31,18 @@ public interface ExpressionNode {
 
   public JsonNode apply(Scope scope, JsonNode input);
 
+  // evaluates the expression as a condition. same as
+  // NodeUtils.isTrue(apply(scope, input)), but conditions can do it
+  // without creating JsonNode objects
+  public boolean test(Scope scope, JsonNode input);
+
+  // writes the value of the expression to the generator. if pending
+  // is not null, the value is in an object with the default filter,
+  // so null, {}, and [] must be left out. the pending output must be
+  // flushed before anything is written
+  public void write(Scope scope, JsonNode input, JsonGenerator out,
+                    PendingOutput pending) throws IOException;
+
   // writes debug info to stdout
   public void dump(int level);
 
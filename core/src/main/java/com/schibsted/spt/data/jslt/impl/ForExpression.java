@@ -18,6 +18,8 @@ package com.schibsted.spt.data.jslt.impl;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -26,8 +28,10 @@ import com.schibsted.spt.data.jslt.JsltException;
 public class ForExpression extends AbstractNode {
   private ExpressionNode valueExpr;
   private LetExpression[] lets;
+  private LetExpression[] hoistedLets; // don't depend on the element
   private ExpressionNode loopExpr;
   private ExpressionNode ifExpr;
+  private FunctionExpression batchCall; // the loop expression, if batched
 
   public ForExpression(ExpressionNode valueExpr,
                        LetExpression[] lets,
@@ -37,10 +41,35 @@ public class ForExpression extends AbstractNode {
     super(location);
     this.valueExpr = valueExpr;
     this.lets = lets;
+    this.hoistedLets = new LetExpression[0];
     this.loopExpr = loopExpr;
     this.ifExpr = ifExpr;
   }
 
+  public ExpressionNode getValueExpression() {
+    return valueExpr;
+  }
+
+  public LetExpression[] getLets() {
+    return lets;
+  }
+
+  /**
+   * The lets that were found not to depend on the element being
+   * looped over, which are evaluated once before the loop starts.
+   */
+  public LetExpression[] getHoistedLets() {
+    return hoistedLets;
+  }
+
+  public ExpressionNode getLoopExpression() {
+    return loopExpr;
+  }
+
+  public ExpressionNode getIfExpression() {
+    return ifExpr;
+  }
+
   public JsonNode apply(Scope scope, JsonNode input) {
     JsonNode array = valueExpr.apply(scope, input);
     if (array.isNull())
@@ -51,19 +80,97 @@ public class ForExpression extends AbstractNode {
       throw new JsltException("For loop can't iterate over " + array, location);
 
     ArrayNode result = NodeUtils.mapper.createArrayNode();
+
+    // if there are no elements the lets are never evaluated
+    if (hoistedLets.length > 0 && array.size() > 0)
+      NodeUtils.evalLets(scope, input, hoistedLets);
+
+    if (batchCall != null)
+      return applyBatch(scope, array, result);
+
     for (int ix = 0; ix < array.size(); ix++) {
       JsonNode value = array.get(ix);
 
-      // must evaluate lets over again for each value because of context
+      // must evaluate the other lets over again for each value
+      // because of context
       if (lets.length > 0)
         NodeUtils.evalLets(scope, value, lets);
 
-      if (ifExpr == null || NodeUtils.isTrue(ifExpr.apply(scope, value)))
+      if (ifExpr == null || ifExpr.test(scope, value))
         result.add(loopExpr.apply(scope, value));
     }
     return result;
   }
 
+  // evaluates the arguments for all the elements first, so that the
+  // function can be called once for all of them
+  private JsonNode applyBatch(Scope scope, JsonNode array, ArrayNode result) {
+    JsonNode[] inputs = new JsonNode[array.size()];
+    JsonNode[][] arguments = new JsonNode[array.size()][];
+    int count = 0;
+    for (int ix = 0; ix < array.size(); ix++) {
+      JsonNode value = array.get(ix);
+
+      if (lets.length > 0)
+        NodeUtils.evalLets(scope, value, lets);
+
+      if (ifExpr == null || ifExpr.test(scope, value)) {
+        inputs[count] = value;
+        arguments[count++] = batchCall.evaluateArguments(scope, value);
+      }
+    }
+
+    if (count > 0) {
+      JsonNode[] values = batchCall.callBatch(Arrays.copyOf(inputs, count),
+                                              Arrays.copyOf(arguments, count));
+      for (int ix = 0; ix < count; ix++)
+        result.add(values[ix]);
+    }
+    return result;
+  }
+
+  public void write(Scope scope, JsonNode input, JsonGenerator out,
+                    PendingOutput pending) throws IOException {
+    if (batchCall != null) {
+      super.write(scope, input, out, pending);
+      return;
+    }
+
+    JsonNode array = valueExpr.apply(scope, input);
+    if (array.isNull()) {
+      if (pending == null)
+        out.writeNull();
+      return;
+    } else if (array.isObject())
+      array = NodeUtils.convertObjectToArray(array);
+    else if (!array.isArray())
+      throw new JsltException("For loop can't iterate over " + array, location);
+
+    // the if may filter out every element, so hold back the start
+    PendingOutput result = new PendingOutput(pending, null, PendingOutput.ARRAY);
+    if (pending == null)
+      result.flush(out);
+
+    // if there are no elements the lets are never evaluated
+    if (hoistedLets.length > 0 && array.size() > 0)
+      NodeUtils.evalLets(scope, input, hoistedLets);
+
+    for (int ix = 0; ix < array.size(); ix++) {
+      JsonNode value = array.get(ix);
+
+      if (lets.length > 0)
+        NodeUtils.evalLets(scope, value, lets);
+
+      if (ifExpr == null || ifExpr.test(scope, value)) {
+        result.flush(out);
+        loopExpr.write(scope, value, out, null);
+      }
+    }
+
+    if (result.isWritten())
+      out.writeEndArray();
+  }
+
   public void computeMatchContexts(DotExpression parent) {
     // if you do matching inside a 'for' the matching is on the
     // current object being traversed in the list. so we forget the
@@ -75,13 +182,34 @@ public class ForExpression extends AbstractNode {
     for (int ix = 0; ix < lets.length; ix++)
       lets[ix].optimize();
 
+    List<LetExpression> hoisted = new ArrayList(Arrays.asList(hoistedLets));
+    lets = OptimizeUtils.hoistLoopLets(lets, hoisted);
+    hoistedLets = hoisted.toArray(new LetExpression[0]);
+    // the hoisted lets are used inside the loop, so they can only be
+    // removed if they're not used at all
+    hoistedLets = OptimizeUtils.eliminateLets(hoistedLets);
+    lets = OptimizeUtils.eliminateLets(lets, loopExpr, ifExpr);
+
     valueExpr = valueExpr.optimize();
     loopExpr = loopExpr.optimize();
     if (ifExpr != null)
       ifExpr = ifExpr.optimize();
+
+    batchCall = null;
+    if (loopExpr instanceof FunctionExpression &&
+        ((FunctionExpression) loopExpr).isBatchCall())
+      batchCall = (FunctionExpression) loopExpr;
     return this;
   }
 
+  /**
+   * True if the loop expression is a call to a BatchFunction, which
+   * is made once for all the elements.
+   */
+  public boolean isBatched() {
+    return batchCall != null;
+  }
+
   public void prepare(PreparationContext ctx) {
     ctx.scope.enterScope();
 
@@ -96,6 +224,7 @@ public class ForExpression extends AbstractNode {
 
   public List<ExpressionNode> getChildren() {
     List<ExpressionNode> children = new ArrayList();
+    children.addAll(Arrays.asList(hoistedLets));
     children.addAll(Arrays.asList(lets));
     children.add(valueExpr);
     children.add(loopExpr);
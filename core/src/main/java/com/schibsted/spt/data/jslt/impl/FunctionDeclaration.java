@@ -18,8 +18,10 @@ package com.schibsted.spt.data.jslt.impl;
 import java.util.Map;
 import java.util.HashMap;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
 import com.schibsted.spt.data.jslt.Function;
 import com.schibsted.spt.data.jslt.JsltException;
+import com.schibsted.spt.data.jslt.impl.compiler.ExpressionCompiler;
 
 public class FunctionDeclaration extends AbstractNode
   implements Function, ExpressionNode {
@@ -30,6 +32,14 @@ public class FunctionDeclaration extends AbstractNode
   private LetExpression[] lets;
   private ExpressionNode body;
   private int stackFrameSize;
+  private int maxRecursionDepth = Integer.MAX_VALUE;
+  private volatile ExpressionNode compiled; // lets and body as bytecode
+  private MemoizationCache cache; // null unless memoized
+
+  // returned by a call the function makes to itself as its last
+  // step, after binding the new arguments, so that call() can loop
+  // instead of recursing. never escapes from call()
+  static final JsonNode TAIL_CALL = new TextNode("<tail call>");
 
   public FunctionDeclaration(String name, String[] parameters,
                              LetExpression[] lets, ExpressionNode body) {
@@ -45,6 +55,18 @@ public class FunctionDeclaration extends AbstractNode
     return name;
   }
 
+  public String[] getParameters() {
+    return parameters;
+  }
+
+  public LetExpression[] getLets() {
+    return lets;
+  }
+
+  public ExpressionNode getBody() {
+    return body;
+  }
+
   public int getMinArguments() {
     return parameters.length;
   }
@@ -62,30 +84,122 @@ public class FunctionDeclaration extends AbstractNode
     throw new JsltException("INTERNAL ERROR!");
   }
 
-  public JsonNode call(Scope scope, JsonNode input, JsonNode[] arguments) {
+  public void setMaxRecursionDepth(int maxRecursionDepth) {
+    this.maxRecursionDepth = maxRecursionDepth;
+  }
+
+  /**
+   * Calls the function. The location is the call site, which errors
+   * from running out of stack are reported at.
+   */
+  public JsonNode call(Scope scope, JsonNode input, JsonNode[] arguments,
+                       Location location) {
+    if (cache != null) {
+      JsonNode value = cache.get(arguments);
+      if (value == null) {
+        value = evaluate(scope, input, arguments, location);
+        cache.put(arguments, value);
+      }
+      return value;
+    }
+    return evaluate(scope, input, arguments, location);
+  }
+
+  private JsonNode evaluate(Scope scope, JsonNode input, JsonNode[] arguments,
+                            Location location) {
+    if (scope.getDepth() >= maxRecursionDepth)
+      throw new JsltException("Function '" + name + "' recursed deeper " +
+                              "than the limit of " + maxRecursionDepth,
+                              location);
     scope.enterFunction(stackFrameSize);
+    try {
+      bindArguments(scope, arguments);
+
+      JsonNode value;
+      do {
+        ExpressionNode code = compiled;
+        if (code != null)
+          value = code.apply(scope, input);
+        else {
+          // then bind the lets
+          NodeUtils.evalLets(scope, input, lets);
+
+          // evaluate body
+          value = body.apply(scope, input);
+        }
+      } while (value == TAIL_CALL); // the arguments were bound again
+      return value;
+    } catch (StackOverflowError e) {
+      // don't take the whole thread down
+      throw new JsltException("Function '" + name + "' recursed too " +
+                              "deeply, and ran out of stack", location);
+    } finally {
+      scope.leaveFunction();
+    }
+  }
 
-    // bind the arguments into the function scope
+  // bind the arguments into the function scope
+  void bindArguments(Scope scope, JsonNode[] arguments) {
     for (int ix = 0; ix < arguments.length; ix++)
       scope.setValue(parameterSlots[ix], arguments[ix]);
-
-    // then bind the lets
-    NodeUtils.evalLets(scope, input, lets);
-
-    // evaluate body
-    JsonNode value = body.apply(scope, input);
-    scope.leaveFunction();
-    return value;
   }
 
   public ExpressionNode optimize() {
     for (int ix = 0; ix < lets.length; ix++)
       lets[ix].optimize();
+    lets = OptimizeUtils.eliminateLets(lets, body);
 
     body = body.optimize();
+    markTailCalls(body);
     return this;
   }
 
+  // calls to this function that are the last thing the function does
+  // can reuse the stack frame
+  private void markTailCalls(ExpressionNode node) {
+    if (node instanceof FunctionExpression) {
+      FunctionExpression call = (FunctionExpression) node;
+      if (call.getDeclaredFunction() == this)
+        call.setTailCall();
+    } else if (node instanceof IfExpression) {
+      IfExpression ifexpr = (IfExpression) node;
+      markTailCalls(ifexpr.getThen());
+      if (ifexpr.getElse() != null)
+        markTailCalls(ifexpr.getElse());
+    }
+  }
+
+  /**
+   * Caches the results of the function, if they depend only on the
+   * arguments. That is, the function mustn't read the input or
+   * variables that can change between evaluations, and can only call
+   * pure functions.
+   */
+  public void memoize(int cacheSize) {
+    InvariantAnalyzer analyzer = new InvariantAnalyzer(false);
+    for (int ix = 0; ix < lets.length; ix++)
+      if (!analyzer.isInvariant(lets[ix]))
+        return;
+    if (analyzer.isInvariant(body))
+      cache = new MemoizationCache(cacheSize);
+  }
+
+  /**
+   * The cache of results, or null if the function isn't memoized.
+   */
+  public MemoizationCache getMemoizationCache() {
+    return cache;
+  }
+
+  /**
+   * Compiles the lets and body to bytecode. If the function is too
+   * big to compile it stays interpreted. Can be called while other
+   * threads are calling the function.
+   */
+  public void compile() {
+    compiled = ExpressionCompiler.compile(lets, body);
+  }
+
   // the ExpressionNode API requires this method, but it doesn't
   // actually make any sense for a Function
   public JsonNode apply(Scope scope, JsonNode context) {
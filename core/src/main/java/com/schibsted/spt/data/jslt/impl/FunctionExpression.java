@@ -21,11 +21,14 @@ import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.BooleanNode;
 import com.schibsted.spt.data.jslt.Function;
+import com.schibsted.spt.data.jslt.BatchFunction;
 import com.schibsted.spt.data.jslt.JsltException;
 
 public class FunctionExpression extends AbstractInvocationExpression {
   private Function function; // null before resolution
   private FunctionDeclaration declared; // non-null if a declared function
+  private InlinedFunctionExpression inlined; // replaces the call, if any
+  private boolean tailCall; // last step of the function it calls
   private String name;
 
   public FunctionExpression(String name, ExpressionNode[] arguments,
@@ -45,13 +48,80 @@ public class FunctionExpression extends AbstractInvocationExpression {
       this.declared = (FunctionDeclaration) function;
   }
 
-  public JsonNode apply(Scope scope, JsonNode input) {
+  public Function getFunction() {
+    return function;
+  }
+
+  public FunctionDeclaration getDeclaredFunction() {
+    return declared;
+  }
+
+  /**
+   * Replaces the call with a copy of the body of the declared
+   * function. Must be called before prepare().
+   */
+  public void inline(InlinedFunctionExpression inlined) {
+    this.inlined = inlined;
+  }
+
+  public InlinedFunctionExpression getInlined() {
+    return inlined;
+  }
+
+  /**
+   * Marks this as a call a declared function makes to itself as the
+   * last thing it does, so that the call can be made by looping.
+   */
+  public void setTailCall() {
+    this.tailCall = true;
+  }
+
+  public boolean isTailCall() {
+    return tailCall;
+  }
+
+  /**
+   * True if this call can be made for many sets of arguments at once,
+   * because the function is a BatchFunction.
+   */
+  public boolean isBatchCall() {
+    return function instanceof BatchFunction && inlined == null;
+  }
+
+  public JsonNode[] evaluateArguments(Scope scope, JsonNode input) {
     JsonNode[] params = new JsonNode[arguments.length];
     for (int ix = 0; ix < params.length; ix++)
       params[ix] = arguments[ix].apply(scope, input);
+    return params;
+  }
+
+  /**
+   * Calls the function once for all the sets of arguments, which
+   * must come from evaluateArguments().
+   */
+  public JsonNode[] callBatch(JsonNode[] inputs, JsonNode[][] params) {
+    JsonNode[] values = ((BatchFunction) function).callBatch(inputs, params);
+    if (values == null || values.length != params.length)
+      throw new JsltException("Function '" + name + "' returned " +
+                              (values == null ? "null" : values.length + " values") +
+                              " for " + params.length + " calls", location);
+
+    // same as for single calls
+    for (int ix = 0; ix < values.length; ix++)
+      if (values[ix] == null)
+        values[ix] = NullNode.instance;
+    return values;
+  }
 
-    if (declared != null)
-      return declared.call(scope, input, params);
+  public JsonNode apply(Scope scope, JsonNode input) {
+    JsonNode[] params = evaluateArguments(scope, input);
+
+    if (tailCall) {
+      // we're in the function's own frame, so just rebind
+      declared.bindArguments(scope, params);
+      return FunctionDeclaration.TAIL_CALL;
+    } else if (declared != null)
+      return declared.call(scope, input, params, location);
     else {
       JsonNode value = function.call(input, params);
 
@@ -65,8 +135,37 @@ public class FunctionExpression extends AbstractInvocationExpression {
     }
   }
 
+  public boolean test(Scope scope, JsonNode input) {
+    // not() is so common in conditions that it's worth avoiding the
+    // function call
+    if (function instanceof BuiltinFunctions.Not)
+      return !arguments[0].test(scope, input);
+    return super.test(scope, input);
+  }
+
+  private boolean allLiterals() {
+    for (int ix = 0; ix < arguments.length; ix++)
+      if (!(arguments[ix] instanceof LiteralExpression))
+        return false;
+    return true;
+  }
+
+  private String literalString(int ix) {
+    return NodeUtils.toString(arguments[ix].apply(null, null), false);
+  }
+
   private static final int OPTIMIZE_ARRAY_CONTAINS_MIN = 10;
+  public void prepare(PreparationContext ctx) {
+    if (inlined != null)
+      inlined.prepare(ctx); // the arguments are part of the copy
+    else
+      super.prepare(ctx);
+  }
+
   public ExpressionNode optimize() {
+    if (inlined != null)
+      return inlined.optimize();
+
     super.optimize();
 
     // if the second argument to contains() is an array with a large
@@ -92,7 +191,38 @@ public class FunctionExpression extends AbstractInvocationExpression {
           throw new JsltException("Regexp cannot be null");
 
         // will fill in cache, and throw correct exception
-        BuiltinFunctions.getRegexp(r);
+        ((RegexpFunction) function).getRegexpCache().getPattern(r);
+      }
+    }
+
+    // compile literal time formats once, instead of on every call.
+    // bad formats are left to fail if the call is ever made
+    try {
+      if (function instanceof BuiltinFunctions.ParseTime &&
+          arguments[1] instanceof LiteralExpression)
+        resolve(new BuiltinFunctions.ParseTime(
+          TimeFormat.compile("parse-time", literalString(1), null)
+        ));
+      else if (function instanceof BuiltinFunctions.FormatTime &&
+               arguments[1] instanceof LiteralExpression &&
+               (arguments.length < 3 ||
+                arguments[2] instanceof LiteralExpression)) {
+        String zonename = arguments.length < 3 ? null : literalString(2);
+        resolve(new BuiltinFunctions.FormatTime(
+          TimeFormat.compile("format-time", literalString(1), zonename)
+        ));
+      }
+    } catch (JsltException e) {
+      // the unbound function reports the error when it's called
+    }
+
+    // a pure function with literal arguments always returns the same
+    // value, so we can call it now instead of over and over
+    if (OptimizeUtils.isPure(function) && allLiterals()) {
+      try {
+        return new LiteralExpression(apply(null, NullNode.instance), location);
+      } catch (RuntimeException e) {
+        // leave it to fail when the expression is applied
       }
     }
 
@@ -15,10 +15,14 @@
 
 package com.schibsted.spt.data.jslt.impl;
 
-import java.lang.reflect.Method;
-import java.lang.reflect.InvocationTargetException;
 import java.util.Map;
+import java.util.List;
 import java.util.HashMap;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.NullNode;
@@ -30,22 +34,98 @@ import com.fasterxml.jackson.databind.node.DoubleNode;
 import com.fasterxml.jackson.databind.node.BooleanNode;
 import com.schibsted.spt.data.jslt.Function;
 import com.schibsted.spt.data.jslt.JsltException;
+import com.schibsted.spt.data.jslt.FunctionTraits;
 
+/**
+ * A Java method wrapped as a JSLT function. The method is turned into
+ * a single method handle which converts the JSON arguments, calls the
+ * method, and converts the result back, so that primitive values are
+ * passed without boxing and there is no reflection when calling.
+ */
 public class FunctionWrapper implements Function {
   private String name;
   private Method method;
-  private ToJavaConverter[] converters;
-  private ToJsonConverter returnConverter;
+  private FunctionTraits traits;
+  private MethodHandle handle; // (JsonNode[])JsonNode
 
   public FunctionWrapper(String name, Method method) {
+    this(name, method, FunctionTraits.UNKNOWN);
+  }
+
+  public FunctionWrapper(String name, Method method, FunctionTraits traits) {
+    this(name, method, null, traits);
+  }
+
+  /**
+   * Wraps a method. The receiver is the object to call the method on,
+   * or null if the method is static.
+   */
+  public FunctionWrapper(String name, Method method, Object receiver,
+                         FunctionTraits traits) {
     this.name = name;
+    this.traits = traits;
+
+    boolean isStatic = Modifier.isStatic(method.getModifiers());
+    if (receiver == null && !isStatic)
+      throw new JsltException("Method " + method + " is not static");
+    else if (receiver != null && isStatic)
+      throw new JsltException("Method " + method + " is static");
+
+    MethodHandle target = unreflect(method);
+    if (target == null) {
+      // the class isn't public, so call the method through a public
+      // class or interface that declares it
+      Method declared = findPublicMethod(method.getDeclaringClass(), method);
+      if (declared == null)
+        throw new JsltException("Couldn't access " + method);
+      method = declared;
+      target = unreflect(method);
+    }
     this.method = method;
-    this.returnConverter = makeJsonConverter(method.getReturnType());
+    if (receiver != null)
+      target = target.bindTo(receiver);
 
     Class[] paramTypes = method.getParameterTypes();
-    this.converters = new ToJavaConverter[paramTypes.length];
+    MethodHandle[] converters = new MethodHandle[paramTypes.length];
     for (int ix = 0; ix < paramTypes.length; ix++)
       converters[ix] = makeJavaConverter(paramTypes[ix]);
+    target = MethodHandles.filterArguments(target, 0, converters);
+    target = MethodHandles.filterReturnValue(
+      target, makeJsonConverter(method.getReturnType())
+    );
+    this.handle = target.asSpreader(JsonNode[].class, paramTypes.length);
+  }
+
+  // returns null if the method can't be called from here
+  private static MethodHandle unreflect(Method method) {
+    try {
+      return MethodHandles.publicLookup().unreflect(method);
+    } catch (IllegalAccessException e) {
+      return null;
+    }
+  }
+
+  // looks for the same method in the superclasses and interfaces of
+  // the class, returning the first one that can be called
+  private static Method findPublicMethod(Class klass, Method method) {
+    if (klass == null)
+      return null;
+
+    try {
+      Method candidate = klass.getMethod(method.getName(),
+                                         method.getParameterTypes());
+      if (unreflect(candidate) != null)
+        return candidate;
+    } catch (NoSuchMethodException e) {
+      // not here, keep looking
+    }
+
+    for (Class iface : klass.getInterfaces()) {
+      Method candidate = findPublicMethod(iface, method);
+      if (candidate != null)
+        return candidate;
+    }
+    return findPublicMethod(klass.getSuperclass(), method);
   }
 
   public String getName() {
@@ -60,167 +140,192 @@ public class FunctionWrapper implements Function {
     return method.getParameterCount();
   }
 
-  public JsonNode call(JsonNode input, JsonNode[] arguments) {
-    Object[] args = new Object[arguments.length];
-    for (int ix = 0; ix < arguments.length; ix++)
-      args[ix] = converters[ix].convert(arguments[ix]);
+  public FunctionTraits getTraits() {
+    return traits;
+  }
 
+  public JsonNode call(JsonNode input, JsonNode[] arguments) {
     try {
-      Object result = method.invoke(null, args);
-      return returnConverter.convert(result);
-    } catch (IllegalAccessException e) {
-      throw new JsltException("Couldn't call " + method, e);
-    } catch (InvocationTargetException e) {
+      return (JsonNode) handle.invokeExact(arguments);
+    } catch (JsltException e) {
+      throw e; // the arguments couldn't be converted
+    } catch (Throwable e) {
       throw new JsltException("Couldn't call " + method, e);
     }
   }
 
   // ===== TO JAVA
 
-  interface ToJavaConverter {
-    public Object convert(JsonNode node);
-  }
-
-  private static Map<Class, ToJavaConverter> toJava = new HashMap();
+  private static Map<Class, MethodHandle> toJava = new HashMap();
   static {
-    toJava.put(String.class, new StringJavaConverter());
-    toJava.put(int.class, new IntJavaConverter());
-    toJava.put(long.class, new LongJavaConverter());
-    toJava.put(boolean.class, new BooleanJavaConverter());
-    toJava.put(double.class, new DoubleJavaConverter());
-    toJava.put(float.class, new DoubleJavaConverter());
+    toJava.put(String.class, converter("toString", String.class));
+    toJava.put(int.class, converter("toInt", int.class));
+    toJava.put(long.class, converter("toLong", long.class));
+    toJava.put(boolean.class, converter("toBoolean", boolean.class));
+    toJava.put(double.class, converter("toDouble", double.class));
+    toJava.put(float.class, converter("toFloat", float.class));
   }
 
-  private static ToJavaConverter makeJavaConverter(Class type) {
-    ToJavaConverter converter = toJava.get(type);
-    if (converter == null)
+  // returns a handle that converts JSON to the given type
+  private static MethodHandle makeJavaConverter(Class type) {
+    MethodHandle converter = toJava.get(type);
+    if (converter != null)
+      return converter;
+    else if (type == JsonNode.class)
+      return null; // no conversion needed
+    else if (type == Object.class || type == List.class ||
+             type == Map.class || type.isArray()) {
+      // let Jackson do the work
+      MethodHandle convert = converter("toObject", Object.class, Class.class);
+      convert = MethodHandles.insertArguments(convert, 1, type);
+      return convert.asType(MethodType.methodType(type, JsonNode.class));
+    } else
       throw new JsltException("Cannot build converter to " + type);
-    return converter;
   }
 
-  static class StringJavaConverter implements ToJavaConverter {
-    public Object convert(JsonNode node) {
-      if (node.isNull())
-        return null;
-      else if (node.isTextual())
-        return node.asText();
-      else
-        throw new JsltException("Could not convert " + node + " to string");
+  private static MethodHandle converter(String name, Class returnType,
+                                        Class... extraTypes) {
+    MethodType type = MethodType.methodType(returnType, JsonNode.class,
+                                            extraTypes);
+    try {
+      return MethodHandles.lookup().findStatic(FunctionWrapper.class,
+                                               name, type);
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new JsltException("INTERNAL ERROR: no converter " + name, e);
     }
   }
 
-  static class LongJavaConverter implements ToJavaConverter {
-    public Object convert(JsonNode node) {
-      if (!node.isNumber())
-        throw new JsltException("Cannot convert " + node + " to long");
-      else
-        return node.asLong();
-    }
+  private static String toString(JsonNode node) {
+    if (node.isNull())
+      return null;
+    else if (node.isTextual())
+      return node.asText();
+    else
+      throw new JsltException("Could not convert " + node + " to string");
   }
 
-  static class IntJavaConverter implements ToJavaConverter {
-    public Object convert(JsonNode node) {
-      if (!node.isNumber())
-        throw new JsltException("Cannot convert " + node + " to int");
-      else
-        return node.asInt();
-    }
+  private static long toLong(JsonNode node) {
+    if (!node.isNumber())
+      throw new JsltException("Cannot convert " + node + " to long");
+    else
+      return node.asLong();
   }
 
-  static class BooleanJavaConverter implements ToJavaConverter {
-    public Object convert(JsonNode node) {
-      if (!node.isBoolean())
-        throw new JsltException("Cannot convert " + node + " to boolean");
-      else
-        return node.asBoolean();
-    }
+  private static int toInt(JsonNode node) {
+    if (!node.isNumber())
+      throw new JsltException("Cannot convert " + node + " to int");
+    else
+      return node.asInt();
   }
 
-  static class DoubleJavaConverter implements ToJavaConverter {
-    public Object convert(JsonNode node) {
-      if (!node.isNumber())
-        throw new JsltException("Cannot convert " + node + " to double");
-      else
-        return node.asDouble();
-    }
+  private static boolean toBoolean(JsonNode node) {
+    if (!node.isBoolean())
+      throw new JsltException("Cannot convert " + node + " to boolean");
+    else
+      return node.asBoolean();
   }
 
-  // ===== TO JSON
+  private static double toDouble(JsonNode node) {
+    if (!node.isNumber())
+      throw new JsltException("Cannot convert " + node + " to double");
+    else
+      return node.asDouble();
+  }
 
-  interface ToJsonConverter {
-    public JsonNode convert(Object node);
+  private static float toFloat(JsonNode node) {
+    if (!node.isNumber())
+      throw new JsltException("Cannot convert " + node + " to float");
+    else
+      return node.floatValue();
   }
 
-  private static Map<Class, ToJsonConverter> toJson = new HashMap();
+  private static Object toObject(JsonNode node, Class type) {
+    if (node.isNull())
+      return null;
+
+    try {
+      return NodeUtils.mapper.convertValue(node, type);
+    } catch (IllegalArgumentException e) {
+      throw new JsltException("Cannot convert " + node + " to " +
+                              type.getSimpleName());
+    }
+  }
+
+  // ===== TO JSON
+
+  private static Map<Class, MethodHandle> toJson = new HashMap();
   static {
-    toJson.put(String.class, new StringJsonConverter());
-    toJson.put(long.class, new LongJsonConverter());
-    toJson.put(int.class, new IntJsonConverter());
-    toJson.put(boolean.class, new BooleanJsonConverter());
-    toJson.put(double.class, new DoubleJsonConverter());
-    toJson.put(float.class, new FloatJsonConverter());
+    toJson.put(String.class, jsonConverter(String.class));
+    toJson.put(long.class, jsonConverter(long.class));
+    toJson.put(int.class, jsonConverter(int.class));
+    toJson.put(boolean.class, jsonConverter(boolean.class));
+    toJson.put(double.class, jsonConverter(double.class));
+    toJson.put(float.class, jsonConverter(float.class));
+    toJson.put(JsonNode.class, jsonConverter(JsonNode.class));
   }
 
-  static private ToJsonConverter makeJsonConverter(Class type) {
-    ToJsonConverter converter = toJson.get(type);
-    if (converter == null)
+  // returns a handle that converts the given type to JSON
+  private static MethodHandle makeJsonConverter(Class type) {
+    MethodHandle converter = toJson.get(type);
+    if (converter != null)
+      return converter;
+    else if (type == Object.class || type == List.class ||
+             type == Map.class || type.isArray())
+      return jsonConverter(Object.class).asType(
+        MethodType.methodType(JsonNode.class, type)
+      );
+    else
       throw new JsltException("Cannot build converter from " + type);
-    return converter;
   }
 
-  static class StringJsonConverter implements ToJsonConverter {
-    public JsonNode convert(Object node) {
-      if (node == null)
-        return NullNode.instance;
-      else
-        return new TextNode((String) node);
+  private static MethodHandle jsonConverter(Class type) {
+    MethodType methodType = MethodType.methodType(JsonNode.class, type);
+    try {
+      return MethodHandles.lookup().findStatic(FunctionWrapper.class,
+                                               "toJson", methodType);
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new JsltException("INTERNAL ERROR: no converter from " + type, e);
     }
   }
 
-  static class LongJsonConverter implements ToJsonConverter {
-    public JsonNode convert(Object node) {
-      if (node == null)
-        return NullNode.instance;
-      else
-        return new LongNode((Long) node);
-    }
+  private static JsonNode toJson(String value) {
+    if (value == null)
+      return NullNode.instance;
+    else
+      return new TextNode(value);
   }
 
-  static class IntJsonConverter implements ToJsonConverter {
-    public JsonNode convert(Object node) {
-      if (node == null)
-        return NullNode.instance;
-      else
-        return new IntNode((Integer) node);
-    }
+  private static JsonNode toJson(long value) {
+    return new LongNode(value);
   }
 
-  static class BooleanJsonConverter implements ToJsonConverter {
-    public JsonNode convert(Object node) {
-      if (node == null)
-        return NullNode.instance;
-      else if ((Boolean) node)
-        return BooleanNode.TRUE;
-      else
-        return BooleanNode.FALSE;
-    }
+  private static JsonNode toJson(int value) {
+    return new IntNode(value);
   }
 
-  static class DoubleJsonConverter implements ToJsonConverter {
-    public JsonNode convert(Object node) {
-      if (node == null)
-        return NullNode.instance;
-      else
-        return new DoubleNode((Double) node);
-    }
+  private static JsonNode toJson(boolean value) {
+    return value ? BooleanNode.TRUE : BooleanNode.FALSE;
   }
 
-  static class FloatJsonConverter implements ToJsonConverter {
-    public JsonNode convert(Object node) {
-      if (node == null)
-        return NullNode.instance;
-      else
-        return new FloatNode((Float) node);
-    }
+  private static JsonNode toJson(double value) {
+    return new DoubleNode(value);
+  }
+
+  private static JsonNode toJson(float value) {
+    return new FloatNode(value);
+  }
+
+  private static JsonNode toJson(JsonNode value) {
+    if (value == null)
+      return NullNode.instance;
+    else
+      return value;
+  }
+
+  private static JsonNode toJson(Object value) {
+    if (value == null)
+      return NullNode.instance;
+    else
+      return NodeUtils.mapper.valueToTree(value);
   }
 }
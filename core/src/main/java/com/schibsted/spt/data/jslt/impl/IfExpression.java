@@ -18,6 +18,8 @@ package com.schibsted.spt.data.jslt.impl;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.NullNode;
@@ -43,8 +45,28 @@ public class IfExpression extends AbstractNode {
     this.orelse = orelse;
   }
 
+  public ExpressionNode getTest() {
+    return test;
+  }
+
+  public LetExpression[] getThenLets() {
+    return thenlets;
+  }
+
+  public ExpressionNode getThen() {
+    return then;
+  }
+
+  public LetExpression[] getElseLets() {
+    return elselets;
+  }
+
+  public ExpressionNode getElse() {
+    return orelse;
+  }
+
   public JsonNode apply(Scope scope, JsonNode input) {
-    if (NodeUtils.isTrue(test.apply(scope, input))) {
+    if (test.test(scope, input)) {
       NodeUtils.evalLets(scope, input, thenlets);
       return then.apply(scope, input);
     }
@@ -57,6 +79,18 @@ public class IfExpression extends AbstractNode {
       return NullNode.instance;
   }
 
+  public void write(Scope scope, JsonNode input, JsonGenerator out,
+                    PendingOutput pending) throws IOException {
+    if (test.test(scope, input)) {
+      NodeUtils.evalLets(scope, input, thenlets);
+      then.write(scope, input, out, pending);
+    } else if (orelse != null) {
+      NodeUtils.evalLets(scope, input, elselets);
+      orelse.write(scope, input, out, pending);
+    } else if (pending == null)
+      out.writeNull();
+  }
+
   public void computeMatchContexts(DotExpression parent) {
     for (int ix = 0; ix < thenlets.length; ix++)
       thenlets[ix].computeMatchContexts(parent);
@@ -71,15 +105,28 @@ public class IfExpression extends AbstractNode {
   public ExpressionNode optimize() {
     for (int ix = 0; ix < thenlets.length; ix++)
       thenlets[ix].optimize();
+    thenlets = OptimizeUtils.eliminateLets(thenlets, then);
     if (elselets != null) {
       for (int ix = 0; ix < elselets.length; ix++)
         elselets[ix].optimize();
+      elselets = OptimizeUtils.eliminateLets(elselets, orelse);
     }
 
     test = test.optimize();
     then = then.optimize();
     if (orelse != null)
       orelse = orelse.optimize();
+
+    // if we know the outcome of the test only one branch is needed
+    if (test instanceof LiteralExpression) {
+      if (test.test(null, null)) {
+        if (thenlets.length == 0)
+          return then;
+      } else if (orelse == null)
+        return new LiteralExpression(NullNode.instance, location);
+      else if (elselets.length == 0)
+        return orelse;
+    }
     return this;
   }
 
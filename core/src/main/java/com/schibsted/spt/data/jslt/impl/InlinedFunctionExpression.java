@@ -0,0 +1,128 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl;
+
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A copy of the body of a declared function, put in place of a call
+ * to the function. The parameters become lets bound to the arguments,
+ * so everything lives in the caller's stack frame and no new frame or
+ * argument array is needed.
+ */
+public class InlinedFunctionExpression extends AbstractNode {
+  private FunctionDeclaration function;
+  private LetExpression[] parameters;
+  private LetExpression[] lets;
+  private ExpressionNode body;
+
+  public InlinedFunctionExpression(FunctionDeclaration function,
+                                   LetExpression[] parameters,
+                                   LetExpression[] lets,
+                                   ExpressionNode body,
+                                   Location location) {
+    super(location);
+    this.function = function;
+    this.parameters = parameters;
+    this.lets = lets;
+    this.body = body;
+  }
+
+  public LetExpression[] getParameters() {
+    return parameters;
+  }
+
+  public LetExpression[] getLets() {
+    return lets;
+  }
+
+  public ExpressionNode getBody() {
+    return body;
+  }
+
+  public JsonNode apply(Scope scope, JsonNode input) {
+    NodeUtils.evalLets(scope, input, parameters);
+    NodeUtils.evalLets(scope, input, lets);
+    return body.apply(scope, input);
+  }
+
+  public void computeMatchContexts(DotExpression parent) {
+    // the lets and body were done when the copy was made, since
+    // object matchers can't be used inside functions
+    for (int ix = 0; ix < parameters.length; ix++)
+      parameters[ix].computeMatchContexts(parent);
+  }
+
+  public ExpressionNode optimize() {
+    for (int ix = 0; ix < parameters.length; ix++)
+      parameters[ix].optimize();
+    List<ExpressionNode> scope = new ArrayList();
+    scope.addAll(Arrays.asList(lets));
+    scope.add(body);
+    parameters = OptimizeUtils.eliminateLets(
+      parameters, scope.toArray(new ExpressionNode[0])
+    );
+
+    for (int ix = 0; ix < lets.length; ix++)
+      lets[ix].optimize();
+    lets = OptimizeUtils.eliminateLets(lets, body);
+
+    body = body.optimize();
+    if (parameters.length == 0 && lets.length == 0)
+      return body;
+    return this;
+  }
+
+  public void prepare(PreparationContext ctx) {
+    // the arguments are evaluated where the function is called
+    for (int ix = 0; ix < parameters.length; ix++)
+      parameters[ix].prepare(ctx);
+
+    ctx.scope.enterInlinedFunction();
+    for (int ix = 0; ix < parameters.length; ix++)
+      parameters[ix].register(ctx.scope);
+
+    for (int ix = 0; ix < lets.length; ix++) {
+      lets[ix].register(ctx.scope);
+      lets[ix].prepare(ctx);
+    }
+
+    body.prepare(ctx);
+    ctx.scope.leaveScope();
+  }
+
+  public List<ExpressionNode> getChildren() {
+    List<ExpressionNode> children = new ArrayList();
+    children.addAll(Arrays.asList(parameters));
+    children.addAll(Arrays.asList(lets));
+    children.add(body);
+    return children;
+  }
+
+  public void dump(int level) {
+    System.out.println(NodeUtils.indent(level) + "inlined " +
+                       function.getName() + "(");
+    for (int ix = 0; ix < parameters.length; ix++)
+      parameters[ix].dump(level + 1);
+    System.out.println(NodeUtils.indent(level) + ")");
+    for (int ix = 0; ix < lets.length; ix++)
+      lets[ix].dump(level + 1);
+    body.dump(level + 1);
+  }
+}
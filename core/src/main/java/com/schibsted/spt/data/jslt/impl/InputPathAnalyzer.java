@@ -0,0 +1,399 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import com.schibsted.spt.data.jslt.Function;
+import com.schibsted.spt.data.jslt.InputPaths;
+
+/**
+ * Works out which parts of the input an expression can read, by
+ * following the input through the expression tree. Every expression
+ * is analyzed with the set of input values that '.' can be at that
+ * point, and returns the set of input values it can evaluate to.
+ * Navigating with .key or [index] only needs part of a value, but
+ * any other use of a value needs all of it.
+ *
+ * <p>The analysis is conservative: whenever it can't tell what's
+ * needed it asks for the entire value.
+ */
+public class InputPathAnalyzer {
+  private Node root;
+  private Set<Node> moduleInput; // what global lets are evaluated on
+  // what each let can evaluate to, keyed by the let's declaration
+  private Map<ExpressionNode, Set<Node>> letValues;
+  // parameter bindings of the functions being analyzed
+  private List<Map<String, Set<Node>>> parameters;
+  private Map<FunctionDeclaration, Call> active;
+
+  public InputPathAnalyzer() {
+    this.root = new Node();
+    this.letValues = new IdentityHashMap();
+    this.parameters = new ArrayList();
+    this.active = new HashMap();
+  }
+
+  public InputPaths analyze(ExpressionImpl expr) {
+    Set<Node> context = Collections.singleton(root);
+    moduleInput = context;
+    parameters.add(Collections.EMPTY_MAP);
+
+    bindLets(expr.getLets(), context);
+    if (expr.hasBody())
+      use(analyze(expr.getBody(), context));
+    return toInputPaths(root);
+  }
+
+  private Set<Node> analyze(ExpressionNode node, Set<Node> context) {
+    if (node instanceof LiteralExpression)
+      return Collections.EMPTY_SET;
+
+    else if (node instanceof DotExpression) {
+      DotExpression dot = (DotExpression) node;
+      Set<Node> base = context;
+      if (dot.getParent() != null)
+        base = analyze(dot.getParent(), context);
+      if (dot.getKey() == null)
+        return base; // just '.'
+      return field(base, dot.getKey());
+
+    } else if (node instanceof PathExpression) {
+      PathExpression path = (PathExpression) node;
+      Set<Node> value = context;
+      if (path.getBase() != null)
+        value = analyze(path.getBase(), context);
+      String[] keys = path.getKeys();
+      for (int ix = 0; ix < keys.length; ix++) {
+        if (keys[ix] != null)
+          value = field(value, keys[ix]);
+        else
+          value = elements(value);
+      }
+      return value;
+
+    } else if (node instanceof ArraySlicer) {
+      ArraySlicer slicer = (ArraySlicer) node;
+      Set<Node> base = analyze(slicer.getParent(), context);
+      if (slicer.getLeft() != null)
+        use(analyze(slicer.getLeft(), context));
+      if (slicer.getRight() != null)
+        use(analyze(slicer.getRight(), context));
+
+      // a slice is made from the elements of the base, so navigating
+      // into it is the same as navigating into the base
+      if (slicer.isSlice())
+        return base;
+      return elements(base);
+
+    } else if (node instanceof VariableExpression)
+      return lookup((VariableExpression) node);
+
+    else if (node instanceof LetExpression) {
+      bindLets(new LetExpression[] { (LetExpression) node }, context);
+      return Collections.EMPTY_SET;
+
+    } else if (node instanceof PipeOperator) {
+      PipeOperator pipe = (PipeOperator) node;
+      return analyze(pipe.getRight(), analyze(pipe.getLeft(), context));
+
+    } else if (node instanceof AbstractOperator) {
+      AbstractOperator op = (AbstractOperator) node;
+      use(analyze(op.getLeft(), context));
+      use(analyze(op.getRight(), context));
+      return Collections.EMPTY_SET;
+
+    } else if (node instanceof IfExpression) {
+      IfExpression ifexpr = (IfExpression) node;
+      use(analyze(ifexpr.getTest(), context));
+
+      bindLets(ifexpr.getThenLets(), context);
+      Set<Node> value = new HashSet(analyze(ifexpr.getThen(), context));
+      if (ifexpr.getElse() != null) {
+        bindLets(ifexpr.getElseLets(), context);
+        value.addAll(analyze(ifexpr.getElse(), context));
+      }
+      return value;
+
+    } else if (node instanceof ForExpression) {
+      ForExpression forexpr = (ForExpression) node;
+      Set<Node> element = elements(analyze(forexpr.getValueExpression(), context));
+      bindLets(forexpr.getHoistedLets(), context);
+      bindLets(forexpr.getLets(), element);
+      if (forexpr.getIfExpression() != null)
+        use(analyze(forexpr.getIfExpression(), element));
+      use(analyze(forexpr.getLoopExpression(), element));
+      return Collections.EMPTY_SET;
+
+    } else if (node instanceof ObjectComprehension) {
+      ObjectComprehension comp = (ObjectComprehension) node;
+      Set<Node> element = elements(analyze(comp.getLoop(), context));
+      bindLets(comp.getHoistedLets(), context);
+      bindLets(comp.getLets(), element);
+      if (comp.getIfExpression() != null)
+        use(analyze(comp.getIfExpression(), element));
+      use(analyze(comp.getKey(), element));
+      use(analyze(comp.getValue(), element));
+      return Collections.EMPTY_SET;
+
+    } else if (node instanceof ArrayExpression) {
+      for (ExpressionNode child : node.getChildren())
+        use(analyze(child, context));
+      return Collections.EMPTY_SET;
+
+    } else if (node instanceof ObjectExpression) {
+      ObjectExpression object = (ObjectExpression) node;
+      bindLets(object.getLets(), context);
+      PairExpression[] pairs = object.getPairs();
+      for (int ix = 0; ix < pairs.length; ix++)
+        for (ExpressionNode child : pairs[ix].getChildren())
+          use(analyze(child, context));
+
+      if (object.getMatcher() != null) {
+        // the matcher copies over every key we haven't defined
+        Set<Node> matched = analyze(object.getContextQuery(), context);
+        use(matched);
+        for (ExpressionNode child : object.getMatcher().getChildren())
+          use(analyze(child, matched));
+      }
+      return Collections.EMPTY_SET;
+
+    } else if (node instanceof FunctionExpression) {
+      FunctionExpression call = (FunctionExpression) node;
+      ExpressionNode[] arguments = call.getArguments();
+      List<Set<Node>> values = new ArrayList();
+      for (int ix = 0; ix < arguments.length; ix++)
+        values.add(analyze(arguments[ix], context));
+
+      if (call.getDeclaredFunction() != null)
+        return callDeclared(call.getDeclaredFunction(), values, context);
+      else if (call.getFunction() instanceof JstlFile)
+        return callModule((JstlFile) call.getFunction(), values.get(0));
+
+      // extension functions are passed the input, and may read it
+      if (!isBuiltin(call.getFunction()))
+        use(context);
+      for (Set<Node> value : values)
+        use(value);
+      return Collections.EMPTY_SET;
+
+    } else if (node instanceof InlinedFunctionExpression) {
+      InlinedFunctionExpression inlined = (InlinedFunctionExpression) node;
+      bindLets(inlined.getParameters(), context);
+      bindLets(inlined.getLets(), context);
+      return analyze(inlined.getBody(), context);
+
+    } else {
+      // macros and anything we don't know: give them everything they
+      // could possibly look at
+      if (!(node instanceof MacroExpression))
+        use(context);
+      for (ExpressionNode child : node.getChildren())
+        use(analyze(child, context));
+      return Collections.EMPTY_SET;
+    }
+  }
+
+  // the builtins and wrapped Java methods only look at their arguments
+  private static boolean isBuiltin(Function function) {
+    return function.getClass().getPackage() ==
+      InputPathAnalyzer.class.getPackage();
+  }
+
+  private Set<Node> callDeclared(FunctionDeclaration function,
+                                 List<Set<Node>> arguments,
+                                 Set<Node> context) {
+    Call call = active.get(function);
+    if (call != null) {
+      // recursive call. the parameters will be navigated differently
+      // from what we've seen, and the same goes for the input unless
+      // it's the same as in the outer call
+      for (Set<Node> value : arguments)
+        use(value);
+      if (!call.context.equals(context))
+        use(context);
+      return Collections.singleton(call.result);
+    }
+
+    call = new Call(context);
+    active.put(function, call);
+    Map<String, Set<Node>> frame = new HashMap();
+    String[] names = function.getParameters();
+    for (int ix = 0; ix < names.length; ix++)
+      frame.put(names[ix], arguments.get(ix));
+    parameters.add(frame);
+
+    bindLets(function.getLets(), context);
+    Set<Node> value = new HashSet(analyze(function.getBody(), context));
+
+    parameters.remove(parameters.size() - 1);
+    active.remove(function);
+    // whatever the recursive calls return is covered by the rest
+    value.remove(call.result);
+    return value;
+  }
+
+  private Set<Node> callModule(JstlFile module, Set<Node> input) {
+    ExpressionImpl body = module.getBody();
+    if (!body.hasBody())
+      return Collections.EMPTY_SET; // fails at runtime
+
+    Set<Node> outer = moduleInput;
+    moduleInput = input;
+    parameters.add(Collections.EMPTY_MAP);
+
+    bindLets(body.getLets(), input);
+    Set<Node> value = analyze(body.getBody(), input);
+
+    parameters.remove(parameters.size() - 1);
+    moduleInput = outer;
+    return value;
+  }
+
+  private void bindLets(LetExpression[] lets, Set<Node> context) {
+    for (int ix = 0; ix < lets.length; ix++) {
+      ExpressionNode declaration = lets[ix].getDeclaration();
+      Set<Node> value = analyze(declaration, context);
+
+      // the same let can be analyzed more than once, in which case
+      // it can have any of the values
+      Set<Node> previous = letValues.get(declaration);
+      if (previous != null) {
+        value = new HashSet(value);
+        value.addAll(previous);
+      }
+      letValues.put(declaration, value);
+    }
+  }
+
+  private Set<Node> lookup(VariableExpression variable) {
+    ExpressionNode declaration = variable.getInfo().getDeclaration();
+    if (declaration == null) {
+      Map<String, Set<Node>> frame = parameters.get(parameters.size() - 1);
+      Set<Node> value = frame.get(variable.getVariable());
+      if (value == null)
+        return Collections.EMPTY_SET; // set from outside
+      return value;
+    }
+
+    Set<Node> value = letValues.get(declaration);
+    if (value != null)
+      return value;
+
+    // a global variable in a module, which we haven't seen bound
+    parameters.add(Collections.EMPTY_MAP);
+    value = analyze(declaration, moduleInput);
+    parameters.remove(parameters.size() - 1);
+    return value;
+  }
+
+  // ===== NAVIGATION
+
+  private Set<Node> field(Set<Node> values, String key) {
+    Set<Node> result = new HashSet();
+    for (Node value : values) {
+      if (value.isResult()) {
+        unknown();
+        result.add(value);
+      } else if (value.entire)
+        result.add(value);
+      else {
+        Node child = value.fields.get(key);
+        if (child == null) {
+          child = new Node();
+          value.fields.put(key, child);
+        }
+        result.add(child);
+      }
+    }
+    return result;
+  }
+
+  private Set<Node> elements(Set<Node> values) {
+    Set<Node> result = new HashSet();
+    for (Node value : values) {
+      if (value.isResult()) {
+        unknown();
+        result.add(value);
+      } else if (value.entire)
+        result.add(value);
+      else {
+        if (value.elements == null)
+          value.elements = new Node();
+        result.add(value.elements);
+      }
+    }
+    return result;
+  }
+
+  private void use(Set<Node> values) {
+    for (Node value : values) {
+      if (value.isResult())
+        unknown();
+      else
+        value.entire = true;
+    }
+  }
+
+  // we don't know what a recursive call returns, so if it's used for
+  // anything other than being returned, we give up
+  private void unknown() {
+    root.entire = true;
+  }
+
+  private static InputPaths toInputPaths(Node node) {
+    Map<String, InputPaths> fields = new HashMap();
+    if (node.entire)
+      return new InputPaths(true, fields, null);
+
+    for (String key : node.fields.keySet())
+      fields.put(key, toInputPaths(node.fields.get(key)));
+    InputPaths elements = null;
+    if (node.elements != null)
+      elements = toInputPaths(node.elements);
+    return new InputPaths(false, fields, elements);
+  }
+
+  // ===== DATA
+
+  private static class Node {
+    private boolean entire;
+    private Map<String, Node> fields = new HashMap();
+    private Node elements;
+    private Call call; // non-null if this is the result of a recursive call
+
+    public boolean isResult() {
+      return call != null;
+    }
+  }
+
+  private static class Call {
+    private Set<Node> context;
+    private Node result;
+
+    public Call(Set<Node> context) {
+      this.context = context;
+      this.result = new Node();
+      this.result.call = this;
+    }
+  }
+}
@@ -0,0 +1,206 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Works out which expressions give the same value every time they
+ * are evaluated, so that they only need to be evaluated once. An
+ * expression is invariant if it doesn't read the input, doesn't use
+ * variables that depend on the input, and only calls functions that
+ * always return the same value for the same arguments.
+ *
+ * <p>Whether the external parameters (variables set from outside)
+ * count as invariant depends on the use: they're fixed for a batch,
+ * but not known at compile time. Inside a loop, the variables bound
+ * outside the loop are also fixed while the loop runs.
+ */
+public class InvariantAnalyzer {
+  private boolean parametersFixed;
+  private boolean outerFixed; // variables we haven't seen bound are fixed
+  // whether each let depends on the input, keyed by its declaration
+  private Map<ExpressionNode, Boolean> lets;
+  private Set<FunctionDeclaration> active; // functions being analyzed
+
+  public InvariantAnalyzer(boolean parametersFixed) {
+    this(parametersFixed, false);
+  }
+
+  private InvariantAnalyzer(boolean parametersFixed, boolean outerFixed) {
+    this.parametersFixed = parametersFixed;
+    this.outerFixed = outerFixed;
+    this.lets = new IdentityHashMap();
+    this.active = new HashSet();
+  }
+
+  /**
+   * Returns an analyzer for the lets of a loop, where '.' is the
+   * element being looped over. Everything bound outside the loop
+   * stays the same while it runs.
+   */
+  public static InvariantAnalyzer forLoop() {
+    return new InvariantAnalyzer(true, true);
+  }
+
+  /**
+   * Is the expression invariant if '.' is the input?
+   */
+  public boolean isInvariant(ExpressionNode node) {
+    return !depends(node, true);
+  }
+
+  /**
+   * Is the let's value invariant if '.' is the input? Lets must be
+   * passed in the order they're evaluated, so that variables can be
+   * resolved.
+   */
+  public boolean isInvariant(LetExpression let) {
+    return !bind(let, true);
+  }
+
+  /**
+   * Returns the lets that are not invariant, in the same order.
+   * The lets must be in the order they're evaluated.
+   */
+  public LetExpression[] getVariantLets(LetExpression[] lets) {
+    List<LetExpression> variant = new ArrayList();
+    for (int ix = 0; ix < lets.length; ix++)
+      if (!isInvariant(lets[ix]))
+        variant.add(lets[ix]);
+    return variant.toArray(new LetExpression[0]);
+  }
+
+  /**
+   * Does the expression depend on the input? The input flag says
+   * whether '.' is the input at this point. Inside for loops and on
+   * the right side of pipes it isn't.
+   */
+  private boolean depends(ExpressionNode node, boolean input) {
+    if (node instanceof LiteralExpression)
+      return false;
+
+    else if (node instanceof DotExpression) {
+      DotExpression dot = (DotExpression) node;
+      if (dot.getParent() == null)
+        return input;
+      return depends(dot.getParent(), input);
+
+    } else if (node instanceof PathExpression) {
+      PathExpression path = (PathExpression) node;
+      if (path.getBase() == null)
+        return input;
+      return depends(path.getBase(), input);
+
+    } else if (node instanceof VariableExpression)
+      return depends((VariableExpression) node);
+
+    else if (node instanceof LetExpression)
+      return bind((LetExpression) node, input);
+
+    else if (node instanceof PipeOperator) {
+      PipeOperator pipe = (PipeOperator) node;
+      return depends(pipe.getLeft(), input) | depends(pipe.getRight(), false);
+
+    } else if (node instanceof ForExpression) {
+      ForExpression forexpr = (ForExpression) node;
+      return depends(forexpr.getValueExpression(), input) |
+        dependsAll(forexpr.getChildren(), forexpr.getValueExpression(), false);
+
+    } else if (node instanceof ObjectComprehension) {
+      ObjectComprehension comp = (ObjectComprehension) node;
+      return depends(comp.getLoop(), input) |
+        dependsAll(comp.getChildren(), comp.getLoop(), false);
+
+    } else if (node instanceof ObjectExpression) {
+      // the matcher reads whatever object it's matched against
+      if (((ObjectExpression) node).getMatcher() != null)
+        return true;
+      return dependsAll(node.getChildren(), null, input);
+
+    } else if (node instanceof FunctionExpression) {
+      FunctionExpression call = (FunctionExpression) node;
+      boolean depends = dependsAll(node.getChildren(), null, input);
+
+      FunctionDeclaration declared = call.getDeclaredFunction();
+      if (declared != null) {
+        // the body sees the same input as the caller. recursive calls
+        // are covered by the outer call
+        if (active.contains(declared))
+          return depends;
+        active.add(declared);
+        for (int ix = 0; ix < declared.getLets().length; ix++)
+          depends |= bind(declared.getLets()[ix], input);
+        depends |= depends(declared.getBody(), input);
+        active.remove(declared);
+        return depends;
+
+      } else if (call.getFunction() instanceof JstlFile) {
+        // the module's body gets the argument as its input
+        ExpressionImpl body = ((JstlFile) call.getFunction()).getBody();
+        for (int ix = 0; ix < body.getLets().length; ix++)
+          depends |= bind(body.getLets()[ix], false);
+        return depends | (body.hasBody() && depends(body.getBody(), false));
+      }
+
+      return depends || !OptimizeUtils.isPure(call.getFunction());
+
+    } else
+      return dependsAll(node.getChildren(), null, input);
+  }
+
+  private boolean dependsAll(List<ExpressionNode> children,
+                             ExpressionNode skip, boolean input) {
+    // we have to look at every child, so that all lets are bound
+    boolean depends = false;
+    for (ExpressionNode child : children)
+      if (child != skip)
+        depends |= depends(child, input);
+    return depends;
+  }
+
+  private boolean bind(LetExpression let, boolean input) {
+    boolean depends = depends(let.getDeclaration(), input);
+    lets.put(let.getDeclaration(), depends);
+    return depends;
+  }
+
+  private boolean depends(VariableExpression variable) {
+    VariableInfo info = variable.getInfo();
+    ExpressionNode declaration = info.getDeclaration();
+    if (declaration == null) {
+      // function parameters are checked where the function is
+      // called. the others are external parameters
+      boolean global = (info.getSlot() & 0x10000000) != 0;
+      return global && !parametersFixed;
+    }
+
+    Boolean depends = lets.get(declaration);
+    if (depends == null && outerFixed)
+      return false; // bound outside the loop
+    else if (depends == null) {
+      // a global variable in a module, which we haven't seen bound
+      depends = depends(declaration, true);
+      lets.put(declaration, depends);
+    }
+    return depends;
+  }
+}
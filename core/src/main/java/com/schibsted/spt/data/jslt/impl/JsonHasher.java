@@ -0,0 +1,268 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.schibsted.spt.data.jslt.impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.schibsted.spt.data.jslt.JsltException;
+
+/**
+ * Walks a JSON value and feeds the JSON text for it, one character
+ * at a time, to a hash. The text is exactly what Jackson would write,
+ * but it is never built in memory.
+ *
+ * <p>With sorted keys the text is canonical, so that objects with the
+ * same keys and values give the same text whatever the key order.
+ */
+public abstract class JsonHasher {
+  // used for the odd number types, to get exactly the same text
+  private static ObjectMapper mapper = JsonMapper.builder()
+          .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+          .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+          .build()
+          ;
+  private static ObjectWriter writer = mapper.writer();
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private boolean sortKeys;
+
+  public JsonHasher(boolean sortKeys) {
+    this.sortKeys = sortKeys;
+  }
+
+  protected abstract void write(char ch);
+
+  protected void write(String str) {
+    for (int ix = 0; ix < str.length(); ix++)
+      write(str.charAt(ix));
+  }
+
+  public void writeValue(JsonNode node) {
+    if (node.isTextual())
+      writeString(node.textValue());
+    else if (node.isObject())
+      writeObject(node);
+    else if (node.isArray()) {
+      write('[');
+      for (int ix = 0; ix < node.size(); ix++) {
+        if (ix > 0)
+          write(',');
+        writeValue(node.get(ix));
+      }
+      write(']');
+    } else if (node.isIntegralNumber() ||
+               (node.isDouble() && Double.isFinite(node.doubleValue())) ||
+               node.isBoolean() || node.isNull())
+      write(node.asText());
+    else
+      write(toJson(node));
+  }
+
+  private void writeObject(JsonNode node) {
+    String[] keys = new String[node.size()];
+    Iterator<String> it = node.fieldNames();
+    for (int ix = 0; ix < keys.length; ix++)
+      keys[ix] = it.next();
+    if (sortKeys)
+      Arrays.sort(keys);
+
+    write('{');
+    for (int ix = 0; ix < keys.length; ix++) {
+      if (ix > 0)
+        write(',');
+      writeString(keys[ix]);
+      write(':');
+      writeValue(node.get(keys[ix]));
+    }
+    write('}');
+  }
+
+  private void writeString(String str) {
+    write('"');
+    for (int ix = 0; ix < str.length(); ix++) {
+      char ch = str.charAt(ix);
+      if (ch == '"' || ch == '\\') {
+        write('\\');
+        write(ch);
+      } else if (ch >= 0x20)
+        write(ch);
+      else {
+        write('\\');
+        switch (ch) {
+        case '\b': write('b'); break;
+        case '\t': write('t'); break;
+        case '\n': write('n'); break;
+        case '\f': write('f'); break;
+        case '\r': write('r'); break;
+        default:
+          write("u00");
+          write(HEX[ch >> 4]);
+          write(HEX[ch & 0xF]);
+        }
+      }
+    }
+    write('"');
+  }
+
+  private String toJson(JsonNode node) {
+    if (!sortKeys)
+      return node.toString();
+
+    // https://stackoverflow.com/a/18993481/90580
+    try {
+      return writer.writeValueAsString(mapper.treeToValue(node, Object.class));
+    } catch (JsonProcessingException e) {
+      throw new JsltException("Can't process json " + e);
+    }
+  }
+
+  /**
+   * Computes the same hash code as String.hashCode() would for the
+   * JSON text.
+   */
+  public static class StringHash extends JsonHasher {
+    private int hash;
+
+    public StringHash() {
+      super(true);
+    }
+
+    protected void write(char ch) {
+      hash = 31 * hash + ch;
+    }
+
+    public int getHash() {
+      return hash;
+    }
+  }
+
+  /**
+   * Feeds the JSON text, encoded as UTF-8, to a SHA-256 digest. Keys
+   * are kept in the order they have in the object. Each thread has
+   * its own instance, so the digest and buffer are reused.
+   */
+  public static class Sha256 extends JsonHasher {
+    private static final ThreadLocal<Sha256> instances =
+      new ThreadLocal<Sha256>() {
+        protected Sha256 initialValue() {
+          return new Sha256();
+        }
+      };
+
+    private MessageDigest digest;
+    private byte[] buffer;
+    private int pos;
+    private char highSurrogate; // waiting for the low surrogate, if any
+
+    private Sha256() {
+      super(false);
+      try {
+        this.digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new JsltException("sha256-hex: could not find sha256 algorithm " + e);
+      }
+      this.buffer = new byte[1024];
+    }
+
+    public static Sha256 get() {
+      return instances.get();
+    }
+
+    /**
+     * Hashes the string itself, without quotes or escaping.
+     */
+    public byte[] digestText(String str) {
+      reset();
+      write(str);
+      return finish();
+    }
+
+    public byte[] digestValue(JsonNode node) {
+      reset();
+      writeValue(node);
+      return finish();
+    }
+
+    // a hash that failed halfway may have left data behind
+    private void reset() {
+      digest.reset();
+      pos = 0;
+      highSurrogate = 0;
+    }
+
+    private byte[] finish() {
+      if (highSurrogate != 0) {
+        // lone high surrogate at the end, which String.getBytes()
+        // turns into '?'
+        highSurrogate = 0;
+        add('?');
+      }
+      digest.update(buffer, 0, pos);
+      pos = 0;
+      return digest.digest();
+    }
+
+    protected void write(char ch) {
+      if (pos > buffer.length - 4) {
+        digest.update(buffer, 0, pos);
+        pos = 0;
+      }
+
+      if (highSurrogate != 0) {
+        char high = highSurrogate;
+        highSurrogate = 0;
+        if (Character.isLowSurrogate(ch)) {
+          int cp = Character.toCodePoint(high, ch);
+          add(0xF0 | (cp >> 18));
+          add(0x80 | ((cp >> 12) & 0x3F));
+          add(0x80 | ((cp >> 6) & 0x3F));
+          add(0x80 | (cp & 0x3F));
+          return;
+        }
+        add('?');
+        write(ch);
+        return;
+      }
+
+      if (ch < 0x80)
+        add(ch);
+      else if (ch < 0x800) {
+        add(0xC0 | (ch >> 6));
+        add(0x80 | (ch & 0x3F));
+      } else if (Character.isHighSurrogate(ch))
+        highSurrogate = ch;
+      else if (Character.isLowSurrogate(ch))
+        add('?');
+      else {
+        add(0xE0 | (ch >> 12));
+        add(0x80 | ((ch >> 6) & 0x3F));
+        add(0x80 | (ch & 0x3F));
+      }
+    }
+
+    private void add(int b) {
+      buffer[pos++] = (byte) b;
+    }
+  }
+}
@@ -64,7 +64,19 @@ public class JstlFile implements Module, Function {
     return body.apply(arguments[0]);
   }
 
+  public void evaluateVariantLetsOnly(Scope scope, JsonNode input) {
+    body.evaluateVariantLetsOnly(scope, input);
+  }
+
+  public ExpressionImpl getBody() {
+    return body;
+  }
+
   public void evaluateLetsOnly(Scope scope, JsonNode input) {
     body.evaluateLetsOnly(scope, input);
   }
+
+  public void compile() {
+    body.compile();
+  }
 }
@@ -0,0 +1,73 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.schibsted.spt.data.jslt.impl;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.Matcher;
+import com.schibsted.spt.data.jslt.RegexpCache;
+
+/**
+ * A compiled regexp together with the names of its named groups,
+ * which capture() needs. The names are only worked out if asked for.
+ */
+// from https://stackoverflow.com/a/15588989/5974641
+public class JstlPattern {
+  private Pattern pattern;
+  private volatile Set<String> groups; // computed when first needed
+
+  public JstlPattern(Pattern pattern) {
+    this.pattern = pattern;
+  }
+
+  /**
+   * Gets the regexp from the cache. Caches that don't keep the
+   * names of the groups get them worked out again when needed.
+   */
+  public static JstlPattern lookup(RegexpCache cache, String regexp) {
+    if (cache instanceof StripedRegexpCache)
+      return ((StripedRegexpCache) cache).getJstlPattern(regexp);
+    return new JstlPattern(cache.getPattern(regexp));
+  }
+
+  public Pattern getPattern() {
+    return pattern;
+  }
+
+  public Matcher matcher(String input) {
+    return pattern.matcher(input);
+  }
+
+  public Set<String> getGroups() {
+    // two threads may both do this, but they get the same result
+    if (groups == null)
+      groups = getNamedGroups(pattern.pattern());
+    return groups;
+  }
+
+  private static Pattern extractor =
+    Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
+  private static Set<String> getNamedGroups(String regex) {
+    Set<String> groups = new TreeSet<String>();
+
+    Matcher m = extractor.matcher(regex);
+    while (m.find())
+      groups.add(m.group(1));
+
+    return groups;
+  }
+}
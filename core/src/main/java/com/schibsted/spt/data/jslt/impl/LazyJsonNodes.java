@@ -0,0 +1,225 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.schibsted.spt.data.jslt.JsltException;
+
+/**
+ * Makes JsonNodes that are backed by raw JSON bytes and only parse
+ * what is actually used. The nodes are ordinary ObjectNodes and
+ * ArrayNodes, but their children are kept in a map or list that
+ * isn't filled in until it's first accessed. At that point the
+ * object or array is scanned once: scalar members are parsed, and
+ * nested objects and arrays are skipped over and become lazy nodes
+ * of their own, which only know where they start.
+ */
+public class LazyJsonNodes {
+
+  /**
+   * Returns a node for the JSON value starting at the given offset.
+   * Only the start of the value is parsed, so malformed JSON may not
+   * be detected until the node is used.
+   */
+  public static JsonNode create(byte[] json, int offset, int length) {
+    try (JsonParser parser = createParser(json, offset, length)) {
+      if (parser.nextToken() == null)
+        return NodeUtils.mapper.getNodeFactory().nullNode();
+      return toNode(parser, json, offset, offset + length);
+    } catch (IOException e) {
+      throw new JsltException("Couldn't parse JSON: " + e, e);
+    }
+  }
+
+  private static JsonParser createParser(byte[] json, int offset, int length)
+    throws IOException {
+    return NodeUtils.mapper.getFactory().createParser(json, offset, length);
+  }
+
+  // the parser is on the first token of a value, and is left there.
+  // offset is where the parser started, and limit is the end of the
+  // bytes we may read
+  private static JsonNode toNode(JsonParser parser, byte[] json,
+                                 int offset, int limit)
+    throws IOException {
+    JsonToken token = parser.currentToken();
+    if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY)
+      return NodeUtils.mapper.readTree(parser);
+
+    // offsets from the parser are relative to where it started
+    int start = offset + (int) parser.getTokenLocation().getByteOffset();
+    JsonNodeFactory factory = NodeUtils.mapper.getNodeFactory();
+    if (token == JsonToken.START_OBJECT)
+      return new ObjectNode(factory, new LazyMap(json, start, limit));
+    else
+      return new ArrayNode(factory, new LazyList(json, start, limit));
+  }
+
+  // ===== LAZY CONTAINERS
+
+  /**
+   * The members of a JSON object, read on first access.
+   */
+  static class LazyMap extends AbstractMap<String, JsonNode> {
+    private byte[] json;
+    private int start;
+    private int limit;
+    private volatile Map<String, JsonNode> members;
+
+    LazyMap(byte[] json, int start, int limit) {
+      this.json = json;
+      this.start = start;
+      this.limit = limit;
+    }
+
+    private Map<String, JsonNode> members() {
+      Map<String, JsonNode> map = members;
+      if (map == null)
+        map = scan();
+      return map;
+    }
+
+    private synchronized Map<String, JsonNode> scan() {
+      if (members != null)
+        return members;
+
+      Map<String, JsonNode> map = new LinkedHashMap();
+      try (JsonParser parser = createParser(json, start, limit - start)) {
+        parser.nextToken(); // the start of the object
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String key = parser.getCurrentName();
+          parser.nextToken();
+          map.put(key, toNode(parser, json, start, limit));
+          parser.skipChildren();
+        }
+      } catch (IOException e) {
+        throw new JsltException("Couldn't parse JSON: " + e, e);
+      }
+
+      members = map;
+      json = null; // not needed any more
+      return map;
+    }
+
+    public Set<Map.Entry<String, JsonNode>> entrySet() {
+      return members().entrySet();
+    }
+
+    public JsonNode get(Object key) {
+      return members().get(key);
+    }
+
+    public boolean containsKey(Object key) {
+      return members().containsKey(key);
+    }
+
+    public int size() {
+      return members().size();
+    }
+
+    public JsonNode put(String key, JsonNode value) {
+      return members().put(key, value);
+    }
+
+    public JsonNode remove(Object key) {
+      return members().remove(key);
+    }
+
+    public void clear() {
+      members().clear();
+    }
+  }
+
+  /**
+   * The elements of a JSON array, read on first access.
+   */
+  static class LazyList extends AbstractList<JsonNode> {
+    private byte[] json;
+    private int start;
+    private int limit;
+    private volatile List<JsonNode> elements;
+
+    LazyList(byte[] json, int start, int limit) {
+      this.json = json;
+      this.start = start;
+      this.limit = limit;
+    }
+
+    private List<JsonNode> elements() {
+      List<JsonNode> list = elements;
+      if (list == null)
+        list = scan();
+      return list;
+    }
+
+    private synchronized List<JsonNode> scan() {
+      if (elements != null)
+        return elements;
+
+      List<JsonNode> list = new ArrayList();
+      try (JsonParser parser = createParser(json, start, limit - start)) {
+        parser.nextToken(); // the start of the array
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          list.add(toNode(parser, json, start, limit));
+          parser.skipChildren();
+        }
+      } catch (IOException e) {
+        throw new JsltException("Couldn't parse JSON: " + e, e);
+      }
+
+      elements = list;
+      json = null; // not needed any more
+      return list;
+    }
+
+    public JsonNode get(int index) {
+      return elements().get(index);
+    }
+
+    public int size() {
+      return elements().size();
+    }
+
+    public JsonNode set(int index, JsonNode value) {
+      return elements().set(index, value);
+    }
+
+    public void add(int index, JsonNode value) {
+      elements().add(index, value);
+    }
+
+    public JsonNode remove(int index) {
+      return elements().remove(index);
+    }
+
+    public void clear() {
+      elements().clear();
+    }
+  }
+}
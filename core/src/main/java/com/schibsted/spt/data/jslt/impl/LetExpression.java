@@ -71,7 +71,18 @@ public class LetExpression extends AbstractNode {
     slot = info.getSlot();
   }
 
+  /**
+   * What we know about the variable. null before prepare().
+   */
+  public VariableInfo getInfo() {
+    return info;
+  }
+
   public ExpressionNode getDeclaration() {
     return value;
   }
+
+  public void setDeclaration(ExpressionNode value) {
+    this.value = value;
+  }
 }
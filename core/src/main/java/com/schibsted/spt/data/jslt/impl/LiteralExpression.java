@@ -27,10 +27,18 @@ public class LiteralExpression extends AbstractNode {
     this.value = value;
   }
 
+  public JsonNode getValue() {
+    return value;
+  }
+
   public JsonNode apply(Scope scope, JsonNode input) {
     return value;
   }
 
+  public boolean test(Scope scope, JsonNode input) {
+    return NodeUtils.isTrue(value);
+  }
+
   public void dump(int level) {
     System.out.println(NodeUtils.indent(level) + value);
   }
@@ -38,6 +38,10 @@ public class MacroExpression extends AbstractInvocationExpression {
     this.macro = macro;
   }
 
+  public Macro getMacro() {
+    return macro;
+  }
+
   public JsonNode apply(Scope scope, JsonNode input) {
     return macro.call(scope, input, arguments);
   }
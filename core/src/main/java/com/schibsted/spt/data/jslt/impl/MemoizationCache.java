@@ -0,0 +1,102 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl;
+
+import java.util.Map;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.schibsted.spt.data.jslt.CacheStatistics;
+
+/**
+ * Remembers the results of calls to a declared function, keyed on
+ * the argument values. Only used for functions whose result depends
+ * on nothing but the arguments. Shared by all threads evaluating the
+ * expression.
+ */
+public class MemoizationCache implements CacheStatistics {
+  private Map<Object, JsonNode> cache;
+  private AtomicLong hits;
+  private AtomicLong misses;
+  private AtomicLong evictions;
+
+  public MemoizationCache(int maxSize) {
+    this.hits = new AtomicLong();
+    this.misses = new AtomicLong();
+    this.evictions = new AtomicLong();
+    this.cache = Collections.synchronizedMap(new BoundedCache(maxSize) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+          if (!super.removeEldestEntry(eldest))
+            return false;
+          evictions.incrementAndGet();
+          return true;
+        }
+      });
+  }
+
+  /**
+   * Returns the remembered result, or null if there is none.
+   */
+  public JsonNode get(JsonNode[] arguments) {
+    JsonNode value = cache.get(key(arguments));
+    if (value != null)
+      hits.incrementAndGet();
+    else
+      misses.incrementAndGet();
+    return value;
+  }
+
+  public void put(JsonNode[] arguments, JsonNode value) {
+    cache.put(key(arguments), value);
+  }
+
+  /**
+   * The number of calls that were answered from the cache.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * The number of calls that had to evaluate the function.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * The number of results that were forgotten to make room for
+   * others.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * The number of results remembered now.
+   */
+  public int getSize() {
+    return cache.size();
+  }
+
+  private static Object key(JsonNode[] arguments) {
+    // JsonNode and List both compare by value
+    if (arguments.length == 1)
+      return arguments[0];
+    return Arrays.asList(arguments);
+  }
+}
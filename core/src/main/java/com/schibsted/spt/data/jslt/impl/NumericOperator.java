@@ -28,6 +28,40 @@ public abstract class NumericOperator extends AbstractOperator {
     super(left, right, name, location);
   }
 
+  // doubles can represent all integers up to this size exactly, so
+  // below it double arithmetic gives the same results as long
+  private static final double MAX_EXACT = 9007199254740992.0; // 2^53
+  protected static final long NO_LONG = Long.MIN_VALUE;
+
+  // true if the operands are numeric operators, paths, variables, or
+  // literals. these are cheap and have no side effects, so we can try
+  // evaluating them without creating JsonNode objects for intermediate
+  // results, and if that fails start over with apply()
+  private boolean primitive;
+  // true if primitive and there are intermediate results to save
+  private boolean nested;
+
+  public JsonNode apply(Scope scope, JsonNode input) {
+    if (nested) {
+      long l = applyLong(scope, input);
+      if (l != NO_LONG)
+        return new LongNode(l);
+
+      double d = applyDouble(scope, input);
+      if (!Double.isNaN(d))
+        return new DoubleNode(d);
+    }
+    return super.apply(scope, input);
+  }
+
+  public ExpressionNode optimize() {
+    ExpressionNode optimized = super.optimize();
+    primitive = isPrimitive(left) && isPrimitive(right);
+    nested = primitive && (left instanceof NumericOperator ||
+                           right instanceof NumericOperator);
+    return optimized;
+  }
+
   public JsonNode perform(JsonNode v1, JsonNode v2) {
     if (v1.isNull() || v2.isNull())
       return NullNode.instance;
@@ -41,6 +75,97 @@ public abstract class NumericOperator extends AbstractOperator {
       return new DoubleNode(perform(v1.doubleValue(), v2.doubleValue()));
   }
 
+  // ===== PRIMITIVE EVALUATION
+
+  /**
+   * Evaluates the expression as a long, if all operands are integers
+   * and the result is an integer. Otherwise returns NO_LONG, and the
+   * caller has to use apply().
+   */
+  private long applyLong(Scope scope, JsonNode input) {
+    long v1 = applyLong(left, scope, input);
+    if (v1 == NO_LONG)
+      return NO_LONG;
+    long v2 = applyLong(right, scope, input);
+    if (v2 == NO_LONG)
+      return NO_LONG;
+    return performLong(v1, v2);
+  }
+
+  // returns NO_LONG if the result is not an integer
+  protected long performLong(long v1, long v2) {
+    return perform(v1, v2);
+  }
+
+  private static long applyLong(ExpressionNode node, Scope scope,
+                                JsonNode input) {
+    if (node instanceof NumericOperator)
+      return ((NumericOperator) node).applyLong(scope, input);
+
+    JsonNode value = node.apply(scope, input);
+    if (value.isIntegralNumber())
+      return value.longValue();
+    return NO_LONG;
+  }
+
+  /**
+   * Evaluates a primitive operand as a double, in the same way as the
+   * ComparisonOperator would see it. Returns NaN if that's not
+   * possible, in which case the caller has to use apply().
+   */
+  static double applyDouble(ExpressionNode node, Scope scope, JsonNode input) {
+    double value;
+    if (node instanceof NumericOperator)
+      value = ((NumericOperator) node).applyDouble(scope, input);
+    else {
+      JsonNode result = node.apply(scope, input);
+      if (!result.isNumber())
+        return Double.NaN;
+      value = result.doubleValue();
+    }
+
+    // also covers infinity, so division by zero goes to the slow path
+    if (Math.abs(value) >= MAX_EXACT)
+      return Double.NaN;
+    return value;
+  }
+
+  private double applyDouble(Scope scope, JsonNode input) {
+    if (!primitive)
+      return Double.NaN;
+
+    double v1 = applyDouble(left, scope, input);
+    if (Double.isNaN(v1))
+      return Double.NaN;
+    double v2 = applyDouble(right, scope, input);
+    if (Double.isNaN(v2))
+      return Double.NaN;
+    return perform(v1, v2);
+  }
+
+  /**
+   * Can the node be evaluated more than once without changing the
+   * result, and cheaply?
+   */
+  static boolean isPrimitive(ExpressionNode node) {
+    if (node instanceof LiteralExpression || node instanceof VariableExpression)
+      return true;
+    else if (node.getClass() == DotExpression.class) {
+      ExpressionNode parent = ((DotExpression) node).getParent();
+      return parent == null || isPrimitive(parent);
+    } else if (node instanceof PathExpression) {
+      ExpressionNode base = ((PathExpression) node).getBase();
+      return base == null || isPrimitive(base);
+    } else if (node instanceof NumericOperator)
+      return ((NumericOperator) node).primitive;
+    else
+      return false;
+  }
+
+  public boolean isNested() {
+    return nested;
+  }
+
   protected abstract double perform(double v1, double v2);
 
   protected abstract long perform(long v1, long v2);
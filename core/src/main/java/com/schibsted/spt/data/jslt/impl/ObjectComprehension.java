@@ -33,10 +33,12 @@ import com.schibsted.spt.data.jslt.filters.JsonFilter;
 public class ObjectComprehension extends AbstractNode {
   private ExpressionNode loop;
   private LetExpression[] lets;
+  private LetExpression[] hoistedLets; // don't depend on the element
   private ExpressionNode key;
   private ExpressionNode value;
   private ExpressionNode ifExpr;
   private JsonFilter filter;
+  private FunctionExpression batchCall; // the value expression, if batched
 
   public ObjectComprehension(ExpressionNode loop,
                              LetExpression[] lets,
@@ -48,12 +50,45 @@ public class ObjectComprehension extends AbstractNode {
     super(location);
     this.loop = loop;
     this.lets = lets;
+    this.hoistedLets = new LetExpression[0];
     this.key = key;
     this.value = value;
     this.ifExpr = ifExpr;
     this.filter = filter;
   }
 
+  public ExpressionNode getLoop() {
+    return loop;
+  }
+
+  public LetExpression[] getLets() {
+    return lets;
+  }
+
+  /**
+   * The lets that were found not to depend on the element being
+   * looped over, which are evaluated once before the loop starts.
+   */
+  public LetExpression[] getHoistedLets() {
+    return hoistedLets;
+  }
+
+  public ExpressionNode getKey() {
+    return key;
+  }
+
+  public ExpressionNode getValue() {
+    return value;
+  }
+
+  public ExpressionNode getIfExpression() {
+    return ifExpr;
+  }
+
+  public JsonFilter getFilter() {
+    return filter;
+  }
+
   public JsonNode apply(Scope scope, JsonNode input) {
     JsonNode sequence = loop.apply(scope, input);
     if (sequence.isNull())
@@ -64,14 +99,22 @@ public class ObjectComprehension extends AbstractNode {
       throw new JsltException("Object comprehension can't loop over " + sequence, location);
 
     ObjectNode object = NodeUtils.mapper.createObjectNode();
+    // if there are no elements the lets are never evaluated
+    if (hoistedLets.length > 0 && sequence.size() > 0)
+      NodeUtils.evalLets(scope, input, hoistedLets);
+
+    if (batchCall != null)
+      return applyBatch(scope, sequence, object);
+
     for (int ix = 0; ix < sequence.size(); ix++) {
       JsonNode context = sequence.get(ix);
 
-      // must evaluate lets over again for each value because of context
+      // must evaluate the other lets over again for each value
+      // because of context
       if (lets.length > 0)
         NodeUtils.evalLets(scope, context, lets);
 
-      if (ifExpr == null || NodeUtils.isTrue(ifExpr.apply(scope, context))) {
+      if (ifExpr == null || ifExpr.test(scope, context)) {
         JsonNode valueNode = value.apply(scope, context);
         if (filter.filter(valueNode)) {
           // if there is no value, no need to evaluate the key
@@ -85,6 +128,37 @@ public class ObjectComprehension extends AbstractNode {
     return object;
   }
 
+  // evaluates the arguments for all the elements first, so that the
+  // function can be called once for all of them. there are no lets
+  // in the loop, so the keys can be evaluated afterwards
+  private JsonNode applyBatch(Scope scope, JsonNode sequence,
+                              ObjectNode object) {
+    JsonNode[] contexts = new JsonNode[sequence.size()];
+    JsonNode[][] arguments = new JsonNode[sequence.size()][];
+    int count = 0;
+    for (int ix = 0; ix < sequence.size(); ix++) {
+      JsonNode context = sequence.get(ix);
+      if (ifExpr == null || ifExpr.test(scope, context)) {
+        contexts[count] = context;
+        arguments[count++] = batchCall.evaluateArguments(scope, context);
+      }
+    }
+    if (count == 0)
+      return object;
+
+    JsonNode[] values = batchCall.callBatch(Arrays.copyOf(contexts, count),
+                                            Arrays.copyOf(arguments, count));
+    for (int ix = 0; ix < count; ix++) {
+      if (filter.filter(values[ix])) {
+        JsonNode keyNode = key.apply(scope, contexts[ix]);
+        if (!keyNode.isTextual())
+          throw new JsltException("Object comprehension must have string as key, not " + keyNode, location);
+        object.set(keyNode.asText(), values[ix]);
+      }
+    }
+    return object;
+  }
+
   public void prepare(PreparationContext ctx) {
     ctx.scope.enterScope();
 
@@ -99,6 +173,7 @@ public class ObjectComprehension extends AbstractNode {
 
   public List<ExpressionNode> getChildren() {
     List<ExpressionNode> children = new ArrayList();
+    children.addAll(Arrays.asList(hoistedLets));
     children.addAll(Arrays.asList(lets));
     children.add(loop);
     children.add(key);
@@ -112,14 +187,37 @@ public class ObjectComprehension extends AbstractNode {
     for (int ix = 0; ix < lets.length; ix++)
       lets[ix].optimize();
 
+    List<LetExpression> hoisted = new ArrayList(Arrays.asList(hoistedLets));
+    lets = OptimizeUtils.hoistLoopLets(lets, hoisted);
+    hoistedLets = hoisted.toArray(new LetExpression[0]);
+    // the hoisted lets are used inside the loop, so they can only be
+    // removed if they're not used at all
+    hoistedLets = OptimizeUtils.eliminateLets(hoistedLets);
+    lets = OptimizeUtils.eliminateLets(lets, key, value, ifExpr);
+
     loop = loop.optimize();
     key = key.optimize();
     value = value.optimize();
     if (ifExpr != null)
       ifExpr = ifExpr.optimize();
+
+    // with lets the keys would have to be evaluated together with the
+    // arguments, before the filter has seen the values
+    batchCall = null;
+    if (lets.length == 0 && value instanceof FunctionExpression &&
+        ((FunctionExpression) value).isBatchCall())
+      batchCall = (FunctionExpression) value;
     return this;
   }
 
+  /**
+   * True if the value expression is a call to a BatchFunction, which
+   * is made once for all the elements.
+   */
+  public boolean isBatched() {
+    return batchCall != null;
+  }
+
   public void dump(int level) {
   }
 }
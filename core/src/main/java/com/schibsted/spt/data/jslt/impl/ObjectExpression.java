@@ -22,6 +22,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.NullNode;
@@ -30,6 +32,8 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.schibsted.spt.data.jslt.JsltException;
 import com.schibsted.spt.data.jslt.filters.JsonFilter;
+import com.schibsted.spt.data.jslt.filters.TrueJsonFilter;
+import com.schibsted.spt.data.jslt.filters.DefaultJsonFilter;
 
 public class ObjectExpression extends AbstractNode {
   private LetExpression[] lets;
@@ -39,6 +43,7 @@ public class ObjectExpression extends AbstractNode {
   private Set<String> keys; // the static keys defined in this template
   private JsonFilter filter;
   private boolean containsDynamicKeys;
+  private String[] staticKeys; // null if there are dynamic keys
 
   public ObjectExpression(LetExpression[] lets,
                           PairExpression[] children,
@@ -65,8 +70,12 @@ public class ObjectExpression extends AbstractNode {
       for (String minus : matcher.getMinuses())
         keys.add(minus);
 
-    if (!containsDynamicKeys)
+    if (!containsDynamicKeys) {
       checkForDuplicates();
+      staticKeys = new String[children.length];
+      for (int ix = 0; ix < children.length; ix++)
+        staticKeys[ix] = children[ix].getStaticKey();
+    }
   }
 
   private void checkForDuplicates() {
@@ -81,6 +90,34 @@ public class ObjectExpression extends AbstractNode {
     }
   }
 
+  public LetExpression[] getLets() {
+    return lets;
+  }
+
+  public PairExpression[] getPairs() {
+    return children;
+  }
+
+  public MatcherExpression getMatcher() {
+    return matcher;
+  }
+
+  public boolean hasDynamicKeys() {
+    return containsDynamicKeys;
+  }
+
+  public JsonFilter getFilter() {
+    return filter;
+  }
+
+  /**
+   * The expression that finds the object the matcher matches
+   * against. null if there is no matcher.
+   */
+  public DotExpression getContextQuery() {
+    return contextQuery;
+  }
+
   public JsonNode apply(Scope scope, JsonNode input) {
     NodeUtils.evalLets(scope, input, lets);
 
@@ -103,6 +140,85 @@ public class ObjectExpression extends AbstractNode {
     return object;
   }
 
+  public void write(Scope scope, JsonNode input, JsonGenerator out,
+                    PendingOutput pending) throws IOException {
+    boolean defaultFilter = filter.getClass() == DefaultJsonFilter.class;
+    if (!defaultFilter && filter.getClass() != TrueJsonFilter.class) {
+      // we can't tell what a custom filter would do with values we
+      // haven't built, so build the object first
+      super.write(scope, input, out, pending);
+      return;
+    }
+
+    NodeUtils.evalLets(scope, input, lets);
+
+    PendingOutput object = new PendingOutput(pending, null, PendingOutput.OBJECT);
+    if (pending == null)
+      object.flush(out);
+
+    if (containsDynamicKeys)
+      writeDynamicPairs(scope, input, out, object);
+    else if (defaultFilter) {
+      for (int ix = 0; ix < children.length; ix++)
+        children[ix].getValue().write(scope, input, out, new PendingOutput(
+          object, staticKeys[ix], PendingOutput.NONE
+        ));
+    } else {
+      for (int ix = 0; ix < children.length; ix++) {
+        object.flush(out);
+        out.writeFieldName(staticKeys[ix]);
+        children[ix].getValue().write(scope, input, out, null);
+      }
+    }
+
+    if (matcher != null)
+      writeMatcher(scope, input, out, object);
+
+    if (object.isWritten())
+      out.writeEndObject();
+  }
+
+  // we have to know the key before the value can be written, and the
+  // key is evaluated after the value, so the values are built
+  private void writeDynamicPairs(Scope scope, JsonNode input,
+                                 JsonGenerator out, PendingOutput object)
+    throws IOException {
+    Set<String> seen = new HashSet();
+    for (int ix = 0; ix < children.length; ix++) {
+      JsonNode value = children[ix].apply(scope, input);
+      if (filter.filter(value)) {
+        String key = children[ix].applyKey(scope, input);
+
+        if (seen.contains(key))
+          throw new JsltException("Duplicate key '" + key + "' in object", children[ix].getLocation());
+        seen.add(key);
+
+        object.flush(out);
+        out.writeFieldName(key);
+        NodeUtils.mapper.writeTree(out, value);
+      }
+    }
+  }
+
+  private void writeMatcher(Scope scope, JsonNode input, JsonGenerator out,
+                            PendingOutput object) throws IOException {
+    JsonNode context = contextQuery.apply(scope, input);
+    if (context.isNull() && !context.isObject())
+      return; // no keys to match against
+
+    Iterator<Map.Entry<String, JsonNode>> it = context.fields();
+    while (it.hasNext()) {
+      Map.Entry<String, JsonNode> pair = it.next();
+      if (keys.contains(pair.getKey()))
+        continue; // the template has defined this key, so skip
+
+      JsonNode value = matcher.apply(scope, pair.getValue());
+      object.flush(out);
+      out.writeFieldName(pair.getKey());
+      NodeUtils.mapper.writeTree(out, value);
+    }
+  }
+
   private void evaluateMatcher(Scope scope, JsonNode input, ObjectNode object) {
     // find the object to match against
     JsonNode context = contextQuery.apply(scope, input);
@@ -137,6 +253,7 @@ public class ObjectExpression extends AbstractNode {
   public ExpressionNode optimize() {
     for (int ix = 0; ix < lets.length; ix++)
       lets[ix].optimize();
+    lets = OptimizeUtils.eliminateLets(lets, children);
 
     if (matcher != null)
       matcher.optimize();
@@ -15,6 +15,14 @@
 
 package com.schibsted.spt.data.jslt.impl;
 
+import java.util.Set;
+import java.util.List;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import com.schibsted.spt.data.jslt.Function;
+import com.schibsted.spt.data.jslt.filters.DefaultJsonFilter;
+
 public class OptimizeUtils {
 
   /**
@@ -41,4 +49,287 @@ public class OptimizeUtils {
     }
     return filtered;
   }
+
+  /**
+   * Moves the lets of a loop that don't depend on the element being
+   * looped over into the hoisted list, and returns the rest. The
+   * hoisted lets only need to be evaluated once per loop.
+   */
+  public static LetExpression[] hoistLoopLets(LetExpression[] lets,
+                                              List<LetExpression> hoisted) {
+    InvariantAnalyzer analyzer = InvariantAnalyzer.forLoop();
+    List<LetExpression> remaining = new ArrayList();
+    for (int ix = 0; ix < lets.length; ix++) {
+      if (analyzer.isInvariant(lets[ix]))
+        hoisted.add(lets[ix]);
+      else
+        remaining.add(lets[ix]);
+    }
+
+    if (remaining.size() == lets.length)
+      return lets;
+    return remaining.toArray(new LetExpression[0]);
+  }
+
+  /**
+   * Removes lets that are never used, and lets that are used only
+   * once in the given expressions, which is where the variables are
+   * visible. A let used once is inlined: the variable is replaced by
+   * the declaration. Only lets whose declarations can't fail are
+   * removed or moved, so that errors aren't lost. Must be called
+   * after the lets are optimized, and before the expressions are.
+   */
+  public static LetExpression[] eliminateLets(LetExpression[] lets,
+                                              ExpressionNode... scope) {
+    boolean[] removed = new boolean[lets.length];
+
+    // go backwards, so that lets only used by removed lets are removed
+    for (int ix = lets.length - 1; ix >= 0; ix--) {
+      VariableInfo info = lets[ix].getInfo();
+      if (info.getUsageCount() == 0 && cannotFail(lets[ix].getDeclaration())) {
+        forgetUsages(lets[ix].getDeclaration());
+        removed[ix] = true;
+      }
+    }
+
+    for (int ix = 0; ix < lets.length; ix++) {
+      VariableInfo info = lets[ix].getInfo();
+      if (removed[ix] || info.getUsageCount() != 1 ||
+          !cannotFail(lets[ix].getDeclaration()))
+        continue;
+
+      // the use can't be inside a loop or with a different '.', since
+      // then the declaration wouldn't be evaluated the same way
+      for (int pos = 0; pos < scope.length; pos++) {
+        if (scope[pos] != null && isUsedIn(scope[pos], info)) {
+          info.setInlined();
+          removed[ix] = true;
+          break;
+        }
+      }
+    }
+
+    List<LetExpression> remaining = new ArrayList();
+    for (int ix = 0; ix < lets.length; ix++)
+      if (!removed[ix])
+        remaining.add(lets[ix]);
+    if (remaining.size() == lets.length)
+      return lets;
+    return remaining.toArray(new LetExpression[0]);
+  }
+
+  // is the variable used in the node, evaluated once with the same
+  // '.' as the node?
+  private static boolean isUsedIn(ExpressionNode node, VariableInfo info) {
+    if (node instanceof VariableExpression)
+      return ((VariableExpression) node).getInfo() == info;
+    else if (node instanceof ForExpression)
+      return isUsedIn(((ForExpression) node).getValueExpression(), info);
+    else if (node instanceof ObjectComprehension)
+      return isUsedIn(((ObjectComprehension) node).getLoop(), info);
+    else if (node instanceof PipeOperator)
+      return isUsedIn(((PipeOperator) node).getLeft(), info);
+    else if (node instanceof MacroExpression &&
+             !(((MacroExpression) node).getMacro() instanceof BuiltinFunctions.Fallback))
+      return false; // may evaluate the arguments any number of times
+    else if (node instanceof ObjectExpression) {
+      ObjectExpression object = (ObjectExpression) node;
+      for (ExpressionNode child : object.getChildren())
+        if (child != object.getMatcher() && isUsedIn(child, info))
+          return true;
+      return false;
+    }
+
+    for (ExpressionNode child : node.getChildren())
+      if (isUsedIn(child, info))
+        return true;
+    return false;
+  }
+
+  // the expression is going away, so its variables are used less
+  private static void forgetUsages(ExpressionNode node) {
+    if (node instanceof VariableExpression)
+      ((VariableExpression) node).getInfo().decrementUsageCount();
+    for (ExpressionNode child : node.getChildren())
+      forgetUsages(child);
+  }
+
+  /**
+   * Is the expression certain to evaluate without errors, whatever
+   * the input? Such expressions are also pure. Only the simplest
+   * expressions are known to be safe: anything that calls a function
+   * or does arithmetic may fail.
+   */
+  public static boolean cannotFail(ExpressionNode node) {
+    if (node instanceof LiteralExpression ||
+        node instanceof VariableExpression)
+      return true;
+    else if (node instanceof FailDotExpression)
+      return false;
+    else if (node instanceof DotExpression) {
+      ExpressionNode parent = ((DotExpression) node).getParent();
+      return parent == null || cannotFail(parent);
+    } else if (node instanceof PathExpression) {
+      // index steps fail on strings that are too short
+      PathExpression path = (PathExpression) node;
+      for (int ix = 0; ix < path.getKeys().length; ix++)
+        if (path.getKeys()[ix] == null)
+          return false;
+      return path.getBase() == null || cannotFail(path.getBase());
+    } else if (node instanceof ArrayExpression) {
+      for (ExpressionNode child : node.getChildren())
+        if (!cannotFail(child))
+          return false;
+      return true;
+    } else if (node instanceof ObjectExpression) {
+      // dynamic keys can be duplicates or not strings, and object
+      // filters may be JSLT expressions
+      ObjectExpression object = (ObjectExpression) node;
+      if (object.hasDynamicKeys() || object.getMatcher() != null ||
+          !(object.getFilter() instanceof DefaultJsonFilter))
+        return false;
+      for (int ix = 0; ix < object.getLets().length; ix++)
+        if (!cannotFail(object.getLets()[ix].getDeclaration()))
+          return false;
+      for (int ix = 0; ix < object.getPairs().length; ix++)
+        if (!cannotFail(object.getPairs()[ix].getValue()))
+          return false;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Does the expression always give the same value for the same input
+   * and variables, without side effects? Extension functions may do
+   * anything, so calling them isn't pure.
+   */
+  public static boolean isPure(ExpressionNode node) {
+    return isPure(node, new HashSet());
+  }
+
+  private static boolean isPure(ExpressionNode node,
+                                Set<FunctionDeclaration> seen) {
+    if (node instanceof FunctionExpression) {
+      FunctionExpression call = (FunctionExpression) node;
+      FunctionDeclaration declared = call.getDeclaredFunction();
+      if (declared != null) {
+        if (seen.add(declared)) {
+          for (int ix = 0; ix < declared.getLets().length; ix++)
+            if (!isPure(declared.getLets()[ix], seen))
+              return false;
+          if (!isPure(declared.getBody(), seen))
+            return false;
+        }
+      } else if (call.getFunction() instanceof JstlFile) {
+        ExpressionImpl body = ((JstlFile) call.getFunction()).getBody();
+        for (int ix = 0; ix < body.getLets().length; ix++)
+          if (!isPure(body.getLets()[ix], seen))
+            return false;
+        if (body.hasBody() && !isPure(body.getBody(), seen))
+          return false;
+      } else if (!isPure(call.getFunction()))
+        return false;
+    }
+
+    for (ExpressionNode child : node.getChildren())
+      if (!isPure(child, seen))
+        return false;
+    return true;
+  }
+
+  /**
+   * The number of expression nodes in the lets and body of the
+   * function. Calls that have been inlined count as the copies that
+   * replace them.
+   */
+  public static int size(FunctionDeclaration function) {
+    int size = size(function.getBody());
+    for (int ix = 0; ix < function.getLets().length; ix++)
+      size += size(function.getLets()[ix]);
+    return size;
+  }
+
+  /**
+   * The number of expression nodes in the expression, counting
+   * inlined calls as the copies that replace them.
+   */
+  public static int size(ExpressionNode node) {
+    if (node instanceof FunctionExpression &&
+        ((FunctionExpression) node).getInlined() != null)
+      return size(((FunctionExpression) node).getInlined());
+
+    int size = 1;
+    for (ExpressionNode child : node.getChildren())
+      size += size(child);
+    return size;
+  }
+
+  /**
+   * Can a call to the function lead to another call to the same
+   * function, directly or through other functions?
+   */
+  public static boolean isRecursive(FunctionDeclaration function) {
+    return calls(function, function, new HashSet());
+  }
+
+  /**
+   * The declared functions the function calls directly.
+   */
+  public static Set<FunctionDeclaration> getCalledFunctions(FunctionDeclaration function) {
+    Set<FunctionDeclaration> called = new LinkedHashSet();
+    for (int ix = 0; ix < function.getLets().length; ix++)
+      collectCalls(function.getLets()[ix], called);
+    collectCalls(function.getBody(), called);
+    return called;
+  }
+
+  private static void collectCalls(ExpressionNode node,
+                                   Set<FunctionDeclaration> called) {
+    if (node instanceof FunctionExpression) {
+      FunctionDeclaration declared =
+        ((FunctionExpression) node).getDeclaredFunction();
+      if (declared != null)
+        called.add(declared);
+    }
+
+    for (ExpressionNode child : node.getChildren())
+      collectCalls(child, called);
+  }
+
+  private static boolean calls(FunctionDeclaration function,
+                               FunctionDeclaration target,
+                               Set<FunctionDeclaration> seen) {
+    if (!seen.add(function))
+      return false; // already looked here
+    for (int ix = 0; ix < function.getLets().length; ix++)
+      if (calls(function.getLets()[ix], target, seen))
+        return true;
+    return calls(function.getBody(), target, seen);
+  }
+
+  private static boolean calls(ExpressionNode node,
+                               FunctionDeclaration target,
+                               Set<FunctionDeclaration> seen) {
+    if (node instanceof FunctionExpression) {
+      FunctionDeclaration declared =
+        ((FunctionExpression) node).getDeclaredFunction();
+      if (declared == target ||
+          (declared != null && calls(declared, target, seen)))
+        return true;
+    }
+
+    for (ExpressionNode child : node.getChildren())
+      if (calls(child, target, seen))
+        return true;
+    return false;
+  }
+
+  /**
+   * Is the function known to be pure? Extension functions are only
+   * pure if they say so.
+   */
+  public static boolean isPure(Function function) {
+    return function.getTraits().isPure();
+  }
 }
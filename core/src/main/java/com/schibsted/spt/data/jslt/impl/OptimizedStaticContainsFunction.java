@@ -19,6 +19,7 @@ import java.util.Set;
 import java.util.HashSet;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.schibsted.spt.data.jslt.FunctionTraits;
 
 /**
  * An optimized version of contains(a, b) which is used when b is an
@@ -29,7 +30,7 @@ public class OptimizedStaticContainsFunction extends AbstractFunction {
   private Set<JsonNode> values;
 
   public OptimizedStaticContainsFunction(JsonNode array) {
-    super("optimized-static-contains", 2, 2);
+    super("optimized-static-contains", 2, 2, FunctionTraits.PURE);
 
     this.values = new HashSet();
     for (int ix = 0; ix < array.size(); ix++)
@@ -16,7 +16,6 @@
 package com.schibsted.spt.data.jslt.impl;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.BooleanNode;
 import com.schibsted.spt.data.jslt.JsltException;
 
 public class OrOperator extends AbstractOperator {
@@ -26,12 +25,11 @@ public class OrOperator extends AbstractOperator {
   }
 
   public JsonNode apply(Scope scope, JsonNode input) {
-    boolean v1 = NodeUtils.isTrue(left.apply(scope, input));
-    if (v1)
-      return BooleanNode.TRUE;
+    return NodeUtils.toJson(test(scope, input));
+  }
 
-    boolean v2 = NodeUtils.isTrue(right.apply(scope, input));
-    return NodeUtils.toJson(v1 || v2);
+  public boolean test(Scope scope, JsonNode input) {
+    return left.test(scope, input) || right.test(scope, input);
   }
 
   public JsonNode perform(JsonNode v1, JsonNode v2) {
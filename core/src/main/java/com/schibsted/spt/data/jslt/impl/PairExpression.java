@@ -48,6 +48,10 @@ public class PairExpression extends AbstractNode {
     return key.apply(null, null).asText();
   }
 
+  public ExpressionNode getValue() {
+    return value;
+  }
+
   public JsonNode apply(Scope scope, JsonNode input) {
     return value.apply(scope, input);
   }
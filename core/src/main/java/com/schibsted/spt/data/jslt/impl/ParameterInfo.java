@@ -17,13 +17,27 @@ package com.schibsted.spt.data.jslt.impl;
 
 public class ParameterInfo extends VariableInfo {
   private String name;
+  private ExpressionNode value; // null unless known when compiling
 
   public ParameterInfo(String name, Location location) {
+    this(name, null, location);
+  }
+
+  /**
+   * An external parameter whose value is known when the expression is
+   * compiled, so that references to it can be replaced by the value.
+   */
+  public ParameterInfo(String name, ExpressionNode value, Location location) {
     super(location);
     this.name = name;
+    this.value = value;
   }
 
   public String getName() {
     return name;
   }
+
+  public ExpressionNode getDeclaration() {
+    return value;
+  }
 }
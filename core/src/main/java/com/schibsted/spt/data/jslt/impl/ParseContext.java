@@ -25,6 +25,7 @@ import com.schibsted.spt.data.jslt.Module;
 import com.schibsted.spt.data.jslt.Callable;
 import com.schibsted.spt.data.jslt.Function;
 import com.schibsted.spt.data.jslt.JsltException;
+import com.schibsted.spt.data.jslt.RegexpCache;
 import com.schibsted.spt.data.jslt.ResourceResolver;
 import com.schibsted.spt.data.jslt.filters.JsonFilter;
 import com.schibsted.spt.data.jslt.filters.DefaultJsonFilter;
@@ -68,13 +69,36 @@ public class ParseContext {
    * Filter used to determine what object key/value pairs to keep.
    */
   private JsonFilter objectFilter;
+  /**
+   * Number of invocations before expressions are compiled to
+   * bytecode. 0 means compile at once, -1 means never.
+   */
+  private int compilationThreshold;
+  /**
+   * How deeply declared functions can call each other before the
+   * evaluation fails.
+   */
+  private int maxRecursionDepth;
+  /**
+   * How many results to cache per pure declared function. 0 means
+   * no caching.
+   */
+  private int memoizationSize;
+  /**
+   * Where regexp functions get their compiled regexps from.
+   */
+  private RegexpCache regexpCache;
 
   public ParseContext(Collection<Function> extensions, String source,
                       ResourceResolver resolver,
                       Map<String, Module> namedModules,
                       List<JstlFile> files,
                       PreparationContext preparationContext,
-                      JsonFilter objectFilter) {
+                      JsonFilter objectFilter,
+                      int compilationThreshold,
+                      int maxRecursionDepth,
+                      int memoizationSize,
+                      RegexpCache regexpCache) {
     this.extensions = extensions;
     this.functions = new HashMap();
     for (Function func : extensions)
@@ -88,6 +112,10 @@ public class ParseContext {
     this.namedModules = namedModules;
     this.preparationContext = preparationContext;
     this.objectFilter = objectFilter;
+    this.compilationThreshold = compilationThreshold;
+    this.maxRecursionDepth = maxRecursionDepth;
+    this.memoizationSize = memoizationSize;
+    this.regexpCache = regexpCache;
 
     namedModules.put(ExperimentalModule.URI, new ExperimentalModule());
   }
@@ -95,13 +123,22 @@ public class ParseContext {
   public ParseContext(String source) {
     this(Collections.EMPTY_SET, source, new ClasspathResourceResolver(),
          new HashMap(), new ArrayList(), new PreparationContext(),
-         new DefaultJsonFilter());
+         new DefaultJsonFilter(), -1, Integer.MAX_VALUE, 0,
+         RegexpCache.SHARED);
   }
 
   public void setParent(ParseContext parent) {
     this.parent = parent;
   }
 
+  /**
+   * The context of the module that imports this one. null for the
+   * main expression.
+   */
+  public ParseContext getParent() {
+    return parent;
+  }
+
   public PreparationContext getPreparationContext() {
     return preparationContext;
   }
@@ -133,7 +170,8 @@ public class ParseContext {
     funcalls.add(fun);
   }
 
-  // called at the end to resolve all the functions by name
+  // called at the end to resolve all the functions by name. can be
+  // called again to resolve calls added since the last time
   public void resolveFunctions() {
     for (FunctionExpression fun : funcalls) {
       String name = fun.getFunctionName();
@@ -141,8 +179,11 @@ public class ParseContext {
       if (f == null)
         throw new JsltException("No such function: '" + name + "'",
                                 fun.getLocation());
+      if (f instanceof RegexpFunction)
+        f = (Function) ((RegexpFunction) f).withRegexpCache(regexpCache);
       fun.resolve(f);
     }
+    funcalls.clear();
   }
 
   public Map<String, Function> getDeclaredFunctions() {
@@ -196,4 +237,20 @@ public class ParseContext {
   public JsonFilter getObjectFilter() {
     return objectFilter;
   }
+
+  public int getCompilationThreshold() {
+    return compilationThreshold;
+  }
+
+  public int getMaxRecursionDepth() {
+    return maxRecursionDepth;
+  }
+
+  public int getMemoizationSize() {
+    return memoizationSize;
+  }
+
+  public RegexpCache getRegexpCache() {
+    return regexpCache;
+  }
 }
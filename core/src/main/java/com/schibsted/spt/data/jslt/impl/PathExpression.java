@@ -0,0 +1,190 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl;
+
+import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.schibsted.spt.data.jslt.JsltException;
+
+/**
+ * A chain of .key and [index] steps with constant keys and indexes,
+ * like .a.b[0].c. Made by the optimizer from the DotExpression and
+ * ArraySlicer nodes, so that the path can be followed in a single
+ * loop instead of a chain of apply() calls.
+ */
+public class PathExpression extends AbstractNode {
+  private ExpressionNode base; // can be null, meaning the input
+  private String[] keys; // null for index steps
+  private int[] indexes;
+  private Location[] locations; // for error messages
+
+  public PathExpression(ExpressionNode base, String[] keys, int[] indexes,
+                        Location[] locations, Location location) {
+    super(location);
+    this.base = base;
+    this.keys = keys;
+    this.indexes = indexes;
+    this.locations = locations;
+  }
+
+  public JsonNode apply(Scope scope, JsonNode input) {
+    JsonNode value = input;
+    if (base != null)
+      value = base.apply(scope, input);
+
+    for (int ix = 0; ix < keys.length; ix++) {
+      if (keys[ix] != null)
+        value = value.get(keys[ix]);
+      else
+        value = index(value, indexes[ix], locations[ix]);
+
+      // once a key is missing, the rest of the path can't match
+      if (value == null || value.isNull())
+        return NullNode.instance;
+    }
+    return value;
+  }
+
+  /**
+   * Performs an index step, returning Java null if there is no value.
+   */
+  public static JsonNode index(JsonNode value, int index, Location location) {
+    if (value.isArray())
+      return value.get(resolveIndex(index, value.size()));
+    else if (value.isTextual())
+      return charAt(value.asText(), index, location);
+    else
+      return null;
+  }
+
+  private static int resolveIndex(int index, int size) {
+    if (index < 0)
+      return size + index;
+    return index;
+  }
+
+  // must behave exactly like ArraySlicer
+  private static JsonNode charAt(String string, int index, Location location) {
+    index = resolveIndex(index, string.length());
+    if (index >= string.length())
+      throw new JsltException("String index out of range: " + index, location);
+    return new TextNode("" + string.charAt(index));
+  }
+
+  /**
+   * The steps of the path. Index steps have null as their key.
+   */
+  public String[] getKeys() {
+    return keys;
+  }
+
+  public int[] getIndexes() {
+    return indexes;
+  }
+
+  public ExpressionNode getBase() {
+    return base;
+  }
+
+  public Location[] getLocations() {
+    return locations;
+  }
+
+  public List<ExpressionNode> getChildren() {
+    if (base == null)
+      return Collections.EMPTY_LIST;
+    else
+      return Collections.singletonList(base);
+  }
+
+  public ExpressionNode optimize() {
+    if (base != null)
+      base = base.optimize();
+    return this;
+  }
+
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    if (base != null)
+      buf.append(base);
+    for (int ix = 0; ix < keys.length; ix++) {
+      if (keys[ix] != null)
+        buf.append('.').append(keys[ix]);
+      else
+        buf.append('[').append(indexes[ix]).append(']');
+    }
+    return buf.toString();
+  }
+
+  // ===== BUILDING PATHS
+
+  /**
+   * Returns a path that is the parent followed by the given step, or
+   * null if the parent is not a path. A null key means an index step.
+   */
+  public static PathExpression extend(ExpressionNode parent, String key,
+                                      int index, Location location) {
+    PathExpression path = toPath(parent);
+    if (path == null)
+      return null;
+    return path.append(key, index, location);
+  }
+
+  private static PathExpression toPath(ExpressionNode node) {
+    if (node instanceof PathExpression)
+      return (PathExpression) node;
+
+    else if (node != null && node.getClass() == DotExpression.class) {
+      DotExpression dot = (DotExpression) node;
+      PathExpression empty = new PathExpression(
+        dot.getParent(), new String[0], new int[0], new Location[0],
+        dot.getLocation()
+      );
+      if (dot.getKey() == null)
+        return empty; // just '.'
+      return empty.append(dot.getKey(), 0, dot.getLocation());
+
+    } else if (node instanceof ArraySlicer &&
+               ((ArraySlicer) node).isConstantIndex()) {
+      ArraySlicer slicer = (ArraySlicer) node;
+      PathExpression path = toPath(slicer.getParent());
+      if (path == null)
+        path = new PathExpression(slicer.getParent(), new String[0],
+                                  new int[0], new Location[0],
+                                  slicer.getLocation());
+      return path.append(null, slicer.getConstantIndex(),
+                         slicer.getLocation());
+    }
+
+    return null;
+  }
+
+  private PathExpression append(String key, int index, Location location) {
+    int steps = keys.length;
+    String[] newKeys = Arrays.copyOf(keys, steps + 1);
+    int[] newIndexes = Arrays.copyOf(indexes, steps + 1);
+    Location[] newLocations = Arrays.copyOf(locations, steps + 1);
+    newKeys[steps] = key;
+    newIndexes[steps] = index;
+    newLocations[steps] = location;
+    return new PathExpression(base, newKeys, newIndexes, newLocations,
+                              this.location);
+  }
+}
@@ -0,0 +1,67 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl;
+
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Output that has been decided on, but not written yet, when
+ * streaming output to a JsonGenerator. With the default object
+ * filter, object keys whose value is null, {}, or [] are left out,
+ * but we don't know whether an object or array is empty until we've
+ * evaluated its contents. So the field name and the start of the
+ * object or array are held back here, and only written once the
+ * first member is written.
+ */
+public class PendingOutput {
+  public static final int NONE = 0;
+  public static final int OBJECT = 1;
+  public static final int ARRAY = 2;
+
+  private PendingOutput parent; // written before this, can be null
+  private String field; // can be null
+  private int start; // which start token, if any
+  private boolean written;
+
+  public PendingOutput(PendingOutput parent, String field, int start) {
+    this.parent = parent;
+    this.field = field;
+    this.start = start;
+  }
+
+  /**
+   * Writes everything held back, if it hasn't been already.
+   */
+  public void flush(JsonGenerator out) throws IOException {
+    if (written)
+      return;
+
+    if (parent != null)
+      parent.flush(out);
+    if (field != null)
+      out.writeFieldName(field);
+    if (start == OBJECT)
+      out.writeStartObject();
+    else if (start == ARRAY)
+      out.writeStartArray();
+    written = true;
+  }
+
+  public boolean isWritten() {
+    return written;
+  }
+}
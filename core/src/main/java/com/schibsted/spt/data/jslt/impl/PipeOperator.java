@@ -15,6 +15,8 @@
 
 package com.schibsted.spt.data.jslt.impl;
 
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.schibsted.spt.data.jslt.JsltException;
 
@@ -30,6 +32,12 @@ public class PipeOperator extends AbstractOperator {
         return right.apply(scope, left.apply(scope, input));
     }
 
+    @Override
+    public void write(Scope scope, JsonNode input, JsonGenerator out,
+                      PendingOutput pending) throws IOException {
+        right.write(scope, left.apply(scope, input), out, pending);
+    }
+
     @Override
     public void computeMatchContexts(DotExpression parent) {
         left.computeMatchContexts(parent);
@@ -15,6 +15,9 @@
 
 package com.schibsted.spt.data.jslt.impl;
 
+import java.util.Map;
+import com.fasterxml.jackson.databind.JsonNode;
+
 /**
  * Class to encapsulate context information while the parse tree is being
  * prepared.
@@ -25,4 +28,8 @@ public class PreparationContext {
   public PreparationContext() {
     this.scope = new ScopeManager();
   }
+
+  public PreparationContext(Map<String, JsonNode> knownParameters) {
+    this.scope = new ScopeManager(knownParameters);
+  }
 }
@@ -1,6 +1,8 @@
 
 package com.schibsted.spt.data.jslt.impl;
 
+import com.schibsted.spt.data.jslt.RegexpCache;
+
 /**
  * Marker interface which can be implemented by a function to declare
  * that one of its parameters is a regular expression. That parameter
@@ -14,4 +16,19 @@ public interface RegexpFunction {
      */
     public int regexpArgumentNumber();
 
+    /**
+     * The cache the function gets its compiled regexps from.
+     */
+    public default RegexpCache getRegexpCache() {
+        return RegexpCache.SHARED;
+    }
+
+    /**
+     * Returns a function that works the same, but uses the given
+     * cache. Functions that don't use a cache can return themselves.
+     */
+    public default RegexpFunction withRegexpCache(RegexpCache cache) {
+        return this;
+    }
+
 }
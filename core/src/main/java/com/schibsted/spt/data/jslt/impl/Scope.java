@@ -16,14 +16,46 @@
 package com.schibsted.spt.data.jslt.impl;
 
 import java.util.Map;
-import java.util.Collections;
-import java.util.Deque;
-import java.util.ArrayDeque;
+import java.util.Arrays;
 import com.fasterxml.jackson.databind.JsonNode;
 
+/**
+ * The values of the variables while an expression is evaluated. All
+ * stack frames live in a single array: first the global frame, then
+ * the frame of each function call on top of that, with the frame
+ * pointer marking where the current function's frame begins.
+ *
+ * <p>Scopes are pooled per thread, so that applying an expression
+ * over and over doesn't allocate anything for the scope. A scope
+ * from getRoot() or makeScope() must be given back with release()
+ * once the evaluation is done.
+ */
 public class Scope {
+  private static final ThreadLocal<Scope> pool = new ThreadLocal();
+  // pooled scopes that grew bigger than this are not kept
+  private static final int MAX_POOLED_SIZE = 4096;
+
   public static Scope getRoot(int stackFrameSize) {
-    return new Scope(stackFrameSize);
+    // evaluation can be nested on the same thread, if a function
+    // applies another expression, so the pool is a list of scopes
+    Scope scope = pool.get();
+    Scope last = null;
+    while (scope != null && scope.inUse) {
+      last = scope;
+      scope = scope.next;
+    }
+
+    if (scope == null) {
+      scope = new Scope(stackFrameSize);
+      scope.pooled = true;
+      if (last == null)
+        pool.set(scope);
+      else
+        last.next = scope;
+    }
+
+    scope.reset(stackFrameSize);
+    return scope;
   }
 
   /**
@@ -33,42 +65,111 @@ public class Scope {
   public static Scope makeScope(Map<String, JsonNode> variables,
                                 int stackFrameSize,
                                 Map<String, Integer> parameterSlots) {
-    Scope scope = new Scope(stackFrameSize);
+    Scope scope = getRoot(stackFrameSize);
     for (String variable : variables.keySet())
       if (parameterSlots.containsKey(variable)) // check that variable exists
         scope.setValue(parameterSlots.get(variable), variables.get(variable));
     return scope;
   }
 
-  private JsonNode[] globalStackFrame;
-  private Deque<JsonNode[]> localStackFrames;
+  /**
+   * Creates an initialized scope with values for variables supplied
+   * by client code, where the slots were looked up beforehand. A
+   * slot of -1 means the expression doesn't use the variable.
+   */
+  public static Scope makeScope(int[] slots, JsonNode[] values,
+                                int stackFrameSize) {
+    Scope scope = getRoot(stackFrameSize);
+    for (int ix = 0; ix < slots.length; ix++)
+      if (slots[ix] != -1)
+        scope.setValue(slots[ix], values[ix]);
+    return scope;
+  }
+
+  private JsonNode[] stack;
+  private int framePointer; // where the current function frame starts
+  private int top; // first free slot
+  private int used; // slots [0, used) may hold values
+  private int[] framePointers; // of the calling functions
+  private int depth; // number of active function calls
+  private boolean pooled;
+  private boolean inUse;
+  private Scope next; // next scope in the pool
   private static final int BITMASK = 0x10000000;
   private static final int INVERSE = 0xEFFFFFFF;
 
   public Scope(int stackFrameSize) {
-    this.globalStackFrame = new JsonNode[stackFrameSize];
-    this.localStackFrames = new ArrayDeque();
+    this.stack = new JsonNode[Math.max(stackFrameSize * 2, 16)];
+    this.framePointers = new int[16];
+    this.top = stackFrameSize;
+    this.used = stackFrameSize;
+    this.inUse = true;
+  }
+
+  private void reset(int stackFrameSize) {
+    ensureCapacity(stackFrameSize);
+    framePointer = 0;
+    top = stackFrameSize;
+    used = stackFrameSize;
+    depth = 0;
+    inUse = true;
+  }
+
+  /**
+   * Gives the scope back to the pool. Only the slots that were used
+   * are cleared, so that we don't hold on to old values.
+   */
+  public void release() {
+    if (!pooled)
+      return;
+
+    if (stack.length > MAX_POOLED_SIZE)
+      stack = new JsonNode[16];
+    else
+      Arrays.fill(stack, 0, used, null);
+    inUse = false;
   }
 
   public void enterFunction(int stackFrameSize) {
-    localStackFrames.push(new JsonNode[stackFrameSize]);
+    if (depth == framePointers.length)
+      framePointers = Arrays.copyOf(framePointers, depth * 2);
+    framePointers[depth++] = framePointer;
+
+    framePointer = top;
+    top += stackFrameSize;
+    ensureCapacity(top);
+    if (top > used)
+      used = top;
+  }
+
+  /**
+   * The number of function calls currently being evaluated.
+   */
+  public int getDepth() {
+    return depth;
   }
 
   public void leaveFunction() {
-    localStackFrames.pop();
+    top = framePointer;
+    framePointer = framePointers[--depth];
   }
 
   public JsonNode getValue(int slot) {
     if ((slot & BITMASK) != 0)
-      return globalStackFrame[slot & INVERSE];
+      return stack[slot & INVERSE];
     else
-      return localStackFrames.peek()[slot];
+      return stack[framePointer + slot];
   }
 
   public void setValue(int slot, JsonNode value) {
     if ((slot & BITMASK) != 0)
-      globalStackFrame[slot & INVERSE] = value;
+      stack[slot & INVERSE] = value;
     else
-      localStackFrames.peek()[slot] = value;
+      stack[framePointer + slot] = value;
+  }
+
+  private void ensureCapacity(int size) {
+    if (size > stack.length)
+      stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
   }
 }
@@ -19,6 +19,8 @@ import java.util.Map;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.ArrayDeque;
+import java.util.Collections;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.schibsted.spt.data.jslt.JsltException;
 
 /**
@@ -55,10 +57,17 @@ public class ScopeManager {
   // this is where we track the slots for parameters that must be
   // supplied from the outside
   private Map<String, Integer> parameterSlots;
+  // values of parameters that are known when compiling
+  private Map<String, JsonNode> knownParameters;
 
   public static final int UNFOUND = 0xFFFFFFFF;
 
   public ScopeManager() {
+    this(Collections.EMPTY_MAP);
+  }
+
+  public ScopeManager(Map<String, JsonNode> knownParameters) {
+    this.knownParameters = knownParameters;
     this.globalFrame = new StackFrame();
     this.scopes = new ArrayDeque();
     this.current = scopes;
@@ -74,6 +83,10 @@ public class ScopeManager {
     return parameterSlots;
   }
 
+  public Map<String, JsonNode> getKnownParameters() {
+    return knownParameters;
+  }
+
   /**
    * Called when we enter a new function. A function is not just a new
    * scope, because it needs its own stack frame.
@@ -101,7 +114,17 @@ public class ScopeManager {
    * code it is used.
    */
   public void enterScope() {
-    current.push(new ScopeFrame(functionScopes != null, currentFrame));
+    current.push(new ScopeFrame(functionScopes != null, currentFrame, false));
+  }
+
+  /**
+   * Called when we enter the body of a function that has been inlined
+   * where it's called. The variables get slots in the caller's stack
+   * frame, but the body must not see the caller's variables, only the
+   * global ones, same as when the function is called.
+   */
+  public void enterInlinedFunction() {
+    current.push(new ScopeFrame(functionScopes != null, currentFrame, true));
   }
 
   public void leaveScope() {
@@ -134,6 +157,8 @@ public class ScopeManager {
       VariableInfo var = scope.resolveVariable(name);
       if (var != null)
         return var;
+      if (scope.inlined)
+        return resolveGlobal(variable);
     }
 
     // might have to traverse global scope, too
@@ -145,10 +170,31 @@ public class ScopeManager {
       }
     }
 
+    return resolveParameter(variable);
+  }
+
+  // the global scope of the file being prepared is the outermost one
+  private VariableInfo resolveGlobal(VariableExpression variable) {
+    VariableInfo var = scopes.getLast().resolveVariable(variable.getVariable());
+    if (var != null)
+      return var;
+    return resolveParameter(variable);
+  }
+
+  private VariableInfo resolveParameter(VariableExpression variable) {
+    String name = variable.getVariable();
+
     // if we got here it means the variable was not found. that means
     // it's not defined inside the JSLT expression, so it has to be
-    // supplied as a parameter from outside during evaluation
-    VariableInfo var = new ParameterInfo(name, variable.getLocation());
+    // supplied as a parameter from outside during evaluation. if we
+    // already know the value, optimize() replaces the variable with it
+    VariableInfo var;
+    Location loc = variable.getLocation();
+    JsonNode known = knownParameters.get(name);
+    if (known != null)
+      var = new ParameterInfo(name, new LiteralExpression(known, loc), loc);
+    else
+      var = new ParameterInfo(name, loc);
     int slot = scopes.getLast().registerVariable(var);
     parameterSlots.put(name, slot);
     return var;
@@ -162,11 +208,14 @@ public class ScopeManager {
    */
   private static class ScopeFrame {
     private boolean inFunction;
+    private boolean inlined; // body of an inlined function
     private StackFrame parent;
     private Map<String, VariableInfo> variables;
 
-    public ScopeFrame(boolean inFunction, StackFrame parent) {
+    public ScopeFrame(boolean inFunction, StackFrame parent,
+                      boolean inlined) {
       this.inFunction = inFunction;
+      this.inlined = inlined;
       this.variables = new HashMap();
       this.parent = parent;
     }
@@ -25,8 +25,8 @@ public class SmallerComparison extends ComparisonOperator {
     super(left, right, ">", location);
   }
 
-  public JsonNode perform(JsonNode v1, JsonNode v2) {
-    return NodeUtils.toJson(compare(v1, v2) < 0);
+  protected boolean holds(double comparison) {
+    return comparison < 0;
   }
 
 }
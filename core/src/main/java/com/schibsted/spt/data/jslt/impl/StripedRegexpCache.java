@@ -0,0 +1,140 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.schibsted.spt.data.jslt.impl;
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import com.schibsted.spt.data.jslt.JsltException;
+import com.schibsted.spt.data.jslt.RegexpCache;
+
+/**
+ * Compiled regular expressions, shared by all threads. The cache is
+ * split into stripes, each with its own lock and least recently used
+ * eviction, so that threads using different regexps rarely wait for
+ * each other. Regexps are compiled outside the locks.
+ */
+public class StripedRegexpCache implements RegexpCache {
+  private static final int MAX_STRIPES = 16;
+
+  private Map<String, JstlPattern>[] stripes;
+  private LongAdder hits;
+  private LongAdder misses;
+  private LongAdder evictions;
+
+  public StripedRegexpCache(int maxSize) {
+    if (maxSize < 1)
+      throw new JsltException("Regexp cache size must be at least 1: " +
+                              maxSize);
+
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+
+    // spread the entries over the stripes, the first ones getting the
+    // extra entries if the size isn't divisible by the stripe count
+    this.stripes = new Map[Math.min(MAX_STRIPES, maxSize)];
+    for (int ix = 0; ix < stripes.length; ix++) {
+      int stripeSize = maxSize / stripes.length +
+        (ix < maxSize % stripes.length ? 1 : 0);
+      stripes[ix] = makeStripe(stripeSize);
+    }
+  }
+
+  private Map<String, JstlPattern> makeStripe(final int maxSize) {
+    return new LinkedHashMap<String, JstlPattern>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        if (size() <= maxSize)
+          return false;
+        evictions.increment();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Returns the compiled regexp, compiling it if it isn't in the
+   * cache. Throws JsltException if the regexp has a syntax error.
+   */
+  public Pattern getPattern(String regexp) {
+    return getJstlPattern(regexp).getPattern();
+  }
+
+  /**
+   * Returns the compiled regexp with the names of its named groups.
+   */
+  public JstlPattern getJstlPattern(String regexp) {
+    Map<String, JstlPattern> stripe =
+      stripes[Math.floorMod(regexp.hashCode(), stripes.length)];
+
+    JstlPattern pattern;
+    synchronized (stripe) {
+      pattern = stripe.get(regexp);
+    }
+    if (pattern != null) {
+      hits.increment();
+      return pattern;
+    }
+
+    misses.increment();
+    try {
+      pattern = new JstlPattern(Pattern.compile(regexp));
+    } catch (PatternSyntaxException e) {
+      throw new JsltException("Syntax error in regular expression '" + regexp + "'", e);
+    }
+    synchronized (stripe) {
+      stripe.put(regexp, pattern);
+    }
+    return pattern;
+  }
+
+  // ===== CacheStatistics
+
+  /**
+   * The number of lookups that found the regexp in the cache.
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * The number of lookups that had to compile the regexp.
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * The number of regexps that were removed to make room for others.
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * The number of regexps in the cache.
+   */
+  public int getSize() {
+    int size = 0;
+    for (int ix = 0; ix < stripes.length; ix++) {
+      synchronized (stripes[ix]) {
+        size += stripes[ix].size();
+      }
+    }
+    return size;
+  }
+}
@@ -0,0 +1,101 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.schibsted.spt.data.jslt.impl;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.Date;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.TimeZone;
+import java.util.Collections;
+import java.util.SimpleTimeZone;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import com.schibsted.spt.data.jslt.JsltException;
+
+/**
+ * A time format string and time zone, compiled once and then used by
+ * parse-time() and format-time(). SimpleDateFormat isn't thread-safe,
+ * so each thread gets its own copy of the compiled format.
+ */
+public class TimeFormat {
+  // formats that aren't known until the expression is applied
+  private static Map<List<String>, TimeFormat> cache =
+    Collections.synchronizedMap(new BoundedCache(1000));
+  private static Set<String> zonenames = new HashSet();
+  static {
+    zonenames.addAll(Arrays.asList(TimeZone.getAvailableIDs()));
+  }
+
+  private ThreadLocal<SimpleDateFormat> formats;
+
+  private TimeFormat(final SimpleDateFormat prototype) {
+    this.formats = new ThreadLocal<SimpleDateFormat>() {
+      protected SimpleDateFormat initialValue() {
+        return (SimpleDateFormat) prototype.clone();
+      }
+    };
+  }
+
+  /**
+   * Returns the compiled format, from the cache if it's there.
+   * @param function Name of the calling function, for error messages.
+   * @param formatstr The SimpleDateFormat format string.
+   * @param zonename Name of the time zone, or null for UTC.
+   */
+  public static TimeFormat get(String function, String formatstr,
+                               String zonename) {
+    List<String> key = Arrays.asList(formatstr, zonename);
+    TimeFormat format = cache.get(key);
+    if (format == null) {
+      format = compile(function, formatstr, zonename);
+      cache.put(key, format);
+    }
+    return format;
+  }
+
+  /**
+   * Compiles the format without going through the cache, for formats
+   * that are literals in the expression.
+   */
+  public static TimeFormat compile(String function, String formatstr,
+                                   String zonename) {
+    TimeZone zone = new SimpleTimeZone(0, "UTC");
+    if (zonename != null) {
+      if (!zonenames.contains(zonename))
+        throw new JsltException(function + ": Unknown timezone " + zonename);
+      zone = TimeZone.getTimeZone(zonename);
+    }
+
+    try {
+      SimpleDateFormat format = new SimpleDateFormat(formatstr);
+      format.setTimeZone(zone);
+      return new TimeFormat(format);
+    } catch (IllegalArgumentException e) {
+      // thrown if format is bad
+      throw new JsltException(function + ": Couldn't parse format '" + formatstr + "': " + e.getMessage());
+    }
+  }
+
+  public Date parse(String text) throws ParseException {
+    return formats.get().parse(text);
+  }
+
+  public String format(long millis) {
+    return formats.get().format(millis);
+  }
+}
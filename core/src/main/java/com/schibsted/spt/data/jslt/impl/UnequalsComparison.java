@@ -28,4 +28,10 @@ public class UnequalsComparison extends AbstractOperator {
     return NodeUtils.toJson(! EqualsComparison.equals(v1, v2) );
   }
 
+  public boolean test(Scope scope, JsonNode input) {
+    JsonNode v1 = left.apply(scope, input);
+    JsonNode v2 = right.apply(scope, input);
+    return !EqualsComparison.equals(v1, v2);
+  }
+
 }
@@ -33,6 +33,17 @@ public class VariableExpression extends AbstractNode {
     return variable;
   }
 
+  public int getSlot() {
+    return slot;
+  }
+
+  /**
+   * What we know about the variable. null before prepare().
+   */
+  public VariableInfo getInfo() {
+    return info;
+  }
+
   public JsonNode apply(Scope scope, JsonNode input) {
     JsonNode value = scope.getValue(slot);
     if (value == null)
@@ -59,6 +70,10 @@ public class VariableExpression extends AbstractNode {
     // will be null if the variable is a parameter
     if (declaration != null && (declaration instanceof LiteralExpression))
       return declaration;
+    // the let is gone, and this is the only place it was used. the
+    // declaration was already optimized
+    else if (info.isInlined())
+      return declaration;
     else
       return this;
   }
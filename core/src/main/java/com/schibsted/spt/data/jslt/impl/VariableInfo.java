@@ -23,6 +23,7 @@ public abstract class VariableInfo {
   private int slot;
   private Location location;
   private int usages; // how many references to this variable?
+  private boolean inlined; // references replaced by the declaration?
 
   public VariableInfo(Location location) {
     this.location = location;
@@ -46,17 +47,34 @@ public abstract class VariableInfo {
     usages++;
   }
 
+  public void decrementUsageCount() {
+    usages--;
+  }
+
   public int getUsageCount() {
     return usages;
   }
 
+  /**
+   * Makes references to the variable be replaced with the declaration
+   * when they are optimized.
+   */
+  public void setInlined() {
+    inlined = true;
+  }
+
+  public boolean isInlined() {
+    return inlined;
+  }
+
   public boolean isLet() {
     return false;
   }
 
   /**
    * The expression that computes this variable's value. null for
-   * parameters, because in that case we don't know the expression.
+   * parameters, because in that case we don't know the expression,
+   * unless it's an external parameter with a known value.
    */
   public ExpressionNode getDeclaration() {
     return null;
@@ -0,0 +1,41 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl.compiler;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the compilation of hot expressions on a single background
+ * thread, so that the threads applying expressions never have to
+ * wait for the compiler. The thread is a daemon, so it doesn't keep
+ * the JVM alive.
+ */
+public class BackgroundCompiler {
+  private static final Executor executor =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable task) {
+          Thread thread = new Thread(task, "jslt-compiler");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  public static void submit(Runnable task) {
+    executor.execute(task);
+  }
+}
@@ -0,0 +1,261 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl.compiler;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.io.IOException;
+import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import com.schibsted.spt.data.jslt.JsltException;
+
+/**
+ * Writes Java class files. Supports only the small subset of the
+ * class file format that the expression compiler needs. The class
+ * file version is 49 (Java 5), because from version 50 the JVM
+ * requires stack map frames, and those are a lot of work to compute.
+ * Version 49 classes are checked by the old type inferencing verifier
+ * instead.
+ */
+public class ClassBuilder {
+  public static final int ACC_PUBLIC = 0x0001;
+  public static final int ACC_PRIVATE = 0x0002;
+  public static final int ACC_FINAL = 0x0010;
+  public static final int ACC_SUPER = 0x0020;
+
+  private static final int VERSION = 49;
+
+  private String name;
+  private String superName;
+  private Map<String, Integer> poolIndex;
+  private ByteArrayOutputStream poolBytes;
+  private DataOutputStream pool;
+  private int poolCount;
+  private List<byte[]> fields;
+  private List<MethodBuilder> methods;
+
+  /**
+   * Create a builder for a public final class.
+   * @param name Internal name of the class, like "com/example/Foo".
+   * @param superName Internal name of the superclass.
+   */
+  public ClassBuilder(String name, String superName) {
+    this.name = name;
+    this.superName = superName;
+    this.poolIndex = new HashMap();
+    this.poolBytes = new ByteArrayOutputStream();
+    this.pool = new DataOutputStream(poolBytes);
+    this.poolCount = 1; // index 0 is not used
+    this.fields = new ArrayList();
+    this.methods = new ArrayList();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getSuperName() {
+    return superName;
+  }
+
+  // ===== CONSTANT POOL
+
+  public int utf8(String value) {
+    String key = "U" + value;
+    Integer ix = poolIndex.get(key);
+    if (ix != null)
+      return ix;
+
+    try {
+      pool.writeByte(1);
+      pool.writeUTF(value);
+    } catch (IOException e) {
+      // writeUTF fails if the string is too long for the class file
+      throw new ClassTooLargeException("String constant too long");
+    }
+    return register(key);
+  }
+
+  public int classRef(String internalName) {
+    return reference("C", 7, utf8(internalName), internalName);
+  }
+
+  public int string(String value) {
+    return reference("S", 8, utf8(value), value);
+  }
+
+  public int integer(int value) {
+    String key = "I" + value;
+    Integer ix = poolIndex.get(key);
+    if (ix != null)
+      return ix;
+
+    write(3);
+    writeInt(value);
+    return register(key);
+  }
+
+  public int nameAndType(String name, String descriptor) {
+    String key = "N" + name + ' ' + descriptor;
+    Integer ix = poolIndex.get(key);
+    if (ix != null)
+      return ix;
+
+    int nameIx = utf8(name);
+    int descIx = utf8(descriptor);
+    write(12);
+    writeShort(nameIx);
+    writeShort(descIx);
+    return register(key);
+  }
+
+  public int fieldRef(String owner, String name, String descriptor) {
+    return memberRef("F", 9, owner, name, descriptor);
+  }
+
+  public int methodRef(String owner, String name, String descriptor) {
+    return memberRef("M", 10, owner, name, descriptor);
+  }
+
+  public int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef("J", 11, owner, name, descriptor);
+  }
+
+  private int reference(String prefix, int tag, int target, String value) {
+    String key = prefix + value;
+    Integer ix = poolIndex.get(key);
+    if (ix != null)
+      return ix;
+
+    write(tag);
+    writeShort(target);
+    return register(key);
+  }
+
+  private int memberRef(String prefix, int tag, String owner, String name,
+                        String descriptor) {
+    String key = prefix + owner + '.' + name + ' ' + descriptor;
+    Integer ix = poolIndex.get(key);
+    if (ix != null)
+      return ix;
+
+    int classIx = classRef(owner);
+    int natIx = nameAndType(name, descriptor);
+    write(tag);
+    writeShort(classIx);
+    writeShort(natIx);
+    return register(key);
+  }
+
+  private int register(String key) {
+    int ix = poolCount++;
+    if (ix > 0xFFFF)
+      throw new ClassTooLargeException("Constant pool too large");
+    poolIndex.put(key, ix);
+    return ix;
+  }
+
+  // ===== MEMBERS
+
+  public void addField(int access, String name, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0); // no attributes
+    } catch (IOException e) {
+      throw new JsltException("INTERNAL ERROR: " + e, e);
+    }
+    fields.add(bytes.toByteArray());
+  }
+
+  public MethodBuilder addMethod(int access, String name, String descriptor,
+                                 int argumentSlots) {
+    MethodBuilder method =
+      new MethodBuilder(this, access, name, descriptor, argumentSlots);
+    methods.add(method);
+    return method;
+  }
+
+  // ===== OUTPUT
+
+  public byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      // all constants must be in the pool before we write it, so
+      // serialize the methods first
+      int thisIx = classRef(name);
+      int superIx = classRef(superName);
+      int codeIx = utf8("Code");
+      List<byte[]> methodBytes = new ArrayList();
+      for (MethodBuilder method : methods)
+        methodBytes.add(method.toByteArray(codeIx));
+
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0); // minor version
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      pool.flush();
+      poolBytes.writeTo(out);
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisIx);
+      out.writeShort(superIx);
+      out.writeShort(0); // no interfaces
+
+      out.writeShort(fields.size());
+      for (byte[] field : fields)
+        out.write(field);
+
+      out.writeShort(methodBytes.size());
+      for (byte[] method : methodBytes)
+        out.write(method);
+
+      out.writeShort(0); // no class attributes
+    } catch (IOException e) {
+      throw new JsltException("INTERNAL ERROR: " + e, e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private void write(int b) {
+    try {
+      pool.writeByte(b);
+    } catch (IOException e) {
+      throw new JsltException("INTERNAL ERROR: " + e, e);
+    }
+  }
+
+  private void writeShort(int s) {
+    try {
+      pool.writeShort(s);
+    } catch (IOException e) {
+      throw new JsltException("INTERNAL ERROR: " + e, e);
+    }
+  }
+
+  private void writeInt(int i) {
+    try {
+      pool.writeInt(i);
+    } catch (IOException e) {
+      throw new JsltException("INTERNAL ERROR: " + e, e);
+    }
+  }
+}
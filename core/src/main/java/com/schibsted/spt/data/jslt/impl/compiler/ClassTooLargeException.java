@@ -0,0 +1,28 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl.compiler;
+
+/**
+ * Thrown when an expression is too big to fit in the limits of the
+ * class file format. The expression is then left to the interpreter.
+ */
+public class ClassTooLargeException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public ClassTooLargeException(String message) {
+    super(message);
+  }
+}
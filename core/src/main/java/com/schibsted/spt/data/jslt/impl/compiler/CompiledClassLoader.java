@@ -0,0 +1,32 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl.compiler;
+
+/**
+ * Loads a single generated class. Each compiled expression gets its
+ * own class loader so that the class can be garbage collected
+ * together with the expression.
+ */
+public class CompiledClassLoader extends ClassLoader {
+
+  public CompiledClassLoader() {
+    super(CompiledNode.class.getClassLoader());
+  }
+
+  public Class<?> define(String name, byte[] bytecode) {
+    return defineClass(name, bytecode, 0, bytecode.length);
+  }
+}
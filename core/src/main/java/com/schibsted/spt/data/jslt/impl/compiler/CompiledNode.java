@@ -0,0 +1,76 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl.compiler;
+
+import java.util.List;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.schibsted.spt.data.jslt.JsltException;
+import com.schibsted.spt.data.jslt.impl.Scope;
+import com.schibsted.spt.data.jslt.impl.Location;
+import com.schibsted.spt.data.jslt.impl.AbstractNode;
+import com.schibsted.spt.data.jslt.impl.DotExpression;
+import com.schibsted.spt.data.jslt.impl.ExpressionNode;
+import com.schibsted.spt.data.jslt.impl.PreparationContext;
+
+/**
+ * Superclass of the classes generated by the ExpressionCompiler. The
+ * generated class implements apply(), and everything else is handled
+ * by the interpreted tree the code was generated from.
+ */
+public abstract class CompiledNode extends AbstractNode {
+  private ExpressionNode original;
+
+  public CompiledNode(ExpressionNode original) {
+    super(null);
+    this.original = original;
+  }
+
+  /**
+   * The interpreted expression this code was compiled from.
+   */
+  public ExpressionNode getOriginal() {
+    return original;
+  }
+
+  public abstract JsonNode apply(Scope scope, JsonNode input);
+
+  public void dump(int level) {
+    original.dump(level);
+  }
+
+  public void computeMatchContexts(DotExpression parent) {
+    // already done for the original
+  }
+
+  public void prepare(PreparationContext ctx) {
+    // already done for the original
+  }
+
+  public List<ExpressionNode> getChildren() {
+    return original.getChildren();
+  }
+
+  public String toString() {
+    return original.toString();
+  }
+
+  // ===== HELPERS FOR GENERATED CODE
+
+  public static JsltException error(String message, JsonNode value,
+                                    Location location) {
+    return new JsltException(message + value, location);
+  }
+}
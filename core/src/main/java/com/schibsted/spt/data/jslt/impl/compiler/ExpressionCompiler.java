@@ -0,0 +1,769 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl.compiler;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.reflect.InvocationTargetException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.schibsted.spt.data.jslt.Function;
+import com.schibsted.spt.data.jslt.JsltException;
+import com.schibsted.spt.data.jslt.filters.JsonFilter;
+import com.schibsted.spt.data.jslt.filters.TrueJsonFilter;
+import com.schibsted.spt.data.jslt.filters.DefaultJsonFilter;
+import com.schibsted.spt.data.jslt.impl.*;
+import static com.schibsted.spt.data.jslt.impl.compiler.MethodBuilder.*;
+
+/**
+ * Compiles an expression tree to a JVM class, whose apply() method
+ * does the same as the interpreted tree. Local variables in JSLT are
+ * still kept in the Scope, using the same slots as the interpreter,
+ * but the tree walking and all the virtual apply() calls are gone,
+ * and conditions compile to plain jumps without going via BooleanNode.
+ *
+ * <p>Node types the compiler doesn't know are left as they are, and
+ * the generated code just calls their apply() method, so the result
+ * is always the same as for the interpreter.
+ */
+public class ExpressionCompiler {
+  private static final String JSONNODE = "com/fasterxml/jackson/databind/JsonNode";
+  private static final String NULLNODE = "com/fasterxml/jackson/databind/node/NullNode";
+  private static final String BOOLEANNODE = "com/fasterxml/jackson/databind/node/BooleanNode";
+  private static final String ARRAYNODE = "com/fasterxml/jackson/databind/node/ArrayNode";
+  private static final String OBJECTNODE = "com/fasterxml/jackson/databind/node/ObjectNode";
+  private static final String MAPPER = "com/fasterxml/jackson/databind/ObjectMapper";
+  private static final String STRING = "java/lang/String";
+  private static final String EXPRESSIONNODE = "com/schibsted/spt/data/jslt/impl/ExpressionNode";
+  private static final String SCOPE = "com/schibsted/spt/data/jslt/impl/Scope";
+  private static final String NODEUTILS = "com/schibsted/spt/data/jslt/impl/NodeUtils";
+  private static final String LOCATION = "com/schibsted/spt/data/jslt/impl/Location";
+  private static final String OPERATOR = "com/schibsted/spt/data/jslt/impl/AbstractOperator";
+  private static final String EQUALS = "com/schibsted/spt/data/jslt/impl/EqualsComparison";
+  private static final String COMPARISON = "com/schibsted/spt/data/jslt/impl/ComparisonOperator";
+  private static final String PATH = "com/schibsted/spt/data/jslt/impl/PathExpression";
+  private static final String DECLARATION = "com/schibsted/spt/data/jslt/impl/FunctionDeclaration";
+  private static final String FUNCTION = "com/schibsted/spt/data/jslt/Function";
+  private static final String FILTER = "com/schibsted/spt/data/jslt/filters/JsonFilter";
+  private static final String COMPILEDNODE = "com/schibsted/spt/data/jslt/impl/compiler/CompiledNode";
+  private static final String EXCEPTION = "com/schibsted/spt/data/jslt/JsltException";
+  private static final String CLASS_PREFIX = "com/schibsted/spt/data/jslt/impl/compiler/CompiledExpression";
+
+  private static final String APPLY = "(L" + SCOPE + ";L" + JSONNODE + ";)L" + JSONNODE + ";";
+
+  private static final AtomicInteger classCounter = new AtomicInteger();
+
+  private static final int SCOPE_LOCAL = 1;
+  private static final int INPUT_LOCAL = 2;
+
+  private ClassBuilder classfile;
+  private MethodBuilder method;
+  private List<Object> constants;
+  private List<String> constantTypes;
+  private Map<Object, Integer> constantIndexes;
+
+  private ExpressionCompiler() {
+    String name = CLASS_PREFIX + classCounter.incrementAndGet();
+    this.classfile = new ClassBuilder(name, COMPILEDNODE);
+    this.constants = new ArrayList();
+    this.constantTypes = new ArrayList();
+    this.constantIndexes = new IdentityHashMap();
+  }
+
+  /**
+   * Compiles the lets and the expression into a new node that first
+   * evaluates the lets, then returns the value of the expression.
+   * Returns null if the expression is too big to compile.
+   */
+  public static ExpressionNode compile(LetExpression[] lets,
+                                       ExpressionNode expr) {
+    try {
+      return new ExpressionCompiler().build(lets, expr);
+    } catch (ClassTooLargeException e) {
+      return null; // the interpreter will have to do
+    }
+  }
+
+  private CompiledNode build(LetExpression[] lets, ExpressionNode expr) {
+    method = classfile.addMethod(ClassBuilder.ACC_PUBLIC, "apply", APPLY, 3);
+    compileLets(lets, INPUT_LOCAL);
+    compile(expr, INPUT_LOCAL);
+    method.op(ARETURN);
+
+    // the constructor must come last, once we know what constants
+    // the code needs. they are passed in as an array and copied into
+    // final fields
+    MethodBuilder init = classfile.addMethod(
+      ClassBuilder.ACC_PUBLIC, "<init>",
+      "(L" + EXPRESSIONNODE + ";[Ljava/lang/Object;)V", 3
+    );
+    init.aload(0);
+    init.aload(1);
+    init.invokespecial(COMPILEDNODE, "<init>", "(L" + EXPRESSIONNODE + ";)V");
+    for (int ix = 0; ix < constants.size(); ix++) {
+      String type = constantTypes.get(ix);
+      classfile.addField(ClassBuilder.ACC_PRIVATE | ClassBuilder.ACC_FINAL,
+                         "c" + ix, "L" + type + ";");
+      init.aload(0);
+      init.aload(2);
+      init.iconst(ix);
+      init.op(AALOAD);
+      init.type(CHECKCAST, type);
+      init.putfield(classfile.getName(), "c" + ix, "L" + type + ";");
+    }
+    init.op(RETURN);
+
+    byte[] bytecode = classfile.toByteArray();
+    String name = classfile.getName().replace('/', '.');
+    Class<?> klass = new CompiledClassLoader().define(name, bytecode);
+    try {
+      return (CompiledNode) klass
+        .getConstructor(ExpressionNode.class, Object[].class)
+        .newInstance(expr, constants.toArray());
+    } catch (InstantiationException | IllegalAccessException |
+             NoSuchMethodException | InvocationTargetException e) {
+      throw new JsltException("INTERNAL ERROR: couldn't instantiate " + name, e);
+    }
+  }
+
+  // ===== EXPRESSIONS
+
+  // emits code that leaves the value of the node on the stack. input
+  // is the local variable holding the context node
+  private void compile(ExpressionNode node, int input) {
+    if (node instanceof LiteralExpression)
+      compileLiteral((LiteralExpression) node);
+    else if (node.getClass() == DotExpression.class)
+      compileDot((DotExpression) node, input);
+    else if (node instanceof PathExpression)
+      compilePath((PathExpression) node, input);
+    else if (node instanceof VariableExpression)
+      compileVariable((VariableExpression) node, input);
+    else if (isCondition(node))
+      compileBoolean(node, input);
+    else if (node instanceof NumericOperator)
+      compileOperator((AbstractOperator) node, input);
+    else if (node instanceof PipeOperator)
+      compilePipe((PipeOperator) node, input);
+    else if (node instanceof IfExpression)
+      compileIf((IfExpression) node, input);
+    else if (node instanceof FunctionExpression)
+      compileFunction((FunctionExpression) node, input);
+    else if (node instanceof InlinedFunctionExpression)
+      compileInlined((InlinedFunctionExpression) node, input);
+    else if (node instanceof ArrayExpression)
+      compileArray((ArrayExpression) node, input);
+    else if (node instanceof ObjectExpression &&
+             ((ObjectExpression) node).getMatcher() == null &&
+             !((ObjectExpression) node).hasDynamicKeys())
+      compileObject((ObjectExpression) node, input);
+    else if (node instanceof ForExpression &&
+             !((ForExpression) node).isBatched())
+      compileFor((ForExpression) node, input);
+    else if (node instanceof ObjectComprehension &&
+             !((ObjectComprehension) node).isBatched())
+      compileComprehension((ObjectComprehension) node, input);
+    else
+      compileDelegate(node, input);
+  }
+
+  // leave it to the interpreter
+  private void compileDelegate(ExpressionNode node, int input) {
+    loadConstant(node, EXPRESSIONNODE);
+    method.aload(SCOPE_LOCAL);
+    method.aload(input);
+    method.invokeinterface(EXPRESSIONNODE, "apply", APPLY);
+  }
+
+  private void compileLiteral(LiteralExpression node) {
+    JsonNode value = node.getValue();
+    if (value == NullNode.instance)
+      method.getstatic(NULLNODE, "instance", "L" + NULLNODE + ";");
+    else if (value == BooleanNode.TRUE)
+      method.getstatic(BOOLEANNODE, "TRUE", "L" + BOOLEANNODE + ";");
+    else if (value == BooleanNode.FALSE)
+      method.getstatic(BOOLEANNODE, "FALSE", "L" + BOOLEANNODE + ";");
+    else
+      loadConstant(value, JSONNODE);
+  }
+
+  private void compileDot(DotExpression node, int input) {
+    if (node.getKey() == null) {
+      method.aload(input);
+      return;
+    }
+
+    if (node.getParent() == null)
+      method.aload(input);
+    else
+      compile(node.getParent(), input);
+
+    method.ldc(node.getKey());
+    method.invokevirtual(JSONNODE, "get", "(L" + STRING + ";)L" + JSONNODE + ";");
+    nullToJsonNull();
+  }
+
+  private void compilePath(PathExpression node, int input) {
+    if (node.getBase() == null)
+      method.aload(input);
+    else
+      compile(node.getBase(), input);
+
+    // unrolled version of the loop in PathExpression.apply()
+    Label missing = method.newLabel();
+    Label end = method.newLabel();
+    String[] keys = node.getKeys();
+    for (int ix = 0; ix < keys.length; ix++) {
+      if (keys[ix] != null) {
+        method.ldc(keys[ix]);
+        method.invokevirtual(JSONNODE, "get", "(L" + STRING + ";)L" + JSONNODE + ";");
+      } else {
+        method.iconst(node.getIndexes()[ix]);
+        loadConstant(node.getLocations()[ix], LOCATION);
+        method.invokestatic(PATH, "index",
+                            "(L" + JSONNODE + ";IL" + LOCATION + ";)L" + JSONNODE + ";");
+      }
+
+      method.op(DUP);
+      method.jump(IFNULL, missing);
+      method.op(DUP);
+      method.invokevirtual(JSONNODE, "isNull", "()Z");
+      method.jump(IFNE, missing);
+    }
+    method.jump(GOTO, end);
+
+    method.mark(missing);
+    method.op(POP);
+    method.getstatic(NULLNODE, "instance", "L" + NULLNODE + ";");
+    method.mark(end);
+  }
+
+  private void compileVariable(VariableExpression node, int input) {
+    method.aload(SCOPE_LOCAL);
+    method.iconst(node.getSlot());
+    method.invokevirtual(SCOPE, "getValue", "(I)L" + JSONNODE + ";");
+
+    // the interpreter makes the error message if the variable is unset
+    Label ok = method.newLabel();
+    method.op(DUP);
+    method.jump(IFNONNULL, ok);
+    method.op(POP);
+    compileDelegate(node, input);
+    method.mark(ok);
+  }
+
+  private void compileOperator(AbstractOperator node, int input) {
+    if (node instanceof NumericOperator && ((NumericOperator) node).isNested()) {
+      // the operator evaluates nested arithmetic without allocating
+      compileDelegate(node, input);
+      return;
+    }
+
+    loadConstant(node, OPERATOR);
+    compile(node.getLeft(), input);
+    compile(node.getRight(), input);
+    method.invokevirtual(OPERATOR, "perform",
+                         "(L" + JSONNODE + ";L" + JSONNODE + ";)L" + JSONNODE + ";");
+  }
+
+  private void compilePipe(PipeOperator node, int input) {
+    compile(node.getLeft(), input);
+    int context = method.newLocal();
+    method.astore(context);
+    compile(node.getRight(), context);
+  }
+
+  private void compileIf(IfExpression node, int input) {
+    Label orelse = method.newLabel();
+    Label end = method.newLabel();
+
+    compileCondition(node.getTest(), input, orelse, false);
+    compileLets(node.getThenLets(), input);
+    compile(node.getThen(), input);
+    method.jump(GOTO, end);
+
+    method.mark(orelse);
+    if (node.getElse() != null) {
+      compileLets(node.getElseLets(), input);
+      compile(node.getElse(), input);
+    } else
+      method.getstatic(NULLNODE, "instance", "L" + NULLNODE + ";");
+    method.mark(end);
+  }
+
+  private void compileFunction(FunctionExpression node, int input) {
+    ExpressionNode[] arguments = node.getArguments();
+    FunctionDeclaration declared = node.getDeclaredFunction();
+    if (node.isTailCall())
+      compileDelegate(node, input); // the interpreter makes it a loop
+    else if (declared != null) {
+      loadConstant(declared, DECLARATION);
+      method.aload(SCOPE_LOCAL);
+      method.aload(input);
+      compileArguments(arguments, input);
+      loadConstant(node.getLocation(), LOCATION);
+      method.invokevirtual(DECLARATION, "call",
+                           "(L" + SCOPE + ";L" + JSONNODE + ";[L" + JSONNODE + ";L" + LOCATION + ";)L" + JSONNODE + ";");
+    } else {
+      loadConstant(node.getFunction(), FUNCTION);
+      method.aload(input);
+      compileArguments(arguments, input);
+      method.invokeinterface(FUNCTION, "call",
+                             "(L" + JSONNODE + ";[L" + JSONNODE + ";)L" + JSONNODE + ";");
+      // user-implemented functions may return Java null
+      nullToJsonNull();
+    }
+  }
+
+  private void compileInlined(InlinedFunctionExpression node, int input) {
+    compileLets(node.getParameters(), input);
+    compileLets(node.getLets(), input);
+    compile(node.getBody(), input);
+  }
+
+  private void compileArguments(ExpressionNode[] arguments, int input) {
+    method.iconst(arguments.length);
+    method.type(ANEWARRAY, JSONNODE);
+    for (int ix = 0; ix < arguments.length; ix++) {
+      method.op(DUP);
+      method.iconst(ix);
+      compile(arguments[ix], input);
+      method.op(AASTORE);
+    }
+  }
+
+  private void compileArray(ArrayExpression node, int input) {
+    method.getstatic(NODEUTILS, "mapper", "L" + MAPPER + ";");
+    method.invokevirtual(MAPPER, "createArrayNode", "()L" + ARRAYNODE + ";");
+    for (ExpressionNode child : node.getChildren()) {
+      method.op(DUP);
+      compile(child, input);
+      method.invokevirtual(ARRAYNODE, "add", "(L" + JSONNODE + ";)L" + ARRAYNODE + ";");
+      method.op(POP);
+    }
+  }
+
+  private void compileObject(ObjectExpression node, int input) {
+    compileLets(node.getLets(), input);
+
+    int object = method.newLocal();
+    int value = method.newLocal();
+    method.getstatic(NODEUTILS, "mapper", "L" + MAPPER + ";");
+    method.invokevirtual(MAPPER, "createObjectNode", "()L" + OBJECTNODE + ";");
+    method.astore(object);
+
+    PairExpression[] pairs = node.getPairs();
+    for (int ix = 0; ix < pairs.length; ix++) {
+      Label skip = method.newLabel();
+      compile(pairs[ix].getValue(), input);
+      method.astore(value);
+      compileFilter(node.getFilter(), value, skip);
+
+      method.aload(object);
+      method.ldc(pairs[ix].getStaticKey());
+      method.aload(value);
+      method.invokevirtual(OBJECTNODE, "set",
+                           "(L" + STRING + ";L" + JSONNODE + ";)L" + JSONNODE + ";");
+      method.op(POP);
+      method.mark(skip);
+    }
+    method.aload(object);
+  }
+
+  // jumps to skip if the filter rejects the value in the local
+  private void compileFilter(JsonFilter filter, int value, Label skip) {
+    if (filter.getClass() == TrueJsonFilter.class)
+      return; // always accepts, so no need to check
+    else if (filter.getClass() == DefaultJsonFilter.class) {
+      method.aload(value);
+      method.invokestatic(NODEUTILS, "isValue", "(L" + JSONNODE + ";)Z");
+    } else {
+      loadConstant(filter, FILTER);
+      method.aload(value);
+      method.invokeinterface(FILTER, "filter", "(L" + JSONNODE + ";)Z");
+    }
+    method.jump(IFEQ, skip);
+  }
+
+  private void compileFor(ForExpression node, int input) {
+    Label done = method.newLabel();
+    int array = compileSequence(node.getValueExpression(), input,
+                                "For loop can't iterate over ",
+                                node.getLocation(), false, done);
+
+    int result = method.newLocal();
+    method.getstatic(NODEUTILS, "mapper", "L" + MAPPER + ";");
+    method.invokevirtual(MAPPER, "createArrayNode", "()L" + ARRAYNODE + ";");
+    method.astore(result);
+
+    compileHoistedLets(array, node.getHoistedLets(), input);
+    Label next = method.newLabel();
+    Loop loop = compileLoopStart(array, node.getLets(),
+                                 node.getIfExpression(), next);
+
+    method.aload(result);
+    compile(node.getLoopExpression(), loop.element);
+    method.invokevirtual(ARRAYNODE, "add", "(L" + JSONNODE + ";)L" + ARRAYNODE + ";");
+    method.op(POP);
+
+    compileLoopEnd(loop);
+    method.aload(result);
+    method.mark(done);
+  }
+
+  private void compileComprehension(ObjectComprehension node, int input) {
+    Label done = method.newLabel();
+    int sequence = compileSequence(node.getLoop(), input,
+                                   "Object comprehension can't loop over ",
+                                   node.getLocation(), true, done);
+
+    int object = method.newLocal();
+    method.getstatic(NODEUTILS, "mapper", "L" + MAPPER + ";");
+    method.invokevirtual(MAPPER, "createObjectNode", "()L" + OBJECTNODE + ";");
+    method.astore(object);
+
+    compileHoistedLets(sequence, node.getHoistedLets(), input);
+    Label next = method.newLabel();
+    Loop loop = compileLoopStart(sequence, node.getLets(),
+                                 node.getIfExpression(), next);
+
+    int value = method.newLocal();
+    compile(node.getValue(), loop.element);
+    method.astore(value);
+    compileFilter(node.getFilter(), value, next);
+
+    // if there is no value, no need to evaluate the key
+    int key = method.newLocal();
+    Label ok = method.newLabel();
+    compile(node.getKey(), loop.element);
+    method.astore(key);
+    method.aload(key);
+    method.invokevirtual(JSONNODE, "isTextual", "()Z");
+    method.jump(IFNE, ok);
+    compileError("Object comprehension must have string as key, not ",
+                 key, node.getLocation());
+    method.mark(ok);
+
+    method.aload(object);
+    method.aload(key);
+    method.invokevirtual(JSONNODE, "asText", "()L" + STRING + ";");
+    method.aload(value);
+    method.invokevirtual(OBJECTNODE, "set",
+                         "(L" + STRING + ";L" + JSONNODE + ";)L" + JSONNODE + ";");
+    method.op(POP);
+
+    compileLoopEnd(loop);
+    method.aload(object);
+    method.mark(done);
+  }
+
+  // evaluates the expression to loop over, and turns objects into
+  // arrays of key/value objects. if the value is null the result of
+  // the whole loop is null (or the value itself, if keepNull) and we
+  // jump straight to done. returns the local holding the array
+  private int compileSequence(ExpressionNode expr, int input, String error,
+                              Location location, boolean keepNull,
+                              Label done) {
+    int sequence = method.newLocal();
+    compile(expr, input);
+    method.astore(sequence);
+
+    Label notnull = method.newLabel();
+    Label notobject = method.newLabel();
+    Label ok = method.newLabel();
+
+    method.aload(sequence);
+    method.invokevirtual(JSONNODE, "isNull", "()Z");
+    method.jump(IFEQ, notnull);
+    if (keepNull)
+      method.aload(sequence);
+    else
+      method.getstatic(NULLNODE, "instance", "L" + NULLNODE + ";");
+    method.jump(GOTO, done);
+
+    method.mark(notnull);
+    method.aload(sequence);
+    method.invokevirtual(JSONNODE, "isObject", "()Z");
+    method.jump(IFEQ, notobject);
+    method.aload(sequence);
+    method.invokestatic(NODEUTILS, "convertObjectToArray",
+                        "(L" + JSONNODE + ";)L" + ARRAYNODE + ";");
+    method.astore(sequence);
+    method.jump(GOTO, ok);
+
+    method.mark(notobject);
+    method.aload(sequence);
+    method.invokevirtual(JSONNODE, "isArray", "()Z");
+    method.jump(IFNE, ok);
+    compileError(error, sequence, location);
+
+    method.mark(ok);
+    return sequence;
+  }
+
+  // evaluates the lets that don't depend on the element, unless the
+  // array in the given local is empty
+  private void compileHoistedLets(int array, LetExpression[] lets, int input) {
+    if (lets.length == 0)
+      return;
+
+    Label empty = method.newLabel();
+    method.aload(array);
+    method.invokevirtual(JSONNODE, "size", "()I");
+    method.jump(IFEQ, empty);
+    compileLets(lets, input);
+    method.mark(empty);
+  }
+
+  // starts a loop over the array in the given local, evaluating the
+  // lets and the if filter, which jumps to next if false
+  private Loop compileLoopStart(int array, LetExpression[] lets,
+                                ExpressionNode ifExpr, Label next) {
+    Loop loop = new Loop();
+    loop.index = method.newLocal();
+    loop.element = method.newLocal();
+    loop.top = method.newLabel();
+    loop.end = method.newLabel();
+    loop.next = next;
+
+    method.iconst(0);
+    method.istore(loop.index);
+    method.mark(loop.top);
+    method.iload(loop.index);
+    method.aload(array);
+    method.invokevirtual(JSONNODE, "size", "()I");
+    method.jump(IF_ICMPGE, loop.end);
+
+    method.aload(array);
+    method.iload(loop.index);
+    method.invokevirtual(JSONNODE, "get", "(I)L" + JSONNODE + ";");
+    method.astore(loop.element);
+
+    // must evaluate the other lets over again for each value because
+    // of context
+    compileLets(lets, loop.element);
+    if (ifExpr != null)
+      compileCondition(ifExpr, loop.element, next, false);
+    return loop;
+  }
+
+  private void compileLoopEnd(Loop loop) {
+    method.mark(loop.next);
+    method.iinc(loop.index, 1);
+    method.jump(GOTO, loop.top);
+    method.mark(loop.end);
+  }
+
+  // the locals and labels of a loop being compiled
+  private static class Loop {
+    private int index;
+    private int element;
+    private Label top;
+    private Label next;
+    private Label end;
+  }
+
+  // throws a JsltException with the message plus the value in the local
+  private void compileError(String message, int value, Location location) {
+    method.ldc(message);
+    method.aload(value);
+    loadConstant(location, LOCATION);
+    method.invokestatic(COMPILEDNODE, "error",
+                        "(L" + STRING + ";L" + JSONNODE + ";L" + LOCATION + ";)L" + EXCEPTION + ";");
+    method.op(ATHROW);
+  }
+
+  private void compileLets(LetExpression[] lets, int input) {
+    if (lets == null)
+      return;
+
+    for (int ix = 0; ix < lets.length; ix++) {
+      method.aload(SCOPE_LOCAL);
+      method.iconst(lets[ix].getSlot());
+      compile(lets[ix].getDeclaration(), input);
+      method.invokevirtual(SCOPE, "setValue", "(IL" + JSONNODE + ";)V");
+    }
+  }
+
+  // ===== CONDITIONS
+
+  private static boolean isCondition(ExpressionNode node) {
+    return node instanceof AndOperator ||
+      node instanceof OrOperator ||
+      node instanceof EqualsComparison ||
+      node instanceof UnequalsComparison ||
+      node instanceof ComparisonOperator ||
+      isNot(node);
+  }
+
+  private static boolean isNot(ExpressionNode node) {
+    return node instanceof FunctionExpression &&
+      ((FunctionExpression) node).getFunction() ==
+        BuiltinFunctions.functions.get("not");
+  }
+
+  // produces the BooleanNode for a condition
+  private void compileBoolean(ExpressionNode node, int input) {
+    Label isfalse = method.newLabel();
+    Label end = method.newLabel();
+    compileCondition(node, input, isfalse, false);
+    method.getstatic(BOOLEANNODE, "TRUE", "L" + BOOLEANNODE + ";");
+    method.jump(GOTO, end);
+    method.mark(isfalse);
+    method.getstatic(BOOLEANNODE, "FALSE", "L" + BOOLEANNODE + ";");
+    method.mark(end);
+  }
+
+  // emits code that jumps to target if the truth value of the node is
+  // the same as jumpIf, and otherwise continues
+  private void compileCondition(ExpressionNode node, int input,
+                                Label target, boolean jumpIf) {
+    if (node instanceof AndOperator) {
+      AndOperator and = (AndOperator) node;
+      if (!jumpIf) {
+        compileCondition(and.getLeft(), input, target, false);
+        compileCondition(and.getRight(), input, target, false);
+      } else {
+        Label skip = method.newLabel();
+        compileCondition(and.getLeft(), input, skip, false);
+        compileCondition(and.getRight(), input, target, true);
+        method.mark(skip);
+      }
+
+    } else if (node instanceof OrOperator) {
+      OrOperator or = (OrOperator) node;
+      if (jumpIf) {
+        compileCondition(or.getLeft(), input, target, true);
+        compileCondition(or.getRight(), input, target, true);
+      } else {
+        Label skip = method.newLabel();
+        compileCondition(or.getLeft(), input, skip, true);
+        compileCondition(or.getRight(), input, target, false);
+        method.mark(skip);
+      }
+
+    } else if (isNot(node)) {
+      ExpressionNode argument = ((FunctionExpression) node).getArguments()[0];
+      compileCondition(argument, input, target, !jumpIf);
+
+    } else if (node instanceof EqualsComparison ||
+               node instanceof UnequalsComparison) {
+      AbstractOperator op = (AbstractOperator) node;
+      compile(op.getLeft(), input);
+      compile(op.getRight(), input);
+      method.invokestatic(EQUALS, "equals",
+                          "(L" + JSONNODE + ";L" + JSONNODE + ";)Z");
+      boolean equals = node instanceof EqualsComparison;
+      method.jump(jumpIf == equals ? IFNE : IFEQ, target);
+
+    } else if (node instanceof ComparisonOperator) {
+      compileComparison((ComparisonOperator) node, input, target, jumpIf);
+
+    } else if (node instanceof LiteralExpression) {
+      boolean value = NodeUtils.isTrue(((LiteralExpression) node).getValue());
+      if (value == jumpIf)
+        method.jump(GOTO, target);
+
+    } else {
+      compile(node, input);
+      method.invokestatic(NODEUTILS, "isTrue", "(L" + JSONNODE + ";)Z");
+      method.jump(jumpIf ? IFNE : IFEQ, target);
+    }
+  }
+
+  private void compileComparison(ComparisonOperator node, int input,
+                                 Label target, boolean jumpIf) {
+    if (node.isPrimitive()) {
+      // the operator can compare arithmetic without allocating
+      loadConstant(node, EXPRESSIONNODE);
+      method.aload(SCOPE_LOCAL);
+      method.aload(input);
+      method.invokeinterface(EXPRESSIONNODE, "test",
+                             "(L" + SCOPE + ";L" + JSONNODE + ";)Z");
+      method.jump(jumpIf ? IFNE : IFEQ, target);
+      return;
+    }
+
+    compile(node.getLeft(), input);
+    compile(node.getRight(), input);
+    loadConstant(node.getLocation(), LOCATION);
+    method.invokestatic(COMPARISON, "compare",
+                        "(L" + JSONNODE + ";L" + JSONNODE + ";L" + LOCATION + ";)D");
+    method.op(DCONST_0);
+
+    // the dcmp variant is chosen so that NaN makes the test false,
+    // same as in Java
+    int ifTrue;
+    int ifFalse;
+    if (node instanceof BiggerComparison) {
+      method.op(DCMPL);
+      ifTrue = IFGT;
+      ifFalse = IFLE;
+    } else if (node instanceof BiggerOrEqualComparison) {
+      method.op(DCMPL);
+      ifTrue = IFGE;
+      ifFalse = IFLT;
+    } else if (node instanceof SmallerComparison) {
+      method.op(DCMPG);
+      ifTrue = IFLT;
+      ifFalse = IFGE;
+    } else if (node instanceof SmallerOrEqualsComparison) {
+      method.op(DCMPG);
+      ifTrue = IFLE;
+      ifFalse = IFGT;
+    } else
+      throw new JsltException("INTERNAL ERROR: unknown comparison " + node);
+
+    method.jump(jumpIf ? ifTrue : ifFalse, target);
+  }
+
+  // ===== UTILITIES
+
+  // turns Java null on top of the stack into NullNode.instance
+  private void nullToJsonNull() {
+    Label ok = method.newLabel();
+    method.op(DUP);
+    method.jump(IFNONNULL, ok);
+    method.op(POP);
+    method.getstatic(NULLNODE, "instance", "L" + NULLNODE + ";");
+    method.mark(ok);
+  }
+
+  // the generated class keeps all the objects the code needs in
+  // final fields
+  private void loadConstant(Object value, String type) {
+    if (value == null) {
+      method.op(ACONST_NULL);
+      return;
+    }
+
+    Integer ix = constantIndexes.get(value);
+    if (ix == null) {
+      ix = constants.size();
+      constants.add(value);
+      constantTypes.add(type);
+      constantIndexes.put(value, ix);
+    }
+
+    method.aload(0);
+    method.getfield(classfile.getName(), "c" + ix,
+                    "L" + constantTypes.get(ix) + ";");
+  }
+}
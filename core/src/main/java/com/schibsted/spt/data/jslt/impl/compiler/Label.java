@@ -0,0 +1,30 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl.compiler;
+
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * A position in the bytecode of a method that can be jumped to. The
+ * position may not be known yet when the jumps are written, so we
+ * remember where to patch in the offsets.
+ */
+public class Label {
+  int position = -1; // -1 until marked
+  int stack = -1;    // stack depth on entry, -1 until known
+  List<int[]> fixups = new ArrayList(); // {instruction start, offset pos}
+}
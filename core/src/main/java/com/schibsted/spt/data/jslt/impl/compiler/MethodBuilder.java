@@ -0,0 +1,413 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt.impl.compiler;
+
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.io.IOException;
+import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import com.schibsted.spt.data.jslt.JsltException;
+
+/**
+ * Writes the bytecode for a single method. Keeps track of the stack
+ * depth as instructions are added, so that max_stack can be computed
+ * without any flow analysis. That works because the compiler only
+ * produces code where the stack depth at each jump target is the
+ * same along every path.
+ */
+public class MethodBuilder {
+  // opcodes
+  public static final int ACONST_NULL = 1;
+  public static final int ICONST_0 = 3;
+  public static final int DCONST_0 = 14;
+  public static final int BIPUSH = 16;
+  public static final int SIPUSH = 17;
+  public static final int LDC = 18;
+  public static final int LDC_W = 19;
+  public static final int ILOAD = 21;
+  public static final int ALOAD = 25;
+  public static final int AALOAD = 50;
+  public static final int ISTORE = 54;
+  public static final int ASTORE = 58;
+  public static final int AASTORE = 83;
+  public static final int POP = 87;
+  public static final int DUP = 89;
+  public static final int SWAP = 95;
+  public static final int IINC = 132;
+  public static final int DCMPL = 151;
+  public static final int DCMPG = 152;
+  public static final int IFEQ = 153;
+  public static final int IFNE = 154;
+  public static final int IFLT = 155;
+  public static final int IFGE = 156;
+  public static final int IFGT = 157;
+  public static final int IFLE = 158;
+  public static final int IF_ICMPGE = 162;
+  public static final int IF_ACMPEQ = 165;
+  public static final int IF_ACMPNE = 166;
+  public static final int GOTO = 167;
+  public static final int ARETURN = 176;
+  public static final int RETURN = 177;
+  public static final int GETSTATIC = 178;
+  public static final int GETFIELD = 180;
+  public static final int PUTFIELD = 181;
+  public static final int INVOKEVIRTUAL = 182;
+  public static final int INVOKESPECIAL = 183;
+  public static final int INVOKESTATIC = 184;
+  public static final int INVOKEINTERFACE = 185;
+  public static final int NEW = 187;
+  public static final int ANEWARRAY = 189;
+  public static final int ATHROW = 191;
+  public static final int CHECKCAST = 192;
+  public static final int WIDE = 196;
+  public static final int IFNULL = 198;
+  public static final int IFNONNULL = 199;
+
+  private static final int MAX_CODE_SIZE = 0xFFFF;
+
+  private ClassBuilder owner;
+  private int access;
+  private String name;
+  private String descriptor;
+  private byte[] code;
+  private int length;
+  private int stack;
+  private int maxStack;
+  private int maxLocals;
+  private boolean reachable;
+  private List<Label> labels;
+
+  MethodBuilder(ClassBuilder owner, int access, String name,
+                String descriptor, int argumentSlots) {
+    this.owner = owner;
+    this.access = access;
+    this.name = name;
+    this.descriptor = descriptor;
+    this.code = new byte[256];
+    this.maxLocals = argumentSlots;
+    this.reachable = true;
+    this.labels = new ArrayList();
+  }
+
+  /**
+   * Allocate a new local variable slot.
+   */
+  public int newLocal() {
+    return maxLocals++;
+  }
+
+  public Label newLabel() {
+    Label label = new Label();
+    labels.add(label);
+    return label;
+  }
+
+  // ===== INSTRUCTIONS
+
+  /**
+   * Instructions without operands.
+   */
+  public void op(int opcode) {
+    emit(opcode);
+    switch (opcode) {
+    case ACONST_NULL: case ICONST_0: case DUP:
+      push(1); break;
+    case DCONST_0:
+      push(2); break;
+    case POP: case ATHROW: case ARETURN:
+      pop(1); break;
+    case AALOAD:
+      pop(1); break;
+    case AASTORE:
+      pop(3); break;
+    case DCMPL: case DCMPG:
+      pop(3); break;
+    case SWAP: case RETURN:
+      break;
+    default:
+      throw new JsltException("INTERNAL ERROR: unknown opcode " + opcode);
+    }
+
+    if (opcode == ATHROW || opcode == ARETURN || opcode == RETURN)
+      reachable = false;
+  }
+
+  public void iconst(int value) {
+    if (value >= -1 && value <= 5)
+      emit(ICONST_0 + value);
+    else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      emit(BIPUSH);
+      emit(value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      emit(SIPUSH);
+      emitShort(value);
+    } else
+      ldcIndex(owner.integer(value));
+    if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+      push(1);
+  }
+
+  public void ldc(String value) {
+    ldcIndex(owner.string(value));
+  }
+
+  private void ldcIndex(int ix) {
+    if (ix <= 0xFF) {
+      emit(LDC);
+      emit(ix);
+    } else {
+      emit(LDC_W);
+      emitShort(ix);
+    }
+    push(1);
+  }
+
+  public void aload(int local) {
+    local(ALOAD, local);
+    push(1);
+  }
+
+  public void astore(int local) {
+    local(ASTORE, local);
+    pop(1);
+  }
+
+  public void iload(int local) {
+    local(ILOAD, local);
+    push(1);
+  }
+
+  public void istore(int local) {
+    local(ISTORE, local);
+    pop(1);
+  }
+
+  public void iinc(int local, int delta) {
+    if (local > 0xFF) {
+      emit(WIDE);
+      emit(IINC);
+      emitShort(local);
+      emitShort(delta);
+    } else {
+      emit(IINC);
+      emit(local);
+      emit(delta);
+    }
+  }
+
+  private void local(int opcode, int local) {
+    if (local > 0xFF) {
+      emit(WIDE);
+      emit(opcode);
+      emitShort(local);
+    } else {
+      emit(opcode);
+      emit(local);
+    }
+  }
+
+  public void getstatic(String owner, String name, String descriptor) {
+    emit(GETSTATIC);
+    emitShort(this.owner.fieldRef(owner, name, descriptor));
+    push(1);
+  }
+
+  public void getfield(String owner, String name, String descriptor) {
+    emit(GETFIELD);
+    emitShort(this.owner.fieldRef(owner, name, descriptor));
+  }
+
+  public void putfield(String owner, String name, String descriptor) {
+    emit(PUTFIELD);
+    emitShort(this.owner.fieldRef(owner, name, descriptor));
+    pop(2);
+  }
+
+  public void invokevirtual(String owner, String name, String descriptor) {
+    emit(INVOKEVIRTUAL);
+    emitShort(this.owner.methodRef(owner, name, descriptor));
+    invoked(descriptor, true);
+  }
+
+  public void invokespecial(String owner, String name, String descriptor) {
+    emit(INVOKESPECIAL);
+    emitShort(this.owner.methodRef(owner, name, descriptor));
+    invoked(descriptor, true);
+  }
+
+  public void invokestatic(String owner, String name, String descriptor) {
+    emit(INVOKESTATIC);
+    emitShort(this.owner.methodRef(owner, name, descriptor));
+    invoked(descriptor, false);
+  }
+
+  public void invokeinterface(String owner, String name, String descriptor) {
+    emit(INVOKEINTERFACE);
+    emitShort(this.owner.interfaceMethodRef(owner, name, descriptor));
+    emit(argumentSlots(descriptor) + 1);
+    emit(0);
+    invoked(descriptor, true);
+  }
+
+  // NEW, ANEWARRAY, CHECKCAST
+  public void type(int opcode, String internalName) {
+    emit(opcode);
+    emitShort(owner.classRef(internalName));
+    if (opcode == NEW)
+      push(1);
+  }
+
+  public void jump(int opcode, Label label) {
+    int start = length;
+    emit(opcode);
+    emitShort(0); // patched later
+    label.fixups.add(new int[] { start, start + 1 });
+
+    switch (opcode) {
+    case GOTO:
+      break;
+    case IF_ICMPGE: case IF_ACMPEQ: case IF_ACMPNE:
+      pop(2); break;
+    default:
+      pop(1);
+    }
+    if (reachable)
+      setLabelStack(label);
+
+    if (opcode == GOTO)
+      reachable = false;
+  }
+
+  public void mark(Label label) {
+    label.position = length;
+    if (!reachable) {
+      // we can only get here by jumping. if nothing jumps here the
+      // code that follows is dead until the next label that is jumped
+      // to. the verifier ignores dead code, so we do the same
+      if (label.stack != -1) {
+        stack = label.stack;
+        reachable = true;
+      }
+    } else
+      setLabelStack(label);
+  }
+
+  private void setLabelStack(Label label) {
+    if (label.stack == -1)
+      label.stack = stack;
+    else if (label.stack != stack)
+      throw new JsltException("INTERNAL ERROR: inconsistent stack at label, " +
+                              label.stack + " != " + stack + " in " + name);
+  }
+
+  // ===== STACK TRACKING
+
+  private void push(int slots) {
+    if (!reachable)
+      return;
+    stack += slots;
+    if (stack > maxStack)
+      maxStack = stack;
+  }
+
+  private void pop(int slots) {
+    if (!reachable)
+      return;
+    stack -= slots;
+    if (stack < 0)
+      throw new JsltException("INTERNAL ERROR: stack underflow in " + name);
+  }
+
+  private void invoked(String descriptor, boolean hasReceiver) {
+    pop(argumentSlots(descriptor) + (hasReceiver ? 1 : 0));
+    char ret = descriptor.charAt(descriptor.indexOf(')') + 1);
+    if (ret == 'D' || ret == 'J')
+      push(2);
+    else if (ret != 'V')
+      push(1);
+  }
+
+  private static int argumentSlots(String descriptor) {
+    int slots = 0;
+    int pos = 1; // skip '('
+    while (descriptor.charAt(pos) != ')') {
+      char ch = descriptor.charAt(pos);
+      if (ch == 'D' || ch == 'J')
+        slots += 2;
+      else
+        slots += 1;
+
+      while (descriptor.charAt(pos) == '[')
+        pos++;
+      if (descriptor.charAt(pos) == 'L')
+        pos = descriptor.indexOf(';', pos);
+      pos++;
+    }
+    return slots;
+  }
+
+  // ===== OUTPUT
+
+  private void emit(int b) {
+    if (length == code.length)
+      code = Arrays.copyOf(code, code.length * 2);
+    code[length++] = (byte) b;
+  }
+
+  private void emitShort(int s) {
+    emit(s >> 8);
+    emit(s);
+  }
+
+  byte[] toByteArray(int codeAttributeName) throws IOException {
+    if (length > MAX_CODE_SIZE)
+      throw new ClassTooLargeException("Method too large");
+
+    // now all label positions are known, so we can patch the jumps.
+    // the offsets are relative to the start of the jump instruction
+    // and must fit in a signed short
+    for (Label label : labels) {
+      if (label.position == -1)
+        throw new JsltException("INTERNAL ERROR: label never marked in " + name);
+      for (int[] fixup : label.fixups) {
+        int offset = label.position - fixup[0];
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+          throw new ClassTooLargeException("Jump too long");
+        code[fixup[1]] = (byte) (offset >> 8);
+        code[fixup[1] + 1] = (byte) offset;
+      }
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeShort(access);
+    out.writeShort(owner.utf8(name));
+    out.writeShort(owner.utf8(descriptor));
+    out.writeShort(1); // one attribute: Code
+
+    out.writeShort(codeAttributeName);
+    out.writeInt(2 + 2 + 4 + length + 2 + 2);
+    out.writeShort(maxStack);
+    out.writeShort(maxLocals);
+    out.writeInt(length);
+    out.write(code, 0, length);
+    out.writeShort(0); // no exception table
+    out.writeShort(0); // no attributes
+    return bytes.toByteArray();
+  }
+}
@@ -20,6 +20,7 @@ import java.util.Set;
 import java.util.List;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -53,9 +54,7 @@ public class ParserImpl {
     try {
       parser.Start();
       //((SimpleNode) parser.jjtree.rootNode()).dump("");
-      ExpressionImpl expr = compile(ctx, (SimpleNode) parser.jjtree.rootNode());
-      expr.setGlobalModules(ctx.getFiles());
-      return expr;
+      return compile(ctx, (SimpleNode) parser.jjtree.rootNode());
 
     } catch (ParseException e) {
       throw new JsltException("Parse error: " + e.getMessage(),
@@ -69,7 +68,7 @@ public class ParserImpl {
                                              ParseContext parent,
                                              String jslt) {
     try (Reader reader = parent.getResolver().resolve(jslt)) {
-      ParseContext ctx = new ParseContext(functions, jslt, parent.getResolver(), parent.getNamedModules(), parent.getFiles(), parent.getPreparationContext(), parent.getObjectFilter());
+      ParseContext ctx = new ParseContext(functions, jslt, parent.getResolver(), parent.getNamedModules(), parent.getFiles(), parent.getPreparationContext(), parent.getObjectFilter(), parent.getCompilationThreshold(), parent.getMaxRecursionDepth(), parent.getMemoizationSize(), parent.getRegexpCache());
       ctx.setParent(parent);
       return compileModule(ctx, new JsltParser(reader));
     } catch (IOException e) {
@@ -93,7 +92,8 @@ public class ParserImpl {
   private static ExpressionImpl compile(ParseContext ctx, SimpleNode root) {
     processImports(ctx, root); // registered with context
     LetExpression[] lets = buildLets(ctx, root);
-    collectFunctions(ctx, root); // registered with context
+    Map<FunctionDeclaration, SimpleNode> functions =
+      collectFunctions(ctx, root); // registered with context
 
     SimpleNode expr = getLastChild(root);
 
@@ -101,14 +101,50 @@ public class ParserImpl {
     if (expr.id == JsltParserTreeConstants.JJTEXPR)
       top = node2expr(ctx, expr);
     ctx.resolveFunctions();
+    inlineFunctions(ctx, functions, lets, top);
 
     ExpressionImpl impl =
       new ExpressionImpl(lets, ctx.getDeclaredFunctions(), top);
     impl.prepare(ctx.getPreparationContext());
     impl.optimize();
+    if (ctx.getMemoizationSize() > 0)
+      impl.memoizeFunctions(ctx.getMemoizationSize());
+    if (ctx.getParent() == null) {
+      // this is the main expression, so now we know which functions
+      // can be called, both here and in the imported modules
+      impl.setGlobalModules(ctx.getFiles());
+      impl.removeUnusedFunctions();
+      impl.setSpecializer(makeSpecializer(ctx, root));
+    }
+    if (ctx.getCompilationThreshold() == 0)
+      impl.compile();
+    else if (ctx.getCompilationThreshold() > 0)
+      impl.setCompilationThreshold(ctx.getCompilationThreshold());
     return impl;
   }
 
+  // compiles the same syntax tree again, with more parameters known
+  private static Specializer makeSpecializer(final ParseContext ctx,
+                                             final SimpleNode root) {
+    return new Specializer() {
+      public Expression specialize(Map<String, JsonNode> knownParameters) {
+        Map<String, JsonNode> known = new HashMap(
+          ctx.getPreparationContext().scope.getKnownParameters()
+        );
+        known.putAll(knownParameters);
+
+        ParseContext specialized = new ParseContext(
+          ctx.getExtensions(), ctx.getSource(), ctx.getResolver(),
+          ctx.getNamedModules(), new ArrayList(),
+          new PreparationContext(known), ctx.getObjectFilter(),
+          ctx.getCompilationThreshold(), ctx.getMaxRecursionDepth(),
+          ctx.getMemoizationSize(), ctx.getRegexpCache()
+        );
+        return compile(specialized, root);
+      }
+    };
+  }
+
   private static ExpressionNode node2expr(ParseContext ctx, SimpleNode node) {
     if (node.id != JsltParserTreeConstants.JJTEXPR)
       throw new JsltException("INTERNAL ERROR: Wrong type of node: " + node);
@@ -614,9 +650,11 @@ public class ParserImpl {
   }
 
   // collects all the 'def' statements as children of this node
-  // functions are registered with the context
-  private static void collectFunctions(ParseContext ctx, SimpleNode parent) {
-    Map<String, FunctionDeclaration> functions = new HashMap();
+  // functions are registered with the context, and returned with
+  // their syntax trees
+  private static Map<FunctionDeclaration, SimpleNode> collectFunctions(
+    ParseContext ctx, SimpleNode parent) {
+    Map<FunctionDeclaration, SimpleNode> functions = new LinkedHashMap();
     for (int ix = 0; ix < parent.jjtGetNumChildren(); ix++) {
       SimpleNode node = (SimpleNode) parent.jjtGetChild(ix);
       if (node.firstToken.kind != JsltParserConstants.DEF)
@@ -631,8 +669,128 @@ public class ParserImpl {
         name, params, lets, node2expr(ctx, expr)
       );
       func.computeMatchContexts(null);
+      func.setMaxRecursionDepth(ctx.getMaxRecursionDepth());
       ctx.addDeclaredFunction(name, func);
+      functions.put(func, node);
     }
+    return functions;
+  }
+
+  // functions whose lets and body have at most this many expression
+  // nodes, once the calls they make have been inlined, are inlined
+  // where they are called
+  private static final int INLINE_MAX_SIZE = 20;
+
+  // inlining stops once the copies made while compiling one file add
+  // up to this many expression nodes
+  private static final int INLINE_MAX_GROWTH = 10000;
+
+  // replaces calls to small, non-recursive functions declared in this
+  // file with copies of their bodies, built from the syntax tree. has
+  // to happen before the expression is prepared, so that the copies
+  // get slots in the caller's stack frame
+  private static void inlineFunctions(ParseContext ctx,
+                                      Map<FunctionDeclaration, SimpleNode> functions,
+                                      LetExpression[] lets,
+                                      ExpressionNode top) {
+    // callees go before their callers, so that when we decide whether
+    // to inline a function, the calls it makes have been inlined, and
+    // its size is the size of the copies
+    List<FunctionDeclaration> order = new ArrayList();
+    Set<FunctionDeclaration> seen = new HashSet();
+    for (FunctionDeclaration func : functions.keySet())
+      orderByCalls(func, functions, seen, order);
+
+    Inliner inliner = new Inliner(ctx);
+    for (FunctionDeclaration func : order) {
+      // functions that aren't inlined everywhere still benefit
+      for (int ix = 0; ix < func.getLets().length; ix++)
+        inliner.inlineCalls(func.getLets()[ix]);
+      inliner.inlineCalls(func.getBody());
+
+      int size = OptimizeUtils.size(func);
+      if (size <= INLINE_MAX_SIZE && !OptimizeUtils.isRecursive(func))
+        inliner.add(func, functions.get(func), size);
+    }
+
+    for (int ix = 0; ix < lets.length; ix++)
+      inliner.inlineCalls(lets[ix]);
+    if (top != null)
+      inliner.inlineCalls(top);
+  }
+
+  private static void orderByCalls(FunctionDeclaration func,
+                                   Map<FunctionDeclaration, SimpleNode> functions,
+                                   Set<FunctionDeclaration> seen,
+                                   List<FunctionDeclaration> order) {
+    if (!seen.add(func))
+      return; // done already, or recursive
+
+    for (FunctionDeclaration called : OptimizeUtils.getCalledFunctions(func))
+      if (functions.containsKey(called))
+        orderByCalls(called, functions, seen, order);
+    order.add(func);
+  }
+
+  private static class Inliner {
+    private ParseContext ctx;
+    private Map<FunctionDeclaration, SimpleNode> inlineable;
+    private Map<FunctionDeclaration, Integer> sizes;
+    private int growth; // expression nodes added by inlining so far
+
+    private Inliner(ParseContext ctx) {
+      this.ctx = ctx;
+      this.inlineable = new HashMap();
+      this.sizes = new HashMap();
+    }
+
+    private void add(FunctionDeclaration func, SimpleNode def, int size) {
+      inlineable.put(func, def);
+      sizes.put(func, size);
+    }
+
+    private void inlineCalls(ExpressionNode node) {
+      if (node instanceof FunctionExpression) {
+        FunctionExpression call = (FunctionExpression) node;
+        FunctionDeclaration func = call.getDeclaredFunction();
+        SimpleNode def = inlineable.get(func);
+        if (def != null && growth + sizes.get(func) <= INLINE_MAX_GROWTH) {
+          growth += sizes.get(func);
+          InlinedFunctionExpression inlined = copyFunction(ctx, call, def);
+          call.inline(inlined);
+          node = inlined; // so that calls in the copy are inlined, too
+        }
+      }
+
+      for (ExpressionNode child : node.getChildren())
+        inlineCalls(child);
+    }
+  }
+
+  private static InlinedFunctionExpression copyFunction(ParseContext ctx,
+                                                        FunctionExpression call,
+                                                        SimpleNode def) {
+    // the parameters become lets bound to the arguments
+    String[] names = collectParams(def);
+    ExpressionNode[] arguments = call.getArguments();
+    LetExpression[] parameters = new LetExpression[names.length];
+    for (int ix = 0; ix < names.length; ix++)
+      parameters[ix] = new LetExpression(names[ix], arguments[ix],
+                                         call.getLocation());
+
+    LetExpression[] lets = buildLets(ctx, def);
+    ExpressionNode body = node2expr(ctx, getLastChild(def));
+    ctx.resolveFunctions(); // the calls made from the copy
+
+    // not allowed to use object matcher inside declared functions
+    FailDotExpression fail = new FailDotExpression(null, "function declaration");
+    for (int ix = 0; ix < lets.length; ix++)
+      lets[ix].computeMatchContexts(fail);
+    body.computeMatchContexts(fail);
+
+    return new InlinedFunctionExpression(
+      call.getDeclaredFunction(), parameters, lets, body, call.getLocation()
+    );
   }
 
   private static String[] collectParams(SimpleNode node) {
@@ -0,0 +1,105 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.io.StringReader;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import static org.junit.Assert.fail;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Runs the query and query error test cases with compilation to
+ * bytecode enabled, to verify that the compiled code behaves exactly
+ * like the interpreter.
+ */
+@RunWith(Parameterized.class)
+public class CompiledQueryTest extends TestBase {
+  private static ObjectMapper mapper = new ObjectMapper();
+  private String input;
+  private String query;
+  private String output; // null if this is an error test
+  private String error;
+  private Map<String, JsonNode> variables;
+
+  public CompiledQueryTest(String input, String query, String output,
+                           String error, Map<String, JsonNode> variables) {
+    this.input = input;
+    this.query = query;
+    this.output = output;
+    this.error = error;
+    this.variables = variables;
+  }
+
+  @Test
+  public void check() {
+    JsonNode actual;
+    try {
+      JsonNode context = mapper.readTree(input);
+
+      Expression expr = new Parser(new StringReader(query))
+        .withCompilation(true)
+        .compile();
+      actual = expr.apply(variables, context);
+    } catch (JsltException e) {
+      if (error == null)
+        throw new RuntimeException("Failure on query " + query + ": " + e, e);
+      assertTrue("incorrect error message: '" + e.getMessage() + "', " +
+                 "correct: '" + error + "'",
+                 e.getMessage().indexOf(error) != -1);
+      return;
+    } catch (Exception e) {
+      throw new RuntimeException("Failure on query " + query + ": " + e, e);
+    }
+
+    if (error != null)
+      fail("JSLT did not detect error in " + query);
+    if (actual == null)
+      fail("Returned Java null in " + query);
+
+    try {
+      // reparse to handle IntNode(2) != LongNode(2)
+      actual = mapper.readTree(mapper.writeValueAsString(actual));
+      JsonNode expected = mapper.readTree(output);
+      assertEquals("" + expected + " != " + actual + " in query " + query + ", input: " + input, expected, actual);
+    } catch (java.io.IOException e) {
+      throw new RuntimeException("Failure on query " + query + ": " + e, e);
+    }
+  }
+
+  @Parameters(name= "query: {1}")
+  public static Collection<Object[]> data() {
+    List<Object[]> tests = new ArrayList();
+    for (Object[] test : QueryTest.data())
+      tests.add(new Object[] { test[0], test[1], test[2], null, test[3] });
+    for (Object[] test : QueryErrorTest.data())
+      tests.add(new Object[] { test[0], test[1], null, test[2], new HashMap() });
+    return tests;
+  }
+}
@@ -1,6 +1,11 @@
 
 package com.schibsted.spt.data.jslt;
 
+import java.util.Map;
+import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import org.junit.Test;
@@ -74,4 +79,162 @@ public class FunctionWrapperTest extends TestBase {
 
     assertTrue(actual.asInt() == 1024);
   }
+
+  @Test
+  public void testWrapStaticMethodPure() throws Exception {
+    Collection<Function> functions = Collections.singleton(
+      FunctionUtils.wrapStaticMethod("square",
+                                     FunctionWrapperTest.class.getName(),
+                                     "square", FunctionTraits.PURE)
+    );
+    squareCalls = 0;
+    Expression expr = Parser.compileString("square(3)", functions);
+    assertEquals(1, squareCalls); // evaluated during compilation
+
+    JsonNode context = mapper.readTree("{}");
+    assertEquals(9, expr.apply(context).asInt());
+    assertEquals(9, expr.apply(context).asInt());
+    assertEquals(1, squareCalls);
+  }
+
+  @Test
+  public void testWrapStaticMethodNoTraits() throws Exception {
+    Function square = FunctionUtils.wrapStaticMethod(
+      "square", FunctionWrapperTest.class.getName(), "square"
+    );
+    assertTrue(square.getTraits() == FunctionTraits.UNKNOWN);
+
+    squareCalls = 0;
+    Expression expr = Parser.compileString("square(3)",
+                                           Collections.singleton(square));
+    JsonNode context = mapper.readTree("{}");
+    assertEquals(9, expr.apply(context).asInt());
+    assertEquals(9, expr.apply(context).asInt());
+    assertEquals(2, squareCalls);
+  }
+
+  @Test
+  public void testWrapStaticMethodCollections() throws Exception {
+    String cls = FunctionWrapperTest.class.getName();
+    Collection<Function> functions = Arrays.asList(
+      FunctionUtils.wrapStaticMethod("keys", cls, "keys"),
+      FunctionUtils.wrapStaticMethod("total", cls, "total"),
+      FunctionUtils.wrapStaticMethod("reversed", cls, "reversed"),
+      FunctionUtils.wrapStaticMethod("first", cls, "first")
+    );
+
+    check("{}", "keys({\"b\" : 1, \"a\" : 2})", "[\"a\", \"b\"]",
+          Collections.EMPTY_MAP, functions);
+    check("{}", "total([1, 2, 3.5])", "6.5",
+          Collections.EMPTY_MAP, functions);
+    check("{}", "reversed([\"a\", \"b\"])", "[\"b\", \"a\"]",
+          Collections.EMPTY_MAP, functions);
+    check("{}", "first([{\"x\" : 1}])", "{\"x\" : 1}",
+          Collections.EMPTY_MAP, functions);
+    check("{}", "first([])", "null",
+          Collections.EMPTY_MAP, functions);
+  }
+
+  @Test
+  public void testWrapMethodOnObject() throws Exception {
+    StringBuilder buf = new StringBuilder("abc");
+    Collection<Function> functions = Collections.singleton(
+      FunctionUtils.wrapMethod("position", buf, "indexOf",
+                               new Class[] {String.class},
+                               FunctionTraits.UNKNOWN)
+    );
+    check("{}", "position(\"c\")", "2",
+          Collections.EMPTY_MAP, functions);
+  }
+
+  @Test
+  public void testWrapMethodOnMap() throws Exception {
+    // the example in extensions.md: get() takes and returns Object
+    Map<String, String> countryTable = new HashMap();
+    countryTable.put("NO", "Norway");
+    Collection<Function> functions = Collections.singleton(
+      FunctionUtils.wrapMethod("lookup", countryTable, "get")
+    );
+    check("{}", "lookup(\"NO\")", "\"Norway\"",
+          Collections.EMPTY_MAP, functions);
+    check("{}", "lookup(\"SE\")", "null",
+          Collections.EMPTY_MAP, functions);
+  }
+
+  @Test
+  public void testWrapMethodOnNonPublicClass() throws Exception {
+    // the class of the map is private to the JDK, so the methods are
+    // called through the Map interface
+    Map<String, Integer> map = new HashMap();
+    map.put("a", 1);
+    Map<String, Integer> unmodifiable = Collections.unmodifiableMap(map);
+    List<String> list = Arrays.asList("x", "y");
+    Collection<Function> functions = Arrays.asList(
+      FunctionUtils.wrapMethod("empty", unmodifiable, "isEmpty"),
+      FunctionUtils.wrapMethod("lookup", unmodifiable, "get"),
+      FunctionUtils.wrapMethod("position", list, "indexOf")
+    );
+    check("{}", "empty()", "false",
+          Collections.EMPTY_MAP, functions);
+    check("{}", "lookup(\"a\")", "1",
+          Collections.EMPTY_MAP, functions);
+    check("{}", "position(\"y\")", "1",
+          Collections.EMPTY_MAP, functions);
+  }
+
+  @Test
+  public void testWrapMethodNotStatic() throws Exception {
+    try {
+      FunctionUtils.wrapStaticMethod("length", "java.lang.String", "length");
+      fail("accepted instance method without object");
+    } catch (JsltException e) {
+      // this is what we expected
+    }
+  }
+
+  @Test
+  public void testWrapStaticMethodWrongType() throws Exception {
+    Collection<Function> functions = Collections.singleton(
+      FunctionUtils.wrapStaticMethod("square", FunctionWrapperTest.class.getName(),
+                                     "square")
+    );
+    Expression expr = Parser.compileString("square(.)", functions);
+    try {
+      expr.apply(mapper.readTree("\"three\""));
+      fail("accepted string as int");
+    } catch (JsltException e) {
+      assertTrue(e.getMessage().indexOf("to int") != -1);
+    }
+  }
+
+  public static List<String> keys(Map<String, Object> map) {
+    List<String> keys = new ArrayList(map.keySet());
+    Collections.sort(keys);
+    return keys;
+  }
+
+  public static double total(double[] numbers) {
+    double total = 0;
+    for (int ix = 0; ix < numbers.length; ix++)
+      total += numbers[ix];
+    return total;
+  }
+
+  public static String[] reversed(String[] strings) {
+    String[] reversed = new String[strings.length];
+    for (int ix = 0; ix < strings.length; ix++)
+      reversed[ix] = strings[strings.length - ix - 1];
+    return reversed;
+  }
+
+  public static JsonNode first(JsonNode array) {
+    return array.get(0);
+  }
+
+  private static int squareCalls;
+
+  public static int square(int value) {
+    squareCalls++;
+    return value * value;
+  }
 }
@@ -0,0 +1,246 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt;
+
+import java.util.Map;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Collections;
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Tests the analysis of which parts of the input an expression reads.
+ */
+public class InputPathsTest extends TestBase {
+  private static ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  public void testSimplePaths() {
+    checkPaths("{\"a\" : .foo.bar, \"b\" : .baz}", ".baz", ".foo.bar");
+  }
+
+  @Test
+  public void testWholeInput() {
+    checkPaths("[., .foo]", ".");
+  }
+
+  @Test
+  public void testLiteral() {
+    checkPaths("{\"a\" : 1}"); // nothing is read
+  }
+
+  @Test
+  public void testIndexes() {
+    checkPaths("{\"a\" : .foo[0].bar, \"b\" : .baz[1 : 3]}", ".baz", ".foo[*].bar");
+  }
+
+  @Test
+  public void testForLoop() {
+    checkPaths("[for (.items) .id]", ".items[*].id");
+  }
+
+  @Test
+  public void testNestedForLoop() {
+    checkPaths("[for (.items) [for (.tags) .name] ]", ".items[*].tags[*].name");
+  }
+
+  @Test
+  public void testPipe() {
+    checkPaths(".foo | {\"a\" : .bar, \"b\" : .baz}", ".foo.bar", ".foo.baz");
+  }
+
+  @Test
+  public void testVariables() {
+    checkPaths("let x = .foo " +
+          "{\"a\" : $x.bar, \"b\" : $x.baz}",
+          ".foo.bar", ".foo.baz");
+  }
+
+  @Test
+  public void testCondition() {
+    checkPaths("if (.foo) .bar.baz else .quux", ".bar.baz", ".foo", ".quux");
+  }
+
+  @Test
+  public void testFunctionCall() {
+    checkPaths("size(.foo.bar)", ".foo.bar");
+  }
+
+  @Test
+  public void testDeclaredFunction() {
+    checkPaths("def name(p) $p.first + \" \" + $p.last " +
+          "name(.person)",
+          ".person.first", ".person.last");
+  }
+
+  @Test
+  public void testDeclaredFunctionReadsInput() {
+    checkPaths("def get(key) get-key(.data, $key) " +
+          "get(.key)",
+          ".data", ".key");
+  }
+
+  @Test
+  public void testRecursiveFunction() {
+    checkPaths("def last(node) if ($node.next) last($node.next) else $node.value " +
+          "last(.list)",
+          ".list.next", ".list.value");
+  }
+
+  @Test
+  public void testRecursiveResultNavigated() {
+    checkPaths("def f(n) if ($n) f($n - 1).foo else .bar " +
+          "f(.count)",
+          ".");
+  }
+
+  @Test
+  public void testMatcher() {
+    checkPaths("{\"a\" : .foo.bar, \"b\" : {* : .}}", ".b", ".foo.bar");
+  }
+
+  @Test
+  public void testMatcherInForLoop() {
+    checkPaths("[for (.items) {\"id\" : 1, * : .}]", ".items[*]");
+  }
+
+  @Test
+  public void testQuotedKeys() {
+    checkPaths(".\"foo bar\".baz", ".\"foo bar\".baz");
+  }
+
+  @Test
+  public void testPruningKeepsOutput() throws Exception {
+    // removing everything the expression doesn't read must not change
+    // the output for any of the query tests
+    for (Object[] test : QueryTest.data()) {
+      String query = (String) test[1];
+      JsonNode input = mapper.readTree((String) test[0]);
+      Map<String, JsonNode> variables = (Map<String, JsonNode>) test[3];
+
+      Expression expr = Parser.compileString(query);
+      JsonNode pruned = prune(input, expr.getInputPaths());
+
+      JsonNode expected = expr.apply(variables, input);
+      JsonNode actual = expr.apply(variables, pruned);
+      assertEquals("wrong output for " + query + " with pruned input " +
+                   pruned, expected, actual);
+    }
+  }
+
+  @Test
+  public void testReadInput() {
+    Expression expr = Parser.compileString("[.foo.bar, .list[1].id]");
+    JsonNode input = expr.readInput(
+      ("{\"foo\" : {\"bar\" : 1, \"baz\" : [1, 2, {}]}, \"x\" : 2, " +
+       "\"list\" : [{\"id\" : 1, \"y\" : 2}, {\"id\" : 3}]}").getBytes()
+    );
+    assertEquals("{\"foo\":{\"bar\":1},\"list\":[{\"id\":1},{\"id\":3}]}",
+                 input.toString());
+  }
+
+  @Test
+  public void testReadInputKeepsOutput() throws Exception {
+    // parsing only the parts of the input the expression reads must
+    // not change the output for any of the query tests
+    for (Object[] test : QueryTest.data()) {
+      String query = (String) test[1];
+      byte[] json = ((String) test[0]).getBytes("utf-8");
+      Map<String, JsonNode> variables = (Map<String, JsonNode>) test[3];
+
+      Expression expr = Parser.compileString(query);
+      JsonNode expected = expr.apply(variables, mapper.readTree(json));
+      JsonNode actual = expr.apply(variables, expr.readInput(
+        new ByteArrayInputStream(json)
+      ));
+      assertEquals("wrong output for " + query, expected, actual);
+    }
+  }
+
+  @Test
+  public void testExtensionFunctionReadsInput() throws Exception {
+    // extension functions are given the input, so they may read it
+    Function tenant = new Function() {
+        public String getName() {
+          return "tenant";
+        }
+        public int getMinArguments() {
+          return 0;
+        }
+        public int getMaxArguments() {
+          return 0;
+        }
+        public JsonNode call(JsonNode input, JsonNode[] params) {
+          return input.get("tenant");
+        }
+      };
+    Expression expr = Parser.compileString(
+      "{\"t\" : tenant(), \"id\" : .id}", Collections.singleton(tenant)
+    );
+    assertEquals(Arrays.asList("."), expr.getInputPaths().getPaths());
+
+    byte[] json = "{\"tenant\" : \"acme\", \"id\" : 1}".getBytes("utf-8");
+    assertEquals(expr.apply(mapper.readTree(json)),
+                 expr.apply(expr.readInput(json)));
+  }
+
+  @Test
+  public void testBuiltinDoesNotReadInput() {
+    checkPaths("{\"s\" : size(.list), \"u\" : uppercase(.name)}",
+               ".list", ".name");
+  }
+
+  private void checkPaths(String query, String... paths) {
+    Expression expr = Parser.compileString(query);
+    assertEquals(Arrays.asList(paths), expr.getInputPaths().getPaths());
+  }
+
+  private static JsonNode prune(JsonNode value, InputPaths paths) {
+    if (value == null || paths.isEntire())
+      return value;
+
+    if (value.isArray()) {
+      ArrayNode array = mapper.createArrayNode();
+      for (int ix = 0; ix < value.size(); ix++) {
+        if (paths.getElements() == null)
+          array.addNull();
+        else
+          array.add(prune(value.get(ix), paths.getElements()));
+      }
+      return array;
+    } else if (value.isObject()) {
+      if (paths.getElements() != null)
+        return value; // may be iterated over
+      ObjectNode object = mapper.createObjectNode();
+      Iterator<String> it = value.fieldNames();
+      while (it.hasNext()) {
+        String key = it.next();
+        if (paths.getField(key) != null)
+          object.set(key, prune(value.get(key), paths.getField(key)));
+      }
+      return object;
+    } else
+      return value;
+  }
+}
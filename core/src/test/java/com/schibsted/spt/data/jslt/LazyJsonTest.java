@@ -0,0 +1,93 @@
+
+// Copyright 2018 Schibsted Marketplaces Products & Technology As
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.schibsted.spt.data.jslt;
+
+import java.util.Map;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import static org.junit.Assert.fail;
+import static org.junit.Assert.assertEquals;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests the lazily parsed JsonNodes.
+ */
+public class LazyJsonTest extends TestBase {
+  private static ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  public void testSameAsParsed() throws Exception {
+    String json = "{\"a\" : [1, 2.5, {\"b\" : null}], \"c\" : \"d\", " +
+      "\"e\" : {}, \"f\" : [], \"g\" : true}";
+    JsonNode lazy = LazyJson.parse(json.getBytes("utf-8"));
+    assertEquals(mapper.readTree(json), lazy);
+    assertEquals(mapper.readTree(json).toString(), lazy.toString());
+  }
+
+  @Test
+  public void testRange() throws Exception {
+    byte[] json = "xx[1, {\"a\" : 2}]yy".getBytes("utf-8");
+    JsonNode lazy = LazyJson.parse(json, 2, json.length - 4);
+    assertEquals(2, lazy.size());
+    assertEquals(2, lazy.get(1).get("a").intValue());
+  }
+
+  @Test
+  public void testByteBuffer() throws Exception {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+    buffer.put("{\"a\" : {\"b\" : 1}}".getBytes("utf-8"));
+    buffer.flip();
+    JsonNode lazy = LazyJson.parse(buffer);
+    assertEquals(1, lazy.get("a").get("b").intValue());
+  }
+
+  @Test
+  public void testModify() throws Exception {
+    JsonNode lazy = LazyJson.parse("{\"a\" : [1]}".getBytes("utf-8"));
+    ((com.fasterxml.jackson.databind.node.ObjectNode) lazy).put("b", 2);
+    ((com.fasterxml.jackson.databind.node.ArrayNode) lazy.get("a")).add(3);
+    assertEquals("{\"a\":[1,3],\"b\":2}", lazy.toString());
+  }
+
+  @Test
+  public void testMalformedIsFoundWhenUsed() throws Exception {
+    JsonNode lazy = LazyJson.parse("{\"a\" : 1, \"b\" : [1, }".getBytes("utf-8"));
+    try {
+      lazy.get("a");
+      fail("accepted malformed JSON");
+    } catch (JsltException e) {
+      // this is what we expected
+    }
+  }
+
+  @Test
+  public void testQueries() throws Exception {
+    // every query must give the same output on lazy input
+    for (Object[] test : QueryTest.data()) {
+      String query = (String) test[1];
+      byte[] json = ((String) test[0]).getBytes("utf-8");
+      Map<String, JsonNode> variables = (Map<String, JsonNode>) test[3];
+
+      Expression expr = Parser.compileString(query);
+      JsonNode expected = expr.apply(variables, mapper.readTree(json));
+      JsonNode actual = expr.apply(variables, LazyJson.parse(json));
+      assertEquals("wrong output for " + query, expected, actual);
+    }
+  }
+}
@@ -4,11 +4,15 @@ package com.schibsted.spt.data.jslt;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.regex.Pattern;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -17,10 +21,12 @@ import java.nio.charset.StandardCharsets;
 import org.junit.Test;
 import org.junit.Ignore;
 import static org.junit.Assert.fail;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
 import java.math.BigInteger;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.IntNode;
@@ -28,10 +34,16 @@ import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.fasterxml.jackson.databind.node.FloatNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.BigIntegerNode;
 
 import com.schibsted.spt.data.jslt.Module;
 import com.schibsted.spt.data.jslt.impl.ModuleImpl;
+import com.schibsted.spt.data.jslt.impl.ExpressionImpl;
+import com.schibsted.spt.data.jslt.impl.Scope;
+import com.schibsted.spt.data.jslt.impl.AbstractFunction;
+import com.schibsted.spt.data.jslt.impl.JstlFile;
+import com.schibsted.spt.data.jslt.impl.FunctionDeclaration;
 import com.schibsted.spt.data.jslt.impl.ClasspathResourceResolver;
 import com.schibsted.spt.data.jslt.filters.*;
 
@@ -157,6 +169,52 @@ public class StaticTests extends TestBase {
     }
   }
 
+  @Test
+  public void testParserRegexpCache() {
+    RegexpCache cache = RegexpCache.create(1);
+    Expression expr = new Parser(new StringReader("capture(.s, .r).x"))
+      .withRegexpCache(cache)
+      .compile();
+
+    ObjectNode input = mapper.createObjectNode().put("s", "abbc");
+    input.put("r", "(?<x>b+)");
+    assertEquals("bb", expr.apply(input).asText());
+    assertEquals("bb", expr.apply(input).asText());
+    input.put("r", "(?<x>c)");
+    assertEquals("c", expr.apply(input).asText());
+
+    assertEquals(1, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(1, cache.getEvictions());
+    assertEquals(1, cache.getSize());
+  }
+
+  @Test
+  public void testOwnRegexpCache() {
+    // a cache that doesn't cache anything
+    RegexpCache cache = new RegexpCache() {
+        public Pattern getPattern(String regexp) {
+          return Pattern.compile(regexp);
+        }
+        public long getHits() { return 0; }
+        public long getMisses() { return 0; }
+        public long getEvictions() { return 0; }
+        public int getSize() { return 0; }
+      };
+    Expression expr = new Parser(new StringReader(
+      "{\"c\" : capture(.s, \"(?<x>b+)\").x, \"t\" : test(.s, \"c$\")}"))
+      .withRegexpCache(cache)
+      .compile();
+
+    ObjectNode input = mapper.createObjectNode().put("s", "abbc");
+    assertEquals("{\"c\":\"bb\",\"t\":true}", expr.apply(input).toString());
+  }
+
+  @Test(expected = JsltException.class)
+  public void testRegexpCacheTooSmall() {
+    RegexpCache.create(0);
+  }
+
   private String generateRegexp() {
     if (Math.random() < 0.3) {
       // generate compound expression
@@ -430,4 +488,649 @@ public class StaticTests extends TestBase {
       throw exceptionsThrown.get(0);
     }
   }
+
+  @Test
+  public void testBadLiteralTimeFormatFailsOnlyWhenCalled()
+    throws IOException {
+    String[][] cases = { // query, input, output
+      { "format-time(.t, \"qqq\")", "{}", "null" },
+      { "parse-time(.t, \"qqq\")", "{}", "null" },
+      { "format-time(.t, \"yyyy\", \"Mars/Base\")", "{}", "null" },
+      { "if (.t) format-time(.t, \"qqq\") else \"none\"", "{}", "\"none\"" },
+      { "fallback(.t, format-time(0, \"qqq\"))", "{\"t\":1}", "1" },
+    };
+    for (String[] test : cases) {
+      Expression expr = Parser.compileString(test[0]);
+      JsonNode input = mapper.readTree(test[1]);
+      assertEquals(test[0], test[2], expr.apply(input).toString());
+    }
+
+    // when the call is made, the error is reported
+    Expression expr = Parser.compileString("format-time(.t, \"qqq\")");
+    try {
+      expr.apply(mapper.createObjectNode().put("t", 0));
+      fail("Didn't fail");
+    } catch (JsltException e) {
+      // this is what we want
+    }
+  }
+
+  @Test
+  public void timeFormatConcurrencyTest() throws Exception {
+    // the compiled time formats are shared by all threads applying
+    // the expression, so they must not mix up each other's results
+    final Expression expr = Parser.compileString(
+      "format-time(parse-time(., \"yyyy-MM-dd HH:mm:ss\"), \"yyyy-MM-dd HH:mm:ss\")"
+    );
+    int threads = 16;
+    ExecutorService service = Executors.newFixedThreadPool(threads);
+    List<Exception> exceptionsThrown = Collections.synchronizedList(new ArrayList());
+
+    for (int i = 0; i < threads; i++) {
+      final int thread = i;
+      service.submit(() -> {
+        try {
+          for (int ix = 0; ix < 1000; ix++) {
+            String time = String.format("20%02d-01-%02d 12:%02d:00",
+                                        thread, ix % 28 + 1, ix % 60);
+            JsonNode actual = expr.apply(new TextNode(time));
+            if (!time.equals(actual.asText()))
+              throw new RuntimeException(time + " became " + actual);
+          }
+        } catch (Exception e) {
+          exceptionsThrown.add(e);
+        }
+      });
+    }
+    service.shutdown();
+    service.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+    if (!exceptionsThrown.isEmpty()) {
+      throw exceptionsThrown.get(0);
+    }
+  }
+
+  @Test
+  public void testAbstractFunctionNotAssumedPure() {
+    // functions built on the base class say nothing about their
+    // traits, so calls with literal arguments are made every time
+    final int[] calls = { 0 };
+    Function counter = new AbstractFunction("counter", 1, 1) {
+        public JsonNode call(JsonNode input, JsonNode[] arguments) {
+          return new IntNode(++calls[0]);
+        }
+      };
+    assertTrue(counter.getTraits() == FunctionTraits.UNKNOWN);
+
+    Expression expr = Parser.compileString("counter(1)",
+                                           Collections.singleton(counter));
+    assertEquals(1, expr.apply(NullNode.instance).intValue());
+    assertEquals(2, expr.apply(NullNode.instance).intValue());
+  }
+
+  @Test
+  public void testExpressionDefaultMethods() throws IOException {
+    // an implementation written before the interface grew
+    final Expression inner = Parser.compileString("{\"v\" : .a, \"p\" : $p}");
+    Expression expr = new Expression() {
+        public JsonNode apply(JsonNode input) {
+          return inner.apply(input);
+        }
+        public JsonNode apply(Map<String, JsonNode> variables, JsonNode input) {
+          return inner.apply(variables, input);
+        }
+      };
+
+    JsonNode input = mapper.readTree("{\"a\" : 1, \"b\" : 2}");
+    Map<String, JsonNode> variables =
+      Collections.singletonMap("p", (JsonNode) new IntNode(2));
+    assertEquals("[{\"v\":1,\"p\":2}]",
+                 expr.applyAll(variables, Collections.singletonList(input))
+                 .toString());
+    JsonNode[] values = { new IntNode(3) };
+    assertEquals("{\"v\":1,\"p\":3}",
+                 expr.getParameterBinder("p").apply(values, input).toString());
+    assertEquals(input, expr.readInput("{\"a\" : 1, \"b\" : 2}".getBytes()));
+    assertTrue(expr.getMemoizationStatistics().isEmpty());
+
+    StringWriter out = new StringWriter();
+    JsonGenerator generator = mapper.getFactory().createGenerator(out);
+    expr.apply(variables, input, generator);
+    generator.flush();
+    assertEquals("{\"v\":1,\"p\":2}", out.toString());
+  }
+
+  @Test
+  public void testTieredCompilation()
+    throws IOException, InterruptedException {
+    // the expression gets compiled in the background while we keep
+    // applying it, so results must be the same before and after
+    ExpressionImpl expr = (ExpressionImpl) new Parser(new StringReader(
+      "def double(v) $v * 2 " +
+      "{\"sum\" : double(.a + .b), \"big\" : .a > 2, " +
+      " \"list\" : [for (.list) double(.) if (. != 2)]}"))
+      .withCompilationThreshold(10)
+      .compile();
+
+    JsonNode input = mapper.readTree("{\"a\":3,\"b\":4,\"list\":[1,2,3]}");
+    String expected = "{\"sum\":14,\"big\":true,\"list\":[2,6]}";
+    for (int ix = 0; ix < 9; ix++)
+      assertEquals(expected, expr.apply(input).toString());
+    assertFalse(expr.isCompiled());
+
+    for (int ix = 0; ix < 5000; ix++)
+      assertEquals(expected, expr.apply(input).toString());
+
+    // wait for the background compiler to swap in the bytecode
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!expr.isCompiled() && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertTrue(expr.isCompiled());
+    assertEquals(expected, expr.apply(input).toString());
+  }
+
+  @Test(expected = JsltException.class)
+  public void testNegativeCompilationThreshold() {
+    new Parser(new StringReader(".")).withCompilationThreshold(-1);
+  }
+
+  @Test
+  public void testApplyAll() throws IOException {
+    Expression expr = Parser.compileString(
+      "let table = {\"a\" : 1, \"b\" : 2} " +
+      "let prefix = $p + \":\" " +
+      "let key = .key " +
+      "$prefix + string(get-key($table, $key))"
+    );
+    List<JsonNode> inputs = new ArrayList();
+    inputs.add(mapper.readTree("{\"key\" : \"a\"}"));
+    inputs.add(mapper.readTree("{\"key\" : \"b\"}"));
+    inputs.add(null);
+
+    Map<String, JsonNode> variables = new HashMap();
+    variables.put("p", new TextNode("x"));
+    List<JsonNode> outputs = expr.applyAll(variables, inputs);
+    assertEquals("[\"x:1\", \"x:2\", \"x:null\"]", outputs.toString());
+  }
+
+  @Test
+  public void testApplyAllToConsumer() throws IOException {
+    Expression expr = Parser.compileString("[for (.) . * 2]");
+    List<JsonNode> inputs = new ArrayList();
+    inputs.add(mapper.readTree("[1, 2]"));
+    inputs.add(mapper.readTree("[3]"));
+
+    final List<JsonNode> outputs = new ArrayList();
+    expr.applyAll(inputs.iterator(), new java.util.function.Consumer<JsonNode>() {
+        public void accept(JsonNode output) {
+          outputs.add(output);
+        }
+      });
+    assertEquals("[[2,4], [6]]", outputs.toString());
+  }
+
+  @Test
+  public void testApplyAllSameAsApply() throws IOException {
+    for (Object[] test : QueryTest.data()) {
+      Expression expr = Parser.compileString((String) test[1]);
+      Map<String, JsonNode> variables = (Map<String, JsonNode>) test[3];
+      JsonNode input = mapper.readTree((String) test[0]);
+
+      List<JsonNode> inputs = new ArrayList();
+      inputs.add(input);
+      inputs.add(input);
+      List<JsonNode> outputs = expr.applyAll(variables, inputs);
+      JsonNode expected = expr.apply(variables, input);
+      assertEquals("wrong output for " + test[1], expected, outputs.get(0));
+      assertEquals("wrong output for " + test[1], expected, outputs.get(1));
+    }
+  }
+
+  @Test
+  public void testNestedApplyOnSameThread() throws IOException {
+    // the function applies another expression while the outer one is
+    // being evaluated, so the two must not share a scope
+    final Expression inner = Parser.compileString(
+      "def fact(n) if ($n <= 1) 1 else $n * fact($n - 1) fact(.)"
+    );
+    Function function = new Function() {
+        public String getName() {
+          return "inner";
+        }
+        public int getMinArguments() {
+          return 1;
+        }
+        public int getMaxArguments() {
+          return 1;
+        }
+        public JsonNode call(JsonNode input, JsonNode[] params) {
+          return inner.apply(params[0]);
+        }
+      };
+
+    Expression expr = Parser.compileString(
+      "def add(a, b) $a + $b " +
+      "let x = .x " +
+      "add(inner($x), add($x, 1))",
+      Collections.singleton(function)
+    );
+    JsonNode input = mapper.readTree("{\"x\" : 4}");
+    for (int ix = 0; ix < 100; ix++)
+      assertEquals(24 + 5, expr.apply(input).intValue());
+  }
+
+  @Test
+  public void testInvariantLetsEvaluatedOnce() throws IOException {
+    // lets that don't depend on the input are evaluated when the
+    // expression is compiled, and disappear
+    ExpressionImpl expr = (ExpressionImpl) Parser.compileString(
+      "def double(n) $n * 2 " +
+      "let table = {for ([\"a\", \"b\"]) . : double(size(.))} " +
+      "let size = size([1, 2, 3]) " +
+      "let x = .x " +
+      "let y = [$x, $size] " +
+      "{\"a\" : get-key($table, \"a\"), \"size\" : $size, \"y\" : $y}"
+    );
+    assertEquals(1, expr.getLets().length); // x, since y is inlined
+
+    JsonNode input = mapper.readTree("{\"x\" : 4}");
+    assertEquals("{\"a\":2,\"size\":3,\"y\":[4,3]}", expr.apply(input).toString());
+  }
+
+  @Test
+  public void testInvariantLetFailsWhenApplied() {
+    // errors in lets evaluated early must not be reported before the
+    // expression is actually applied
+    Expression expr = Parser.compileString(
+      "let fails = error(\"at runtime\") " +
+      "$fails"
+    );
+    try {
+      expr.apply(NullNode.instance);
+      fail("Didn't fail");
+    } catch (JsltException e) {
+      assertEquals("error: at runtime", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testLetsUsingParametersNotEvaluated() {
+    Expression expr = Parser.compileString(
+      "let x = $param + 1 " +
+      "$x"
+    );
+    Map<String, JsonNode> variables = new HashMap();
+    variables.put("param", new IntNode(1));
+    assertEquals(2, expr.apply(variables, NullNode.instance).intValue());
+    variables.put("param", new IntNode(2));
+    assertEquals(3, expr.apply(variables, NullNode.instance).intValue());
+  }
+
+  @Test
+  public void testUnusedAndSingleUseLetsRemoved() throws IOException {
+    ExpressionImpl expr = (ExpressionImpl) Parser.compileString(
+      "let unused = .foo " +
+      "let once = {\"v\" : .bar} " +
+      "let twice = .baz " +
+      "{\"a\" : $once, \"b\" : $twice, \"c\" : $twice}"
+    );
+    assertEquals(1, expr.getLets().length); // twice
+
+    JsonNode input = mapper.readTree("{\"bar\" : 1, \"baz\" : 2}");
+    assertEquals("{\"a\":{\"v\":1},\"b\":2,\"c\":2}", expr.apply(input).toString());
+  }
+
+  @Test
+  public void testLetsThatCanFailAreKept() throws IOException {
+    // removing or moving these lets would hide the errors
+    JsonNode input = mapper.readTree(
+      "{\"s\" : \"abc\", \"j\" : \"{\", \"ok\" : false, \"l\" : [\"x\"]}"
+    );
+    String[] queries = {
+      "let x = number(.s) 0",
+      "let x = number(.s) if (.ok) $x else 0",
+      "let x = from-json(.j) if (.ok) $x else \"no\"",
+      "[for (.l) let y = number(.) 1]",
+      "def f(v) 0 f(number(.s))",
+      "let x = .s - 1 {\"a\" : if (.ok) $x}"
+    };
+    for (String query : queries) {
+      Expression expr = Parser.compileString(query);
+      try {
+        expr.apply(input);
+        fail("Didn't fail: " + query);
+      } catch (JsltException e) {
+        // this is what we want
+      }
+    }
+  }
+
+  @Test
+  public void testLetNotInlinedIntoLoop() throws IOException {
+    ExpressionImpl expr = (ExpressionImpl) Parser.compileString(
+      "let n = .n " +
+      "{\"r\" : [for (.list) . + $n], \"s\" : .list | [for (.) $n]}"
+    );
+    assertEquals(1, expr.getLets().length);
+
+    JsonNode input = mapper.readTree("{\"n\" : 10, \"list\" : [1, 2]}");
+    assertEquals("{\"r\":[11,12],\"s\":[10,10]}", expr.apply(input).toString());
+  }
+
+  @Test
+  public void testLetNotInlinedIntoMacro() throws IOException {
+    Expression expr = Parser.compileString(
+      "import \"http://jslt.schibsted.com/2018/experimental\" as exp " +
+      "let key = .key " +
+      "exp:group-by(.list, $key, .)"
+    );
+    JsonNode input = mapper.readTree("{\"key\" : \"k\", \"list\" : [1, 2]}");
+    assertEquals("[{\"key\":\"k\",\"values\":[1,2]}]",
+                 expr.apply(input).toString());
+  }
+
+  @Test
+  public void testUnusedLetWithSideEffectsKept() {
+    Expression expr = Parser.compileString(
+      "let unused = error(\"still fails\") " +
+      "1"
+    );
+    try {
+      expr.apply(NullNode.instance);
+      fail("Didn't fail");
+    } catch (JsltException e) {
+      assertEquals("error: still fails", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testUnusedFunctionsRemoved() {
+    ExpressionImpl expr = (ExpressionImpl) Parser.compileString(
+      "import \"functions.jstl\" as f " +
+      "def used(x) if ($x) f:sum($x) + used([]) else 0 " +
+      "def unused(x) $x " +
+      "used([1, 2, 3])"
+    );
+    assertEquals(6, expr.apply(NullNode.instance).intValue());
+
+    assertTrue(expr.getFunction("used") != null);
+    assertTrue(expr.getFunction("unused") == null);
+    ExpressionImpl module = ((JstlFile) expr.getFunction("f")).getBody();
+    assertTrue(module.getFunction("sum") != null);
+    assertTrue(module.getFunction("count") == null);
+  }
+
+  @Test
+  public void testSmallFunctionsInlined() throws IOException {
+    ExpressionImpl expr = (ExpressionImpl) Parser.compileString(
+      "def clean(s) trim(lowercase($s)) " +
+      "def both(a, b) clean($a) + \" \" + clean($b) " +
+      "both(.first, .last)"
+    );
+    // the calls are gone, and so are the parameters
+    assertEquals("(trim(lowercase(.first)) + \" \") + trim(lowercase(.last))",
+                 expr.toString());
+    JsonNode input = mapper.readTree("{\"first\" : \" Ada \", \"last\" : \"LOVELACE\"}");
+    assertEquals("\"ada lovelace\"", expr.apply(input).toString());
+  }
+
+  @Test
+  public void testInliningDoesNotGrowWithoutBounds() {
+    // each function calls the one before twice, so inlining them all
+    // would make the expression twice as big per level
+    StringBuilder query = new StringBuilder("def f0(x) $x + 1 ");
+    for (int level = 1; level <= 30; level++)
+      query.append("def f" + level + "(x) " +
+                   "f" + (level - 1) + "($x) + f" + (level - 1) + "($x) ");
+    query.append("f16(.)");
+
+    long start = System.currentTimeMillis();
+    Expression expr = Parser.compileString(query.toString());
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals("65536", expr.apply(new IntNode(0)).toString());
+  }
+
+  @Test
+  public void testMaxRecursionDepth() {
+    String sum =
+      "def sum(list) if ($list) $list[0] + sum($list[1 : ]) else 0 " +
+      "sum(.)";
+    Expression expr = new Parser(new StringReader(sum))
+      .withMaxRecursionDepth(50)
+      .compile();
+    assertEquals(40, expr.apply(ones(40)).intValue());
+
+    try {
+      expr.apply(ones(60));
+      fail("Didn't fail");
+    } catch (JsltException e) {
+      assertTrue(e.getMessage().contains("limit of 50"));
+      assertEquals(1, e.getLine());
+    }
+  }
+
+  @Test
+  public void testFailingFunctionLeavesItsFrame() {
+    ExpressionImpl expr = (ExpressionImpl) Parser.compileString(
+      "def fail(x) error(\"failed: \" + $x) fail(.)"
+    );
+    Scope scope = Scope.getRoot(expr.getStackFrameSize());
+    try {
+      expr.apply(scope, new IntNode(1));
+      fail("Didn't fail");
+    } catch (JsltException e) {
+      assertEquals(0, scope.getDepth());
+    } finally {
+      scope.release();
+    }
+  }
+
+  private ArrayNode ones(int count) {
+    ArrayNode list = mapper.createArrayNode();
+    for (int ix = 0; ix < count; ix++)
+      list.add(1);
+    return list;
+  }
+
+  @Test
+  public void testStackOverflowBecomesJsltException() {
+    Expression expr = Parser.compileString(
+      "def down(n) if ($n == 0) 0 else 1 + down($n - 1) down(.)"
+    );
+    try {
+      expr.apply(new IntNode(10000000));
+      fail("Didn't fail");
+    } catch (JsltException e) {
+      assertTrue(e.getMessage().contains("ran out of stack"));
+      assertEquals(1, e.getLine());
+    }
+    // the thread and the expression are still fine
+    assertEquals(10, expr.apply(new IntNode(10)).intValue());
+  }
+
+  @Test
+  public void testMemoizedFunction() {
+    Expression expr = new Parser(new StringReader(
+      "def fib(n) if ($n < 2) $n else fib($n - 1) + fib($n - 2) " +
+      "fib(.)"))
+      .withMemoization(100)
+      .compile();
+    assertEquals(75025, expr.apply(new IntNode(25)).intValue());
+
+    Map<String, CacheStatistics> statistics = expr.getMemoizationStatistics();
+    assertEquals(Collections.singleton("fib"), statistics.keySet());
+    CacheStatistics cache = statistics.get("fib");
+    assertEquals(26, cache.getMisses()); // 0 to 25, once each
+    assertEquals(23, cache.getHits());
+    assertEquals(26, cache.getSize());
+    assertEquals(0, cache.getEvictions());
+
+    // the cache is kept between evaluations
+    assertEquals(75025, expr.apply(new IntNode(25)).intValue());
+    assertEquals(24, cache.getHits());
+  }
+
+  @Test
+  public void testMemoizationStatisticsOfModules() {
+    Expression expr = new Parser(new StringReader(
+      "import \"functions.jstl\" as f " +
+      "def fib(n) if ($n < 2) $n else fib($n - 1) + fib($n - 2) " +
+      "f:sum(.) + fib(3)"))
+      .withMemoization(2)
+      .compile();
+    assertEquals(8, expr.apply(mapper.createArrayNode().add(1).add(2).add(3)).intValue());
+
+    Map<String, CacheStatistics> statistics = expr.getMemoizationStatistics();
+    assertEquals(new HashSet(Arrays.asList("fib", "f:sum")),
+                 statistics.keySet());
+    CacheStatistics cache = statistics.get("f:sum");
+    assertEquals(4, cache.getMisses()); // [1, 2, 3] down to []
+    assertEquals(2, cache.getSize());
+    assertEquals(2, cache.getEvictions());
+
+    // no memoization, so no caches
+    expr = Parser.compileString(
+      "def fib(n) if ($n < 2) $n else fib($n - 1) + fib($n - 2) fib(.)"
+    );
+    assertTrue(expr.getMemoizationStatistics().isEmpty());
+  }
+
+  @Test
+  public void testFunctionsNotMemoized() {
+    ExpressionImpl expr = (ExpressionImpl) new Parser(new StringReader(
+      "def input(n) if ($n > 0) input($n - 1) + .a else 0 " +
+      "def param(n) if ($n > 0) param($n - 1) + $p else 0 " +
+      "def dice(n) if ($n > 0) dice($n - 1) + random() else 0 " +
+      "{\"i\" : input(1), \"p\" : param(2), \"r\" : dice(3)}"))
+      .withMemoization(100)
+      .compile();
+
+    // recursive, so that they're not inlined
+    for (String name : new String[] { "input", "param", "dice" }) {
+      FunctionDeclaration func = (FunctionDeclaration) expr.getFunction(name);
+      assertTrue(name, func.getMemoizationCache() == null);
+    }
+    assertTrue(expr.getMemoizationStatistics().isEmpty());
+  }
+
+  @Test
+  public void testSpecialize() throws IOException {
+    Expression expr = Parser.compileString(
+      "let allowed = $config.allowed " +
+      "{\"debug\" : if ($config.debug) . else \"off\", " +
+      " \"ok\" : contains(.type, $allowed), " +
+      " \"match\" : test(.id, $config.pattern), " +
+      " \"user\" : $user}"
+    );
+    JsonNode config = mapper.readTree(
+      "{\"debug\" : false, \"pattern\" : \"^[a-z]+$\", \"allowed\" : " +
+      "[\"a\", \"b\", \"c\", \"d\", \"e\", \"f\", \"g\", \"h\", " +
+      " \"i\", \"j\", \"k\"]}"
+    );
+    JsonNode input = mapper.readTree("{\"type\" : \"k\", \"id\" : \"abc\"}");
+
+    Map<String, JsonNode> variables = new HashMap();
+    variables.put("config", config);
+    variables.put("user", new TextNode("lars"));
+    JsonNode expected = expr.apply(variables, input);
+
+    Expression special =
+      expr.specialize(Collections.singletonMap("config", config));
+    assertEquals(expected, special.apply(variables, input));
+    // the known value is used, whatever we pass in
+    variables.put("config", NullNode.instance);
+    assertEquals(expected, special.apply(variables, input));
+
+  }
+
+  @Test
+  public void testSpecializeFoldsBranches() {
+    Expression expr = Parser.compileString(
+      "if ($config.debug) . else test(.id, $config.pattern)"
+    );
+    ObjectNode config = mapper.createObjectNode()
+      .put("debug", false)
+      .put("pattern", "^[a-z]+$");
+    Expression special =
+      expr.specialize(Collections.singletonMap("config", (JsonNode) config));
+    assertEquals("test(.id, \"^[a-z]+$\")", special.toString());
+  }
+
+  @Test
+  public void testSpecializeTwice() {
+    Expression expr = Parser.compileString("$a + $b + .c");
+    Expression special = expr
+      .specialize(Collections.singletonMap("a", (JsonNode) new IntNode(1)))
+      .specialize(Collections.singletonMap("b", (JsonNode) new IntNode(2)));
+    assertEquals("3 + .c", special.toString());
+    JsonNode input = mapper.createObjectNode().put("c", 3);
+    assertEquals(6, special.apply(input).intValue());
+  }
+
+  @Test
+  public void testBatchFunctionInLoops() throws IOException {
+    TestBatchFunction lookup = new TestBatchFunction();
+    JsonNode input = mapper.readTree("[1, 2, 3]");
+
+    Expression expr = Parser.compileString(
+      "[for (.) lookup(.) if (. > 1)]", Collections.singleton(lookup)
+    );
+    assertEquals("[\"v2\",\"v3\"]", expr.apply(input).toString());
+
+    expr = Parser.compileString(
+      "{for (.) string(.) : lookup(.)}", Collections.singleton(lookup)
+    );
+    assertEquals("{\"1\":\"v1\",\"2\":\"v2\",\"3\":\"v3\"}",
+                 expr.apply(input).toString());
+
+    expr = new Parser(new StringReader("[for (.) lookup(.)]"))
+      .withFunctions(Collections.singleton(lookup))
+      .withCompilation(true)
+      .compile();
+    assertEquals("[\"v1\",\"v2\",\"v3\"]", expr.apply(input).toString());
+
+    assertEquals(3, lookup.batchCalls);
+    assertEquals(0, lookup.calls);
+  }
+
+  @Test
+  public void testBatchFunctionInApplyAll() throws IOException {
+    TestBatchFunction lookup = new TestBatchFunction();
+    Expression expr = Parser.compileString(
+      "let id = .id lookup($id)", Collections.singleton(lookup)
+    );
+
+    List<JsonNode> inputs = new ArrayList();
+    for (int ix = 0; ix < 3; ix++)
+      inputs.add(mapper.createObjectNode().put("id", ix));
+    assertEquals("[\"v0\", \"v1\", \"v2\"]",
+                 expr.applyAll(inputs).toString());
+    assertEquals(1, lookup.batchCalls);
+
+    // a single apply calls the function directly
+    assertEquals("v5", expr.apply(mapper.createObjectNode().put("id", 5)).asText());
+    assertEquals(1, lookup.calls);
+  }
+
+  @Test
+  public void testParameterBinder() {
+    Expression expr = Parser.compileString("[$a, $b, .c]");
+    ParameterBinder binder = expr.getParameterBinder("b", "unused", "a");
+    assertEquals(3, binder.size());
+
+    JsonNode input = mapper.createObjectNode().put("c", 3);
+    JsonNode[] values = new JsonNode[binder.size()];
+    values[0] = new IntNode(2);
+    values[2] = new IntNode(1);
+    assertEquals("[1,2,3]", binder.apply(values, input).toString());
+
+    values[0] = new IntNode(5);
+    assertEquals("[1,5,3]", binder.apply(values, input).toString());
+  }
+
+  @Test(expected = JsltException.class)
+  public void testParameterBinderWrongSize() {
+    Expression expr = Parser.compileString("$a");
+    expr.getParameterBinder("a").apply(new JsonNode[2], NullNode.instance);
+  }
 }
@@ -0,0 +1,37 @@
+package com.schibsted.spt.data.jslt;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * Looks up "v" + the argument, and counts how it gets called.
+ */
+public class TestBatchFunction implements BatchFunction {
+  public int calls;
+  public int batchCalls;
+
+  public String getName() {
+    return "lookup";
+  }
+
+  public int getMinArguments() {
+    return 1;
+  }
+
+  public int getMaxArguments() {
+    return 1;
+  }
+
+  public JsonNode call(JsonNode input, JsonNode[] params) {
+    calls++;
+    return new TextNode("v" + params[0].asText());
+  }
+
+  public JsonNode[] callBatch(JsonNode[] inputs, JsonNode[][] params) {
+    batchCalls++;
+    JsonNode[] values = new JsonNode[params.length];
+    for (int ix = 0; ix < params.length; ix++)
+      values[ix] = new TextNode("v" + params[ix][0].asText());
+    return values;
+  }
+}
@@ -49,32 +49,48 @@ public class ToStringTest extends TestBase {
 
   @Test
   public void testFunction() {
-    verify("is-number(22)", "is-number(22)");
+    verify("is-number(.foo)", "is-number(.foo)");
   }
 
   @Test
   public void testFunctionIsInteger() {
-    verify("is-integer(22)", "is-integer(22)");
+    verify("is-integer(.foo)", "is-integer(.foo)");
   }
 
   @Test
   public void testFunctionIsDecimal() {
-    verify("is-decimal(22.0)", "is-decimal(22.0)");
+    verify("is-decimal(.foo)", "is-decimal(.foo)");
   }
 
   @Test
   public void testFunctionAny() {
-    verify("all([true, false])", "all([true,false])");
+    verify("all(.foo)", "all(.foo)");
   }
 
   @Test
   public void testFunctionAll() {
-    verify("any([true, false])", "any([true,false])");
+    verify("any(.foo)", "any(.foo)");
   }
 
   @Test
   public void testFunction2() {
-    verify("number(\"22\", null)", "number(\"22\", null)");
+    verify("number(.foo, null)", "number(.foo, null)");
+  }
+
+  @Test
+  public void testFunctionWithLiteralsFolded() {
+    verify("number(\"22\", null)", "22");
+  }
+
+  @Test
+  public void testObjectWithFoldedCalls() {
+    verify("{\"a\" : lowercase(\"FOO\"), \"b\" : size([1, 2, 3])}",
+           "{\"a\":\"foo\",\"b\":3}");
+  }
+
+  @Test
+  public void testImpureFunctionNotFolded() {
+    verify("now()", "now()");
   }
 
   // ----- MACROS